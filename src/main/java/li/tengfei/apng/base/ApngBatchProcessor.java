@@ -0,0 +1,231 @@
+package li.tengfei.apng.base;
+
+import java.io.Closeable;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batch processing service of many apng files, each file runs a task on it's own thread
+ * <p>
+ * concurrency is bounded by memory, not by thread count: a file's job holds permits of it's file size from the
+ * mapped bytes budget while it's reader is open, and permits of it's canvas size (IHDR width x height) from
+ * the decoded pixels budget while the task runs. a single file larger than a budget takes the whole budget,
+ * so it runs alone instead of blocking forever.
+ * <p>
+ * jobs run on virtual threads if the runtime has them (JDK 21+, looked up by reflection), blocked jobs then
+ * cost no platform thread, and throughput scales to the disk and cpu limits. on older runtimes jobs run on
+ * a fixed pool of 2 x available processors daemon threads.
+ * <p>
+ * results and failures of all jobs are delivered by a completion queue in completion order, see take().
+ * submit() blocks once maxPendingJobs jobs are submitted but their results not taken, as backpressure
+ *
+ * @author ltf
+ * @since 26/10/20, 下午9:10
+ */
+public class ApngBatchProcessor<T> implements Closeable {
+    private static final int KB_SHIFT = 10; // mapped bytes are counted in KB permits
+
+    private final ApngBatchTask<T> mTask;
+    private final ExecutorService mExecutor;
+    private final boolean mVirtualThreads;
+    private final int mMappedKB;
+    private final int mMaxPixels;
+    private final Semaphore mMapped;
+    private final Semaphore mPixels;
+    private final Semaphore mPending;
+    private final LinkedBlockingQueue<Result<T>> mCompleted = new LinkedBlockingQueue<>();
+
+    /**
+     * @param task             task to run on each file
+     * @param maxMappedBytes   budget of total mapped bytes of files being processed
+     * @param maxDecodedPixels budget of total canvas pixels of files being processed
+     * @param maxPendingJobs   max count of submitted jobs whose results are not taken
+     */
+    public ApngBatchProcessor(ApngBatchTask<T> task, long maxMappedBytes, int maxDecodedPixels, int maxPendingJobs) {
+        if (maxMappedBytes <= 0 || maxDecodedPixels <= 0 || maxPendingJobs <= 0) {
+            throw new IllegalArgumentException("budget must be positive");
+        }
+        mTask = task;
+        mMappedKB = (int) Math.min(Integer.MAX_VALUE, (maxMappedBytes + (1 << KB_SHIFT) - 1) >> KB_SHIFT);
+        mMaxPixels = maxDecodedPixels;
+        mMapped = new Semaphore(mMappedKB, true);
+        mPixels = new Semaphore(mMaxPixels, true);
+        mPending = new Semaphore(maxPendingJobs);
+        ExecutorService executor = newVirtualThreadExecutor();
+        mVirtualThreads = executor != null;
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2, new DaemonFactory());
+        }
+        mExecutor = executor;
+    }
+
+    /**
+     * the virtual thread per task executor of JDK 21+, or null if not available
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // not supported, or preview feature not enabled
+            return null;
+        }
+    }
+
+    /**
+     * whether jobs run on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return mVirtualThreads;
+    }
+
+    /**
+     * submit a file to process, it's result is delivered by the completion queue
+     *
+     * @param path apng file path
+     * @throws InterruptedException if interrupted while waiting for pending results taken
+     */
+    public void submit(String path) throws InterruptedException {
+        mPending.acquire();
+        try {
+            mExecutor.execute(new Job(path));
+        } catch (RejectedExecutionException e) {
+            mPending.release();
+            throw new IllegalStateException("Processor closed", e);
+        }
+    }
+
+    /**
+     * take the result of next completed job, wait if none completed
+     */
+    public Result<T> take() throws InterruptedException {
+        Result<T> result = mCompleted.take();
+        mPending.release();
+        return result;
+    }
+
+    /**
+     * take the result of next completed job, wait at most the timeout
+     *
+     * @return the result, or null if no job completed in time
+     */
+    public Result<T> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Result<T> result = mCompleted.poll(timeout, unit);
+        if (result != null) mPending.release();
+        return result;
+    }
+
+    /**
+     * stop accepting jobs, interrupt running jobs and drop queued ones, results already completed are still
+     * taken by poll()
+     */
+    @Override
+    public void close() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * process a file with budgets acquired: mapped bytes, then decoded pixels, always in this order,
+     * so jobs holding pixels never wait for mapped bytes, no deadlock
+     */
+    private class Job implements Runnable {
+        private final String mPath;
+
+        Job(String path) {
+            mPath = path;
+        }
+
+        @Override
+        public void run() {
+            T value = null;
+            Throwable error = null;
+            try {
+                value = process();
+            } catch (Throwable e) {
+                error = e;
+            }
+            mCompleted.add(new Result<>(mPath, value, error));
+        }
+
+        private T process() throws Exception {
+            long size = new File(mPath).length();
+            int kb = (int) Math.min(mMappedKB, (size + (1 << KB_SHIFT) - 1) >> KB_SHIFT);
+            mMapped.acquire(kb);
+            try {
+                ApngReader reader = new ApngReader(mPath);
+                try {
+                    ApngStorage storage = reader.getStorage();
+                    long pixels = (storage.getInt(16) & 0xFFFFFFFFL) * (storage.getInt(20) & 0xFFFFFFFFL);
+                    int permits = (int) Math.min(mMaxPixels, pixels);
+                    mPixels.acquire(permits);
+                    try {
+                        return mTask.process(mPath, reader);
+                    } finally {
+                        mPixels.release(permits);
+                    }
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                mMapped.release(kb);
+            }
+        }
+    }
+
+    private static class DaemonFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ApngBatchProcessor-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * result of a file's job, with the task's value or the failure
+     */
+    public static final class Result<T> {
+        private final String mPath;
+        private final T mValue;
+        private final Throwable mError;
+
+        Result(String path, T value, Throwable error) {
+            mPath = path;
+            mValue = value;
+            mError = error;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        /**
+         * value returned by the task, null if failed
+         */
+        public T getValue() {
+            return mValue;
+        }
+
+        /**
+         * failure of the job: IOException, FormatNotSupportException, InterruptedException if closed, etc.
+         * null if succeeded
+         */
+        public Throwable getError() {
+            return mError;
+        }
+
+        public boolean isSucceeded() {
+            return mError == null;
+        }
+    }
+}
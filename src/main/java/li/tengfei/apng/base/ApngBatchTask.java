@@ -0,0 +1,23 @@
+package li.tengfei.apng.base;
+
+import java.io.IOException;
+
+/**
+ * Work on one apng file of a batch, see ApngBatchProcessor
+ *
+ * @author ltf
+ * @since 26/10/20, 下午9:10
+ */
+public interface ApngBatchTask<T> {
+
+    /**
+     * called on a worker thread for each submitted file, the reader is closed after it returns
+     *
+     * @param path   the submitted file path
+     * @param reader reader of the file, for probing, extracting, decoding frames etc.
+     * @return result of the file, delivered by the completion queue
+     * @throws IOException               reported as the file's failure
+     * @throws FormatNotSupportException reported as the file's failure
+     */
+    T process(String path, ApngReader reader) throws IOException, FormatNotSupportException;
+}
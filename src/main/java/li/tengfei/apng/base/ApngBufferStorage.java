@@ -0,0 +1,51 @@
+package li.tengfei.apng.base;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Storage over a single ByteBuffer (usually the whole mapped file), the small file fast path
+ * <p>
+ * the mapping is still readable after close(), it's released when unreachable
+ *
+ * @author ltf
+ * @since 26/10/19, 上午10:40
+ */
+class ApngBufferStorage extends ApngStorage {
+    private final ByteBuffer mBuf;
+
+    ApngBufferStorage(ByteBuffer buf, FileChannel channel) {
+        super(channel);
+        mBuf = buf;
+    }
+
+    @Override
+    public long size() {
+        return mBuf.limit();
+    }
+
+    @Override
+    public int getInt(long pos) {
+        return mBuf.getInt((int) pos);
+    }
+
+    @Override
+    public short getShort(long pos) {
+        return mBuf.getShort((int) pos);
+    }
+
+    @Override
+    public byte get(long pos) {
+        return mBuf.get((int) pos);
+    }
+
+    @Override
+    public void get(long pos, byte[] dst, int dstOffset, int length) {
+        mBuf.get((int) pos, dst, dstOffset, length);
+    }
+
+    @Override
+    public ByteBuffer slice(long pos, int length) {
+        return mBuf.slice((int) pos, length).asReadOnlyBuffer();
+    }
+}
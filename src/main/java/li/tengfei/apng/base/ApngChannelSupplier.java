@@ -0,0 +1,164 @@
+package li.tengfei.apng.base;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Apng data supplier over a ReadableByteChannel, or over data pushed by append() (channel is null)
+ * <p>
+ * data is read into a reusable buffer, consumed data is discarded by compacting the buffer before
+ * each fill, the buffer grows only when a single read needs more continuous bytes than it can hold
+ * <p>
+ * !!! ATTENTION !!! readXxx() functions only read buffered data, call ensure() before them
+ *
+ * @author ltf
+ * @since 26/10/18, 下午7:35
+ */
+public class ApngChannelSupplier implements ApngDataSupplier {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel mChannel;
+    private ByteBuffer mBuf; // unread data is between position and limit
+
+    public ApngChannelSupplier(ReadableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ApngChannelSupplier(ReadableByteChannel channel, int bufferSize) {
+        mChannel = channel;
+        mBuf = ByteBuffer.allocate(bufferSize);
+        mBuf.limit(0);
+    }
+
+    /**
+     * make sure at least size bytes buffered
+     *
+     * @return false if end of the channel reached before size bytes buffered
+     */
+    public boolean ensure(int size) throws IOException {
+        if (mBuf.remaining() >= size) return true;
+        if (mChannel == null) return false;
+
+        prepareFill(size - mBuf.remaining());
+        try {
+            while (mBuf.position() < size) {
+                if (mChannel.read(mBuf) < 0) return false;
+            }
+        } finally {
+            mBuf.flip();
+        }
+        return true;
+    }
+
+    /**
+     * read once from the channel to the buffer, grow the buffer if it's full
+     *
+     * @return false if end of the channel reached
+     */
+    public boolean fill() throws IOException {
+        prepareFill(1);
+        try {
+            return mChannel.read(mBuf) >= 0;
+        } finally {
+            mBuf.flip();
+        }
+    }
+
+    /**
+     * append data to the buffer, used when there's no channel and data is pushed
+     */
+    public void append(ByteBuffer src) {
+        prepareFill(src.remaining());
+        mBuf.put(src);
+        mBuf.flip();
+    }
+
+    /**
+     * discard consumed data and switch the buffer to fill mode,
+     * grow the buffer if there's not enough space for extra bytes
+     */
+    private void prepareFill(int extra) {
+        if (mBuf.capacity() - mBuf.remaining() < extra) {
+            ByteBuffer buf = ByteBuffer.allocate(Math.max(mBuf.remaining() + extra, mBuf.capacity() << 1));
+            buf.put(mBuf);
+            mBuf = buf;
+        } else {
+            mBuf.compact();
+        }
+    }
+
+    /**
+     * count of buffered bytes
+     */
+    public int remaining() {
+        return mBuf.remaining();
+    }
+
+    /**
+     * same as ensure(), but throw EOFException if end of the channel reached
+     */
+    public void require(int size) throws IOException {
+        if (!ensure(size)) throw new EOFException("Unexpected end of apng data");
+    }
+
+    /**
+     * skip size bytes, the data needn't to be buffered at one time
+     */
+    public void skip(long size) throws IOException {
+        while (size > 0) {
+            if (!mBuf.hasRemaining()) require(1);
+            int count = (int) Math.min(size, mBuf.remaining());
+            move(count);
+            size -= count;
+        }
+    }
+
+    /**
+     * read size bytes to the array, the data needn't to be buffered at one time
+     */
+    public void readFully(byte[] dst, int dstOffset, int size) throws IOException {
+        while (size > 0) {
+            if (!mBuf.hasRemaining()) require(1);
+            int count = read(dst, dstOffset, size);
+            dstOffset += count;
+            size -= count;
+        }
+    }
+
+    @Override
+    public int readInt() {
+        return mBuf.getInt();
+    }
+
+    @Override
+    public short readShort() {
+        return mBuf.getShort();
+    }
+
+    @Override
+    public byte readByte() {
+        return mBuf.get();
+    }
+
+    @Override
+    public int read(byte[] dst, int dstOffset, int size) {
+        int count = mBuf.remaining();
+        count = count < size ? count : size;
+        mBuf.get(dst, dstOffset, count);
+        return count;
+    }
+
+    @Override
+    public void move(int distance) {
+        mBuf.position(mBuf.position() + distance);
+    }
+
+    /**
+     * read int at distance bytes ahead of the read pointer, and don't move the pointer
+     */
+    public int peekInt(int distance) {
+        return mBuf.getInt(mBuf.position() + distance);
+    }
+}
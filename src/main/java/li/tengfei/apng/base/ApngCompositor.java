@@ -0,0 +1,517 @@
+package li.tengfei.apng.base;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static li.tengfei.apng.base.ApngFCTLChunk.APNG_BLEND_OP_SOURCE;
+import static li.tengfei.apng.base.ApngFCTLChunk.APNG_DISPOSE_OP_BACKGROUND;
+import static li.tengfei.apng.base.ApngFCTLChunk.APNG_DISPOSE_OP_NONE;
+import static li.tengfei.apng.base.ApngFCTLChunk.APNG_DISPOSE_OP_PREVIOUS;
+
+/**
+ * Apng frame compositor, render frames to a full size canvas by their dispose_op and blend_op
+ * <p>
+ * SOURCE frames are decoded into the canvas directly, OVER frames are decoded to a scratch buffer and blended
+ * with integer alpha math. for PREVIOUS disposal only the frame's region is saved, to a buffer sized to the
+ * frame region. both buffers are reused, so no buffer is allocated per frame once they are large enough.
+ * <p>
+ * the canvas is kept in the output pixel format, see PixelFormat. an INDEXED_8 canvas needs all frames to
+ * share one palette, and OVER frames need all palette colors fully opaque or fully transparent. the palette
+ * also needs a fully transparent color, which is the cleared canvas and the BACKGROUND disposal, palettes
+ * without it are rejected by FormatNotSupportException, compose such images in an ARGB format instead.
+ * <p>
+ * with a sample size N, the canvas is subsampled: canvas pixel (x, y) is the full size canvas pixel
+ * (x * N, y * N), frames are decoded subsampled to their scaled regions, so memory and compositing cost
+ * are about 1 / N^2 of the full size, for thumbnails and previews.
+ * <p>
+ * with a region of interest, the canvas holds only the region, frames are clipped to the region by their FCTL
+ * geometry, frames outside the region are not decoded at all, see FrameDecoder.setRegion().
+ * <p>
+ * !!! ATTENTION !!! not thread safe, and call release() after use
+ *
+ * @author ltf
+ * @since 26/10/19, 下午9:30
+ */
+public class ApngCompositor {
+    private final int mFullWidth; // full size canvas width
+    private final int mFullHeight;
+    private final int mSampleSize;
+    private final int mRegionX; // region on the (subsampled) canvas
+    private final int mRegionY;
+    private final int mWidth; // region width, the width of canvas pixels kept
+    private final int mHeight;
+    private final int mFormat;
+    private final Object mCanvas; // int[], short[] or byte[] by the format
+    private final FrameDecoder mDecoder; // decode frames in the canvas format
+    private FrameDecoder mArgbDecoder; // decode OVER frames of 16-bit canvas, created on demand
+    private Object mScratch; // decoded pixels of OVER frames
+    private Object mPrevious; // saved region for PREVIOUS disposal
+    private int[] mPalette; // shared palette of INDEXED_8 canvas
+    private int mBackground; // fully transparent pixel value of the canvas
+
+    // disposal of last composed frame, applied before next frame
+    private int mDisposeOp = -1;
+    private int mDisposeX;
+    private int mDisposeY;
+    private int mDisposeW;
+    private int mDisposeH;
+
+    /**
+     * compositor of an ARGB_8888 canvas
+     *
+     * @param width  canvas width, the IHDR width (equals the first frame's width)
+     * @param height canvas height, the IHDR height (equals the first frame's height)
+     */
+    public ApngCompositor(int width, int height) {
+        this(width, height, PixelFormat.ARGB_8888);
+    }
+
+    /**
+     * @param width  canvas width, the IHDR width (equals the first frame's width)
+     * @param height canvas height, the IHDR height (equals the first frame's height)
+     * @param format canvas pixel format, one of PixelFormat's formats
+     */
+    public ApngCompositor(int width, int height, int format) {
+        this(width, height, format, 1);
+    }
+
+    /**
+     * @param width      full size canvas width, the IHDR width (equals the first frame's width)
+     * @param height     full size canvas height, the IHDR height (equals the first frame's height)
+     * @param format     canvas pixel format, one of PixelFormat's formats
+     * @param sampleSize keep one of every sampleSize rows and columns, power of 2, 1 for full size
+     */
+    public ApngCompositor(int width, int height, int format, int sampleSize) {
+        this(width, height, format, sampleSize, 0, 0,
+                ApngFCTLChunk.sampled(width, sampleSize), ApngFCTLChunk.sampled(height, sampleSize));
+    }
+
+    /**
+     * compositor of a region of interest, only the region of the canvas is kept and composed
+     *
+     * @param width        full size canvas width, the IHDR width (equals the first frame's width)
+     * @param height       full size canvas height, the IHDR height (equals the first frame's height)
+     * @param format       canvas pixel format, one of PixelFormat's formats
+     * @param sampleSize   keep one of every sampleSize rows and columns, power of 2, 1 for full size
+     * @param regionX      region left on the canvas, the subsampled canvas if sample size is not 1
+     * @param regionY      region top on the canvas
+     * @param regionWidth  region width
+     * @param regionHeight region height
+     */
+    public ApngCompositor(int width, int height, int format, int sampleSize,
+                          int regionX, int regionY, int regionWidth, int regionHeight) {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("Invalid canvas size");
+        mDecoder = new FrameDecoder(format);
+        mDecoder.setSampleSize(sampleSize);
+        if (regionX < 0 || regionY < 0 || regionWidth <= 0 || regionHeight <= 0
+                || regionX > ApngFCTLChunk.sampled(width, sampleSize) - regionWidth
+                || regionY > ApngFCTLChunk.sampled(height, sampleSize) - regionHeight) {
+            throw new IllegalArgumentException("Region out of canvas");
+        }
+        mDecoder.setRegion(regionX, regionY, regionWidth, regionHeight);
+        mFullWidth = width;
+        mFullHeight = height;
+        mSampleSize = sampleSize;
+        mRegionX = regionX;
+        mRegionY = regionY;
+        mWidth = regionWidth;
+        mHeight = regionHeight;
+        mFormat = format;
+        mCanvas = newPixels(mWidth * mHeight);
+    }
+
+    /**
+     * canvas width, the region width (subsampled if sample size is not 1)
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * region left on the (subsampled) canvas, 0 if there's no region of interest
+     */
+    public int getRegionX() {
+        return mRegionX;
+    }
+
+    public int getRegionY() {
+        return mRegionY;
+    }
+
+    public int getSampleSize() {
+        return mSampleSize;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * the canvas of ARGB_8888 or ARGB_PREMULTIPLIED format, row by row without padding,
+     * it's changed by the next compose()
+     */
+    public int[] getCanvas() {
+        if (!(mCanvas instanceof int[])) throw new IllegalStateException("Not a 32-bit canvas");
+        return (int[]) mCanvas;
+    }
+
+    /**
+     * the canvas of RGB_565 or ARGB_4444 format
+     *
+     * @see #getCanvas()
+     */
+    public short[] getShortCanvas() {
+        if (!(mCanvas instanceof short[])) throw new IllegalStateException("Not a 16-bit canvas");
+        return (short[]) mCanvas;
+    }
+
+    /**
+     * the canvas of INDEXED_8 format, colors are in getPalette()
+     *
+     * @see #getCanvas()
+     */
+    public byte[] getByteCanvas() {
+        if (!(mCanvas instanceof byte[])) throw new IllegalStateException("Not an indexed canvas");
+        return (byte[]) mCanvas;
+    }
+
+    /**
+     * the shared palette of INDEXED_8 canvas, it MUST NOT be modified
+     *
+     * @return the palette, or null if nothing composed yet
+     */
+    public int[] getPalette() {
+        return mPalette;
+    }
+
+    private Object newPixels(int count) {
+        switch (PixelFormat.bytesPerPixel(mFormat)) {
+            case 4:
+                return new int[count];
+            case 2:
+                return new short[count];
+            default:
+                return new byte[count];
+        }
+    }
+
+    private static int length(Object pixels) {
+        if (pixels == null) return 0;
+        if (pixels instanceof int[]) return ((int[]) pixels).length;
+        if (pixels instanceof short[]) return ((short[]) pixels).length;
+        return ((byte[]) pixels).length;
+    }
+
+    /**
+     * clear the canvas to fully transparent, to compose from the first frame again
+     */
+    public void reset() {
+        fill(mCanvas, 0, length(mCanvas), mBackground);
+        mDisposeOp = -1;
+    }
+
+    /**
+     * dispose last frame, and render the next frame on the canvas
+     *
+     * @param frame next frame in play order, read by ApngReader/ApngCursor/ApngPushParser
+     * @return the canvas with the frame composed, or null if it's not a 32-bit canvas,
+     * see getShortCanvas() and getByteCanvas()
+     * @throws IOException               if the image data is broken or the frame is out of canvas
+     * @throws FormatNotSupportException if the image format is not supported, or can't be composed in the format
+     */
+    public int[] compose(ApngFrame frame) throws IOException, FormatNotSupportException {
+        return compose(frame, null);
+    }
+
+    /**
+     * dispose last frame, and render the next frame on the canvas
+     *
+     * @param frame   next frame in play order
+     * @param decoded the frame's pixels decoded in the canvas format by a decoder of the same sample size,
+     *                for the (subsampled) frame region with it's width as the stride, or null to decode it here.
+     *                only for 32-bit canvas without a region of interest
+     */
+    int[] compose(ApngFrame frame, int[] decoded) throws IOException, FormatNotSupportException {
+        int x = frame.getxOff();
+        int y = frame.getyOff();
+        int w = frame.getWidth();
+        int h = frame.getHeight();
+        if (x < 0 || y < 0 || w <= 0 || h <= 0 || x > mFullWidth - w || y > mFullHeight - h) {
+            throw new IOException("Frame region out of canvas");
+        }
+        if (mSampleSize > 1) {
+            // region on the subsampled canvas, may be empty for small frames
+            x = frame.getSampledxOff(mSampleSize);
+            y = frame.getSampledyOff(mSampleSize);
+            w = frame.getSampledWidth(mSampleSize);
+            h = frame.getSampledHeight(mSampleSize);
+        }
+
+        // clip to the region of interest, relative to the region
+        int left = Math.max(x, mRegionX);
+        int top = Math.max(y, mRegionY);
+        w = Math.min(x + w, mRegionX + mWidth) - left;
+        h = Math.min(y + h, mRegionY + mHeight) - top;
+        if (w <= 0 || h <= 0) {
+            // out of the region, or no sampled pixel in the frame
+            w = h = 0;
+            x = y = 0;
+        } else {
+            x = left - mRegionX;
+            y = top - mRegionY;
+        }
+
+        disposeLast();
+
+        // save the region to restore after this frame, the first frame's PREVIOUS is treated as BACKGROUND
+        int disposeOp = frame.getDisposeOp();
+        if (disposeOp == APNG_DISPOSE_OP_PREVIOUS && mDisposeOp < 0) disposeOp = APNG_DISPOSE_OP_BACKGROUND;
+        if (disposeOp == APNG_DISPOSE_OP_PREVIOUS) {
+            if (mPrevious == null || length(mPrevious) < w * h) mPrevious = newPixels(w * h);
+            copyRect(mCanvas, y * mWidth + x, mWidth, mPrevious, 0, w, w, h);
+        }
+
+        int offset = y * mWidth + x;
+        if (w == 0) {
+            // nothing to decode
+        } else if (decoded != null) {
+            composeDecoded(frame, decoded, offset, w, h);
+        } else if (frame.getBlendOp() == APNG_BLEND_OP_SOURCE) {
+            decodeSource(frame, offset);
+        } else {
+            decodeOver(frame, offset, w, h);
+        }
+
+        mDisposeOp = disposeOp;
+        mDisposeX = x;
+        mDisposeY = y;
+        mDisposeW = w;
+        mDisposeH = h;
+        return mCanvas instanceof int[] ? (int[]) mCanvas : null;
+    }
+
+    /**
+     * decode a SOURCE frame into the canvas directly
+     */
+    private void decodeSource(ApngFrame frame, int offset) throws IOException, FormatNotSupportException {
+        if (mCanvas instanceof int[]) {
+            mDecoder.decode(frame, (int[]) mCanvas, offset, mWidth);
+        } else if (mCanvas instanceof short[]) {
+            mDecoder.decode(frame, (short[]) mCanvas, offset, mWidth);
+        } else {
+            mDecoder.decode(frame, (byte[]) mCanvas, offset, mWidth);
+            checkPalette(false);
+        }
+    }
+
+    /**
+     * decode an OVER frame to the scratch buffer, and blend it to the canvas
+     */
+    private void decodeOver(ApngFrame frame, int offset, int w, int h) throws IOException, FormatNotSupportException {
+        switch (mFormat) {
+            case PixelFormat.ARGB_8888:
+                if (length(mScratch) < w * h) mScratch = new int[w * h];
+                mDecoder.decode(frame, (int[]) mScratch, 0, w);
+                PixelKernels.blendOver((int[]) mScratch, 0, w, (int[]) mCanvas, offset, mWidth, w, h);
+                break;
+            case PixelFormat.ARGB_PREMULTIPLIED:
+                if (length(mScratch) < w * h) mScratch = new int[w * h];
+                mDecoder.decode(frame, (int[]) mScratch, 0, w);
+                PixelKernels.blendOverPremultiplied((int[]) mScratch, 0, w, (int[]) mCanvas, offset, mWidth, w, h);
+                break;
+            case PixelFormat.INDEXED_8:
+                if (length(mScratch) < w * h) mScratch = new byte[w * h];
+                mDecoder.decode(frame, (byte[]) mScratch, 0, w);
+                checkPalette(true);
+                PixelKernels.blendOverIndexed((byte[]) mScratch, 0, w, mPalette, (byte[]) mCanvas, offset, mWidth, w, h);
+                break;
+            default:
+                // 16-bit canvas, blend by ARGB_8888 source pixels for full precision source alpha
+                if (mArgbDecoder == null) {
+                    mArgbDecoder = new FrameDecoder();
+                    mArgbDecoder.setSampleSize(mSampleSize);
+                    mArgbDecoder.setRegion(mRegionX, mRegionY, mWidth, mHeight);
+                }
+                if (length(mScratch) < w * h) mScratch = new int[w * h];
+                mArgbDecoder.decode(frame, (int[]) mScratch, 0, w);
+                PixelKernels.blendOver16(mFormat, (int[]) mScratch, 0, w, (short[]) mCanvas, offset, mWidth, w, h);
+        }
+    }
+
+    /**
+     * copy or blend pixels decoded elsewhere to the canvas
+     */
+    private void composeDecoded(ApngFrame frame, int[] decoded, int offset, int w, int h) {
+        if (!(mCanvas instanceof int[]) || mWidth != ApngFCTLChunk.sampled(mFullWidth, mSampleSize)
+                || mHeight != ApngFCTLChunk.sampled(mFullHeight, mSampleSize) || decoded.length < w * h) {
+            throw new IllegalStateException("Decoded pixels don't match the canvas");
+        }
+        if (frame.getBlendOp() == APNG_BLEND_OP_SOURCE) {
+            copyRect(decoded, 0, w, mCanvas, offset, mWidth, w, h);
+        } else if (mFormat == PixelFormat.ARGB_PREMULTIPLIED) {
+            PixelKernels.blendOverPremultiplied(decoded, 0, w, (int[]) mCanvas, offset, mWidth, w, h);
+        } else {
+            PixelKernels.blendOver(decoded, 0, w, (int[]) mCanvas, offset, mWidth, w, h);
+        }
+    }
+
+    /**
+     * check the palette of last decoded frame is the palette of the INDEXED_8 canvas
+     *
+     * @param over whether the frame is blended OVER the canvas
+     */
+    private void checkPalette(boolean over) throws FormatNotSupportException {
+        PixelTables tables = mDecoder.getTables();
+        if (mPalette == null) {
+            if (tables.transparentIndex < 0) {
+                // no index for the transparent background, any index would show as a color
+                throw new FormatNotSupportException("Palette without transparent color can't compose as INDEXED_8");
+            }
+            mPalette = tables.palette;
+            mBackground = tables.transparentIndex;
+            // the canvas was cleared to index 0 before the palette is known, OVER frames blend with it.
+            // a SOURCE first frame covers the canvas, as the first frame is the full IHDR size
+            if (over && mBackground != 0) fill(mCanvas, 0, length(mCanvas), mBackground);
+        } else if (tables.palette != mPalette && !Arrays.equals(tables.palette, mPalette)) {
+            throw new FormatNotSupportException("Palette changed, can't compose as INDEXED_8");
+        }
+        if (over && !tables.isPaletteBinaryAlpha()) {
+            throw new FormatNotSupportException("Translucent palette colors can't be blended as INDEXED_8");
+        }
+    }
+
+    /**
+     * apply last frame's dispose_op on the canvas
+     */
+    private void disposeLast() {
+        int offset = mDisposeY * mWidth + mDisposeX;
+        switch (mDisposeOp) {
+            case APNG_DISPOSE_OP_BACKGROUND:
+                for (int row = 0; row < mDisposeH; row++, offset += mWidth) {
+                    fill(mCanvas, offset, offset + mDisposeW, mBackground);
+                }
+                break;
+            case APNG_DISPOSE_OP_PREVIOUS:
+                copyRect(mPrevious, 0, mDisposeW, mCanvas, offset, mWidth, mDisposeW, mDisposeH);
+                break;
+            case APNG_DISPOSE_OP_NONE:
+            default:
+                // keep the canvas, or nothing composed yet
+        }
+    }
+
+    private static void fill(Object pixels, int from, int to, int value) {
+        if (pixels instanceof int[]) {
+            Arrays.fill((int[]) pixels, from, to, value);
+        } else if (pixels instanceof short[]) {
+            Arrays.fill((short[]) pixels, from, to, (short) value);
+        } else {
+            Arrays.fill((byte[]) pixels, from, to, (byte) value);
+        }
+    }
+
+    /**
+     * whether the frame replaces the whole canvas, so the canvas after it doesn't depend on frames before it
+     */
+    boolean isKeyFrame(ApngFCTLChunk frame) {
+        return frame.getBlendOp() == APNG_BLEND_OP_SOURCE && frame.getDisposeOp() != APNG_DISPOSE_OP_PREVIOUS
+                && frame.getxOff() == 0 && frame.getyOff() == 0
+                && frame.getWidth() == mFullWidth && frame.getHeight() == mFullHeight;
+    }
+
+    /**
+     * find the key frames of the reader's frames, only their FCTL chunks at the frame index's offsets are parsed
+     */
+    BitSet findKeyFrames(ApngReader reader) throws IOException {
+        ApngFrameIndex index = reader.getFrameIndex();
+        BitSet keyFrames = new BitSet(index.getFrameCount());
+        ApngMmapParserChunk chunk = new ApngMmapParserChunk(reader.getStorage());
+        ApngFCTLChunk fctl = new ApngFCTLChunk();
+        for (int i = 0; i < index.getFrameCount(); i++) {
+            chunk.parsePrepare(index.getFctlOffset(i));
+            chunk.parse();
+            chunk.assignTo(fctl);
+            if (isKeyFrame(fctl)) keyFrames.set(i);
+        }
+        return keyFrames;
+    }
+
+    /**
+     * copy the canvas and the pending disposal of last frame, to restore by restoreState()
+     */
+    State saveState() {
+        State state = new State();
+        int length = mWidth * mHeight;
+        state.canvas = newPixels(length);
+        System.arraycopy(mCanvas, 0, state.canvas, 0, length);
+        if (mDisposeOp == APNG_DISPOSE_OP_PREVIOUS) {
+            int size = mDisposeW * mDisposeH;
+            state.previous = newPixels(size);
+            System.arraycopy(mPrevious, 0, state.previous, 0, size);
+        }
+        state.disposeOp = mDisposeOp;
+        state.disposeX = mDisposeX;
+        state.disposeY = mDisposeY;
+        state.disposeW = mDisposeW;
+        state.disposeH = mDisposeH;
+        state.palette = mPalette;
+        state.background = mBackground;
+        return state;
+    }
+
+    /**
+     * restore the state saved by saveState() of this compositor, the state is not changed
+     */
+    void restoreState(State state) {
+        System.arraycopy(state.canvas, 0, mCanvas, 0, mWidth * mHeight);
+        if (state.previous != null) {
+            int size = state.disposeW * state.disposeH;
+            if (mPrevious == null || length(mPrevious) < size) mPrevious = newPixels(size);
+            System.arraycopy(state.previous, 0, mPrevious, 0, size);
+        }
+        mDisposeOp = state.disposeOp;
+        mDisposeX = state.disposeX;
+        mDisposeY = state.disposeY;
+        mDisposeW = state.disposeW;
+        mDisposeH = state.disposeH;
+        mPalette = state.palette;
+        mBackground = state.background;
+    }
+
+    /**
+     * release the decoders, the compositor is not usable after released
+     */
+    public void release() {
+        mDecoder.release();
+        if (mArgbDecoder != null) mArgbDecoder.release();
+    }
+
+    /**
+     * copy a rectangle between pixel arrays of the same type
+     */
+    static void copyRect(Object src, int srcOff, int srcStride, Object dst, int dstOff, int dstStride, int w, int h) {
+        for (int row = 0; row < h; row++, srcOff += srcStride, dstOff += dstStride) {
+            System.arraycopy(src, srcOff, dst, dstOff, w);
+        }
+    }
+
+    /**
+     * compositor state after a frame composed
+     */
+    static final class State {
+        Object canvas;   // canvas pixels, in the canvas format
+        Object previous; // saved region for PREVIOUS disposal, or null
+        int disposeOp;
+        int disposeX;
+        int disposeY;
+        int disposeW;
+        int disposeH;
+        int[] palette;
+        int background;
+    }
+}
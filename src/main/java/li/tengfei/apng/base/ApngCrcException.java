@@ -0,0 +1,61 @@
+package li.tengfei.apng.base;
+
+import java.io.IOException;
+
+/**
+ * Chunk CRC mismatch, the chunk data is corrupted
+ *
+ * @author ltf
+ * @since 26/10/19, 下午6:05
+ */
+public class ApngCrcException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long mOffset;
+    private final int mTypeCode;
+    private final int mExpected;
+    private final int mActual;
+
+    public ApngCrcException(long offset, int typeCode, int expected, int actual) {
+        super(String.format("CRC mismatch of chunk %s at %d, expected %08x, actual %08x",
+                typeName(typeCode), offset, expected, actual));
+        mOffset = offset;
+        mTypeCode = typeCode;
+        mExpected = expected;
+        mActual = actual;
+    }
+
+    private static String typeName(int typeCode) {
+        char[] name = new char[4];
+        for (int i = 0; i < 4; i++) {
+            char c = (char) (typeCode >>> (24 - i * 8) & 0xFF);
+            name[i] = Character.isLetter(c) ? c : '?';
+        }
+        return new String(name);
+    }
+
+    /**
+     * chunk start offset in the file
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    public int getTypeCode() {
+        return mTypeCode;
+    }
+
+    /**
+     * CRC stored in the chunk
+     */
+    public int getExpected() {
+        return mExpected;
+    }
+
+    /**
+     * CRC computed from the chunk type and data
+     */
+    public int getActual() {
+        return mActual;
+    }
+}
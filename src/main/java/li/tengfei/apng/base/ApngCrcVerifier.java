@@ -0,0 +1,187 @@
+package li.tengfei.apng.base;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+/**
+ * Opt-in chunk CRC verification of an apng file, the normal read path never checks CRCs
+ * <p>
+ * chunks are split into segments hashed in parallel on an executor, a chunk's CRC is merged from
+ * its segments' CRCs by Crc32Algebra.combine(), so a single huge chunk also scales across cores
+ *
+ * @author ltf
+ * @since 26/10/19, 下午6:10
+ */
+public class ApngCrcVerifier {
+    /**
+     * verify all chunks, throw ApngCrcException at the first mismatched chunk
+     */
+    public static final int POLICY_STRICT = 0;
+    /**
+     * verify all chunks, report all mismatched chunks
+     */
+    public static final int POLICY_LENIENT = 1;
+    /**
+     * verify a random sample of chunks, throw ApngCrcException at the first mismatched chunk
+     */
+    public static final int POLICY_SAMPLED = 2;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private final int mPolicy;
+    private final int mSamplePercent;
+    private final Executor mExecutor;
+    private final int mSegmentSize;
+
+    /**
+     * verify all chunks on the common ForkJoinPool
+     *
+     * @param policy POLICY_STRICT or POLICY_LENIENT
+     */
+    public ApngCrcVerifier(int policy) {
+        this(policy, 100, ForkJoinPool.commonPool(), DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param policy        one of POLICY_STRICT, POLICY_LENIENT, POLICY_SAMPLED
+     * @param samplePercent percentage of chunks verified in POLICY_SAMPLED, 0~100
+     * @param executor      executor to hash segments
+     * @param segmentSize   max bytes hashed by one task, small chunks are grouped up to it
+     */
+    public ApngCrcVerifier(int policy, int samplePercent, Executor executor, int segmentSize) {
+        if (policy < POLICY_STRICT || policy > POLICY_SAMPLED) throw new IllegalArgumentException("Unknown policy");
+        if (samplePercent < 0 || samplePercent > 100) throw new IllegalArgumentException("samplePercent out of range");
+        if (segmentSize < 1) throw new IllegalArgumentException("segmentSize must be positive");
+        mPolicy = policy;
+        mSamplePercent = policy == POLICY_SAMPLED ? samplePercent : 100;
+        mExecutor = executor;
+        mSegmentSize = segmentSize;
+    }
+
+    /**
+     * verify chunks of the reader's file
+     *
+     * @return mismatched chunks, empty if all verified chunks are intact
+     * @throws ApngCrcException     in POLICY_STRICT and POLICY_SAMPLED, if any chunk mismatched
+     * @throws IOException          if chunk structure is broken
+     * @throws InterruptedException if interrupted while waiting for hashing tasks
+     */
+    public List<ApngCrcException> verify(ApngReader reader) throws IOException, InterruptedException {
+        return verify(reader.getStorage());
+    }
+
+    List<ApngCrcException> verify(ApngStorage storage) throws IOException, InterruptedException {
+        // collect chunks to verify, and split them to segments
+        List<long[]> chunks = new ArrayList<>(); // {offset, length, typeCode, crc, first segment}
+        List<long[]> segments = new ArrayList<>(); // {position, length}
+        long size = storage.size();
+        long pos = 8;
+        while (pos + 12 <= size) {
+            int length = storage.getInt(pos);
+            if (length < 0 || pos + 12 + length > size) throw new IOException("Broken chunk at " + pos);
+            int typeCode = storage.getInt(pos + 4);
+            if (mSamplePercent >= 100 || ThreadLocalRandom.current().nextInt(100) < mSamplePercent) {
+                chunks.add(new long[]{pos, length, typeCode, storage.getInt(pos + 8 + length), segments.size()});
+                // CRC covers type code and data
+                for (long seg = pos + 4, end = pos + 8 + length; seg < end; seg += mSegmentSize) {
+                    segments.add(new long[]{seg, Math.min(mSegmentSize, end - seg)});
+                }
+            }
+            if (typeCode == ApngConst.CODE_IEND) break;
+            pos += 12 + length;
+        }
+
+        int[] crcs = hashSegments(storage, segments);
+
+        // merge segments' CRCs of each chunk
+        List<ApngCrcException> mismatches = new ArrayList<>();
+        for (long[] chunk : chunks) {
+            int first = (int) chunk[4];
+            int crc = crcs[first];
+            long remaining = chunk[1] + 4 - segments.get(first)[1];
+            for (int i = first + 1; remaining > 0; i++) {
+                long len = segments.get(i)[1];
+                crc = Crc32Algebra.combine(crc, crcs[i], len);
+                remaining -= len;
+            }
+            if (crc != (int) chunk[3]) {
+                ApngCrcException e = new ApngCrcException(chunk[0], (int) chunk[2], (int) chunk[3], crc);
+                if (mPolicy != POLICY_LENIENT) throw e;
+                mismatches.add(e);
+            }
+        }
+        return mismatches;
+    }
+
+    /**
+     * hash all segments in parallel, consecutive small segments are grouped to one task
+     */
+    private int[] hashSegments(ApngStorage storage, List<long[]> segments)
+            throws IOException, InterruptedException {
+        int[] crcs = new int[segments.size()];
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        try {
+            for (int from = 0; from < segments.size(); ) {
+                int to = from;
+                long bytes = 0;
+                while (to < segments.size() && bytes < mSegmentSize) bytes += segments.get(to++)[1];
+                FutureTask<Void> task = new FutureTask<>(new HashTask(storage, segments, from, to, crcs));
+                tasks.add(task);
+                mExecutor.execute(task);
+                from = to;
+            }
+            for (FutureTask<Void> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                    throw new IOException("Hash chunk data failed", e.getCause());
+                }
+            }
+        } finally {
+            for (FutureTask<Void> task : tasks) task.cancel(false);
+        }
+        return crcs;
+    }
+
+    /**
+     * task to hash a range of segments
+     */
+    private static class HashTask implements Callable<Void> {
+        private final ApngStorage mStorage;
+        private final List<long[]> mSegments;
+        private final int mFrom;
+        private final int mTo;
+        private final int[] mCrcs;
+
+        HashTask(ApngStorage storage, List<long[]> segments, int from, int to, int[] crcs) {
+            mStorage = storage;
+            mSegments = segments;
+            mFrom = from;
+            mTo = to;
+            mCrcs = crcs;
+        }
+
+        @Override
+        public Void call() {
+            CRC32 crc = new CRC32();
+            for (int i = mFrom; i < mTo; i++) {
+                long[] segment = mSegments.get(i);
+                ByteBuffer data = mStorage.slice(segment[0], (int) segment[1]);
+                crc.reset();
+                crc.update(data);
+                mCrcs[i] = (int) crc.getValue();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package li.tengfei.apng.base;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static li.tengfei.apng.base.ApngConst.*;
+
+/**
+ * Frame read cursor of an ApngReader
+ * <p>
+ * a cursor holds only its own read pointer and head data state, the mapped data and the frame index
+ * are shared with the reader, so cursors are cheap to create and each thread can use its own cursor
+ * to read frames of the same apng file concurrently. a cursor itself is NOT thread safe.
+ * <p>
+ * each returned frame's image stream is independent, it's still readable after next frame read
+ *
+ * @author ltf
+ * @since 26/10/18, 下午2:10
+ */
+public class ApngCursor {
+    private final ApngReader mReader;
+    private final ApngMmapParserChunk mChunk;
+    private final PngStream mHeadStream = new PngStream(); // head data state of current position
+    private final AngPatchChunk mPatchChunk = new AngPatchChunk();
+
+    // located frame's info, updated by locateFrame()
+    private long mFctlOffset;
+    private boolean mUpdateIHDR;
+    private boolean mHeadChanged = true;
+    private long mActlOffset = -1;
+
+    ApngCursor(ApngReader reader) {
+        mReader = reader;
+        mChunk = new ApngMmapParserChunk(reader.getStorage());
+        reset();
+    }
+
+    /**
+     * locate next FCTL chunk and the first IDAT/fdAT chunk after it,
+     * and handle all head data chunks before them
+     *
+     * @param fctl used to hold the located FCTL chunk's info
+     * @return true if located, false if no next FCTL chunk || no next IDAT/FDAT
+     */
+    boolean locateFrame(ApngFCTLChunk fctl) throws IOException {
+        // locate next FCTL chunk
+        boolean ihdrCopied = false;
+        while (mChunk.typeCode != CODE_fcTL) {
+            if (mChunk.typeCode == CODE_IEND) return false;
+            if (mChunk.typeCode == CODE_IHDR) ihdrCopied = true;
+            handleChunk();
+            mChunk.parseNext();
+        }
+
+        // located at FCTL chunk
+        mFctlOffset = mChunk.getOffset();
+        mChunk.assignTo(fctl);
+
+        // locate next IDAT or fdAT chunk
+        mChunk.parseNext();// first move next from current FCTL
+        while (mChunk.typeCode != CODE_IDAT && mChunk.typeCode != CODE_fdAT) {
+            if (mChunk.typeCode == CODE_IEND) return false;
+            if (mChunk.typeCode == CODE_IHDR) ihdrCopied = true;
+            handleChunk();
+            mChunk.parseNext();
+        }
+
+        // located at first IDAT or fdAT chunk
+        mUpdateIHDR = !ihdrCopied || mChunk.typeCode == CODE_fdAT;
+        return true;
+    }
+
+    /**
+     * handle chunks before frame data
+     */
+    private void handleChunk() throws IOException {
+        switch (mChunk.typeCode) {
+            case CODE_IHDR:
+                mHeadStream.setIHDR(mChunk.duplicateData());
+                mHeadChanged = true;
+                break;
+            case CODE_paCH:
+                mChunk.assignTo(mPatchChunk);
+                mHeadStream.applyPatches(mPatchChunk.mPatches);
+                mHeadChanged = true;
+                break;
+            case CODE_acTL:
+                if (mActlOffset < 0) mActlOffset = mChunk.getOffset();
+                mReader.handleACTL(mChunk);
+                break;
+            default:
+                if (Arrays.binarySearch(ApngReader.COPIED_TYPE_CODES, mChunk.typeCode) >= 0) {
+                    mHeadStream.setHeadData(mChunk.getTypeCode(), mChunk.duplicateData());
+                    mHeadChanged = true;
+                }
+        }
+    }
+
+    /**
+     * get next frame control info & bitmap
+     *
+     * @return next frame control info, or null if no next FCTL chunk || no next IDAT/FDAT
+     * @throws IOException
+     */
+    public ApngFrame nextFrame() throws IOException {
+        ApngFrame frame = new ApngFrame();
+        if (!locateFrame(frame)) return null;
+
+        if (mUpdateIHDR) mHeadStream.updateIHDR(frame.getWidth(), frame.getHeight());
+        PngStream stream = mHeadStream.newFrameStream();
+
+        // collect all consecutive dat chunks
+        while (mChunk.typeCode == CODE_fdAT || mChunk.typeCode == CODE_IDAT) {
+            stream.addDataChunk(newDataChunk(mChunk));
+            mChunk.parseNext();
+        }
+
+        frame.imageStream = stream;
+        return frame;
+    }
+
+    /**
+     * locate to the specified frame directly by the frame index,
+     * the following nextFrame() calls will continue from this frame
+     *
+     * @param frameIndex index of the frame, start from 0
+     * @return frame control info & bitmap, or null if frameIndex out of range
+     * @throws IOException
+     */
+    public ApngFrame seekFrame(int frameIndex) throws IOException {
+        ApngFrameIndex index = mReader.getFrameIndex();
+        if (frameIndex < 0 || frameIndex >= index.getFrameCount()) return null;
+
+        ApngFrame frame = readFrame(index, frameIndex, mChunk);
+        mHeadStream.restoreHeadState(index.getHeadState(frameIndex));
+        if (index.isUpdateIHDR(frameIndex)) mHeadStream.updateIHDR(frame.getWidth(), frame.getHeight());
+        return frame;
+    }
+
+    /**
+     * locate to the frame displayed at the specified time by the frame index,
+     * the time is wrapped by the total duration of one play
+     *
+     * @param millis time in milliseconds from the first frame's start
+     * @return frame control info & bitmap, or null if there's no frame
+     * @throws IOException
+     */
+    public ApngFrame seekTime(long millis) throws IOException {
+        return seekFrame(mReader.getFrameIndex().frameAtTime(millis));
+    }
+
+    /**
+     * locate to the first chunk, and parse it
+     */
+    public void reset() {
+        mChunk.parsePrepare(8);
+        mChunk.parse();
+    }
+
+    /**
+     * read a frame by the frame index, only the chunk's read pointer is changed,
+     * after this function, the chunk is located at the chunk after the frame's data chunks
+     */
+    static ApngFrame readFrame(ApngFrameIndex index, int frameIndex, ApngMmapParserChunk chunk)
+            throws IOException {
+        PngStream stream = new PngStream(index.getHeadState(frameIndex));
+
+        // parse FCTL chunk
+        ApngFrame frame = new ApngFrame();
+        chunk.parsePrepare(index.getFctlOffset(frameIndex));
+        chunk.parse();
+        chunk.assignTo(frame);
+
+        if (index.isUpdateIHDR(frameIndex)) stream.updateIHDR(frame.getWidth(), frame.getHeight());
+
+        // collect all consecutive dat chunks
+        chunk.parsePrepare(index.getDataOffset(frameIndex));
+        chunk.parse();
+        for (int i = index.getDataCount(frameIndex); i > 0; i--) {
+            stream.addDataChunk(newDataChunk(chunk));
+            chunk.parseNext();
+        }
+
+        frame.imageStream = stream;
+        return frame;
+    }
+
+    static ApngMmapParserChunk newDataChunk(ApngMmapParserChunk chunk) {
+        return chunk.typeCode == CODE_fdAT ? new Fdat2IdatChunk(chunk) : new ApngMmapParserChunk(chunk);
+    }
+
+    // ---- used by ApngFrameIndex to scan all frames ----
+
+    ApngMmapParserChunk getChunk() {
+        return mChunk;
+    }
+
+    long getFctlOffset() {
+        return mFctlOffset;
+    }
+
+    boolean isUpdateIHDR() {
+        return mUpdateIHDR;
+    }
+
+    long getActlOffset() {
+        return mActlOffset;
+    }
+
+    /**
+     * return whether head data changed since last call, and clear the changed flag
+     */
+    boolean clearHeadChanged() {
+        boolean changed = mHeadChanged;
+        mHeadChanged = false;
+        return changed;
+    }
+
+    PngStream getHeadStream() {
+        return mHeadStream;
+    }
+}
@@ -60,6 +60,49 @@ public class ApngFCTLChunk extends ApngDataChunk {
         return blendOp;
     }
 
+    /**
+     * set the frame's region to the whole image, for the default image without a FCTL chunk
+     */
+    void setImageSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.xOff = 0;
+        this.yOff = 0;
+    }
+
+    /**
+     * x offset on a canvas subsampled by sampleSize, see sampled()
+     */
+    public int getSampledxOff(int sampleSize) {
+        return sampled(xOff, sampleSize);
+    }
+
+    public int getSampledyOff(int sampleSize) {
+        return sampled(yOff, sampleSize);
+    }
+
+    /**
+     * width on a canvas subsampled by sampleSize, count of the frame's columns kept, may be 0 for small frames
+     */
+    public int getSampledWidth(int sampleSize) {
+        return sampled(xOff + width, sampleSize) - sampled(xOff, sampleSize);
+    }
+
+    public int getSampledHeight(int sampleSize) {
+        return sampled(yOff + height, sampleSize) - sampled(yOff, sampleSize);
+    }
+
+    /**
+     * count of sampled coordinates before coord, pixel (x, y) of a subsampled canvas is the full size
+     * canvas pixel (x * sampleSize, y * sampleSize), so it's also the subsampled size of a full size length
+     *
+     * @param coord      coordinate or length on the full size canvas
+     * @param sampleSize keep one of every sampleSize rows and columns
+     */
+    public static int sampled(int coord, int sampleSize) {
+        return (int) (((long) coord + sampleSize - 1) / sampleSize);
+    }
+
     @Override
     protected void parseData(ApngDataSupplier data) {
         this.seqNum = data.readInt();
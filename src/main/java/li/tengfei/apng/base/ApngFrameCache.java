@@ -0,0 +1,244 @@
+package li.tengfei.apng.base;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of composed frame canvases, for looping animations played again and again
+ * <p>
+ * canvases are keyed by file identity (path + size + modified time, a changed file never hits), frame index,
+ * pixel format and sample size. least recently used canvases are evicted once the byte budget is exceeded,
+ * a canvas larger than the whole budget is not cached. canvases can be kept off heap in direct buffers,
+ * to keep the heap small for long running players.
+ * <p>
+ * thread safe, a cache can be shared by many players, see ApngPlayer
+ *
+ * @author ltf
+ * @since 26/10/20, 下午10:30
+ */
+public class ApngFrameCache {
+    private final long mMaxBytes;
+    private final boolean mOffHeap;
+    private final LinkedHashMap<Key, CachedFrame> mFrames = new LinkedHashMap<>(64, 0.75f, true); // in LRU order
+    private long mBytes;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    /**
+     * cache on heap
+     *
+     * @param maxBytes budget of total bytes of cached canvases
+     */
+    public ApngFrameCache(long maxBytes) {
+        this(maxBytes, false);
+    }
+
+    /**
+     * @param maxBytes budget of total bytes of cached canvases
+     * @param offHeap  keep canvases in direct buffers
+     */
+    public ApngFrameCache(long maxBytes, boolean offHeap) {
+        if (maxBytes < 0) throw new IllegalArgumentException("budget must not be negative");
+        mMaxBytes = maxBytes;
+        mOffHeap = offHeap;
+    }
+
+    /**
+     * identity of the file's current content, to build keys of it's frames
+     */
+    public static FileId identify(File file) {
+        return new FileId(file.getAbsolutePath(), file.length(), file.lastModified());
+    }
+
+    /**
+     * get a cached canvas, and mark it recently used
+     *
+     * @return the cached canvas, or null if not cached
+     */
+    public synchronized CachedFrame get(Key key) {
+        CachedFrame frame = mFrames.get(key);
+        if (frame == null) mMisses++;
+        else mHits++;
+        return frame;
+    }
+
+    /**
+     * cache a copy of the canvas, evict least recently used canvases if over budget
+     *
+     * @param key     key of the canvas
+     * @param pixels  canvas pixels, int[], short[] or byte[] by the key's format
+     * @param length  count of canvas pixels
+     * @param palette palette of INDEXED_8 canvas, or null
+     */
+    public void put(Key key, Object pixels, int length, int[] palette) {
+        int bytes = length * PixelFormat.bytesPerPixel(key.mFormat);
+        if (bytes > mMaxBytes) return;
+        CachedFrame frame = new CachedFrame(copy(pixels, length, key.mFormat), length, bytes, palette);
+        synchronized (this) {
+            CachedFrame old = mFrames.put(key, frame);
+            if (old != null) mBytes -= old.mBytes;
+            mBytes += bytes;
+            Iterator<CachedFrame> it = mFrames.values().iterator();
+            while (mBytes > mMaxBytes && it.hasNext()) {
+                mBytes -= it.next().mBytes;
+                it.remove();
+                mEvictions++;
+            }
+        }
+    }
+
+    private Object copy(Object pixels, int length, int format) {
+        if (!mOffHeap) {
+            if (pixels instanceof int[]) return ((int[]) pixels).clone();
+            if (pixels instanceof short[]) return ((short[]) pixels).clone();
+            return ((byte[]) pixels).clone();
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(length * PixelFormat.bytesPerPixel(format))
+                .order(ByteOrder.nativeOrder());
+        if (pixels instanceof int[]) buf.asIntBuffer().put((int[]) pixels, 0, length);
+        else if (pixels instanceof short[]) buf.asShortBuffer().put((short[]) pixels, 0, length);
+        else buf.put((byte[]) pixels, 0, length).rewind(); // the relative put moved the position
+        return buf;
+    }
+
+    /**
+     * remove all cached canvases, statistics are kept
+     */
+    public synchronized void clear() {
+        mFrames.clear();
+        mBytes = 0;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * total bytes of cached canvases
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized int getFrameCount() {
+        return mFrames.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    /**
+     * identity of a file's content
+     */
+    public static final class FileId {
+        private final String mPath;
+        private final long mSize;
+        private final long mModified;
+
+        FileId(String path, long size, long modified) {
+            mPath = path;
+            mSize = size;
+            mModified = modified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FileId)) return false;
+            FileId id = (FileId) o;
+            return mSize == id.mSize && mModified == id.mModified && mPath.equals(id.mPath);
+        }
+
+        @Override
+        public int hashCode() {
+            return mPath.hashCode() * 31 + Long.hashCode(mSize ^ mModified);
+        }
+    }
+
+    /**
+     * key of a composed canvas
+     */
+    public static final class Key {
+        private final FileId mFile;
+        private final int mFrameIndex;
+        private final int mFormat;
+        private final int mSampleSize;
+
+        /**
+         * @param file       identity of the apng file, see identify()
+         * @param frameIndex index of the frame composed last on the canvas
+         * @param format     canvas pixel format, one of PixelFormat's formats
+         * @param sampleSize canvas sample size
+         */
+        public Key(FileId file, int frameIndex, int format, int sampleSize) {
+            mFile = file;
+            mFrameIndex = frameIndex;
+            mFormat = format;
+            mSampleSize = sampleSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return mFrameIndex == key.mFrameIndex && mFormat == key.mFormat && mSampleSize == key.mSampleSize
+                    && mFile.equals(key.mFile);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((mFile.hashCode() * 31 + mFrameIndex) * 31 + mFormat) * 31 + mSampleSize;
+        }
+    }
+
+    /**
+     * a cached canvas, immutable, still readable after evicted
+     */
+    public static final class CachedFrame {
+        private final Object mPixels; // array copy, or direct buffer
+        private final int mLength;
+        private final int mBytes;
+        private final int[] mPalette;
+
+        CachedFrame(Object pixels, int length, int bytes, int[] palette) {
+            mPixels = pixels;
+            mLength = length;
+            mBytes = bytes;
+            mPalette = palette;
+        }
+
+        /**
+         * copy the canvas pixels to dst, of the same type as the cached canvas
+         */
+        public void copyTo(Object dst) {
+            if (!(mPixels instanceof ByteBuffer)) {
+                System.arraycopy(mPixels, 0, dst, 0, mLength);
+                return;
+            }
+            ByteBuffer buf = ((ByteBuffer) mPixels).duplicate().order(ByteOrder.nativeOrder());
+            if (dst instanceof int[]) buf.asIntBuffer().get((int[]) dst, 0, mLength);
+            else if (dst instanceof short[]) buf.asShortBuffer().get((short[]) dst, 0, mLength);
+            else buf.get((byte[]) dst, 0, mLength);
+        }
+
+        /**
+         * palette of INDEXED_8 canvas, or null
+         */
+        public int[] getPalette() {
+            return mPalette;
+        }
+    }
+}
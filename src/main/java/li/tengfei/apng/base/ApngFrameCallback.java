@@ -0,0 +1,22 @@
+package li.tengfei.apng.base;
+
+import java.io.IOException;
+
+/**
+ * Callback to receive extracted frames
+ *
+ * @author ltf
+ * @since 26/10/18, 下午4:20
+ */
+public interface ApngFrameCallback {
+
+    /**
+     * called in frame order for each extracted frame
+     *
+     * @param frameIndex index of the frame, start from 0
+     * @param frame      frame control info, it's image stream reads from the png data
+     * @param png        the frame's standalone png file data
+     * @throws IOException stop extracting and throw it to the caller
+     */
+    void onFrame(int frameIndex, ApngFrame frame, byte[] png) throws IOException;
+}
@@ -0,0 +1,297 @@
+package li.tengfei.apng.base;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static li.tengfei.apng.base.ApngConst.CODE_IDAT;
+import static li.tengfei.apng.base.ApngConst.CODE_fdAT;
+
+/**
+ * Random access index of all apng frames
+ * <p>
+ * built by one pass scan over all chunks, holds every frame's chunk offsets, the head data
+ * state (IHDR and copied chunks with patches applied) it uses, and prefix sums of frame delays
+ *
+ * @author ltf
+ * @since 26/10/18, 上午9:40
+ */
+public class ApngFrameIndex {
+    /**
+     * lowest bit of head state value, set if IHDR should be updated by the frame's width/height
+     */
+    static final int STATE_UPDATE_IHDR = 1;
+
+    private int mFrameCount;
+    private long mActlOffset = -1;
+    private long[] mFctlOffsets;
+    private long[] mDataOffsets;
+    private int[] mDataCounts;
+    private int[] mHeadStates; // (snapshot index << 1) | STATE_UPDATE_IHDR
+    private long[] mStartTimes; // frame start time in microseconds, [mFrameCount] is the total duration
+    private PngStream.HeadState[] mSnapshots;
+
+    private ApngFrameIndex() {
+    }
+
+    /**
+     * serialized size of this index in bytes, see writeTo()
+     */
+    int getSerializedSize() {
+        int size = 16 + mFrameCount * 24 + (mFrameCount + 1) * 8;
+        for (PngStream.HeadState state : mSnapshots) {
+            size += 8 + state.data.length + state.typeCodes.length * 8;
+        }
+        return size;
+    }
+
+    /**
+     * serialize this index to the buffer, all values are in big endian
+     * <p>
+     * frameCount snapshotCount actlOffset(long)
+     * fctlOffsets[frameCount](long) dataOffsets[frameCount](long) startTimes[frameCount + 1](long)
+     * dataCounts[frameCount] headStates[frameCount]
+     * (dataLen blockCount data[dataLen] typeCodes[blockCount] lens[blockCount]) [...snapshotCount times]
+     */
+    void writeTo(ByteBuffer buf) {
+        buf.putInt(mFrameCount);
+        buf.putInt(mSnapshots.length);
+        buf.putLong(mActlOffset);
+        buf.asLongBuffer().put(mFctlOffsets, 0, mFrameCount)
+                .put(mDataOffsets, 0, mFrameCount)
+                .put(mStartTimes, 0, mFrameCount + 1);
+        buf.position(buf.position() + mFrameCount * 16 + (mFrameCount + 1) * 8);
+        buf.asIntBuffer().put(mDataCounts, 0, mFrameCount)
+                .put(mHeadStates, 0, mFrameCount);
+        buf.position(buf.position() + mFrameCount * 8);
+        for (PngStream.HeadState state : mSnapshots) {
+            buf.putInt(state.data.length);
+            buf.putInt(state.typeCodes.length);
+            buf.put(state.data);
+            buf.asIntBuffer().put(state.typeCodes).put(state.lens);
+            buf.position(buf.position() + state.typeCodes.length * 8);
+        }
+    }
+
+    /**
+     * deserialize an index from the buffer written by writeTo()
+     *
+     * @throws FormatNotSupportException if the data is not a valid index
+     */
+    static ApngFrameIndex readFrom(ByteBuffer buf) throws FormatNotSupportException {
+        try {
+            ApngFrameIndex index = new ApngFrameIndex();
+            int frameCount = buf.getInt();
+            int snapshotCount = buf.getInt();
+            index.mActlOffset = buf.getLong();
+            if (frameCount < 0 || snapshotCount < 0 || frameCount > buf.remaining() / 32) {
+                throw new FormatNotSupportException("Broken frame index");
+            }
+
+            index.mFrameCount = frameCount;
+            index.mFctlOffsets = new long[frameCount];
+            index.mDataOffsets = new long[frameCount];
+            index.mStartTimes = new long[frameCount + 1];
+            index.mDataCounts = new int[frameCount];
+            index.mHeadStates = new int[frameCount];
+            buf.asLongBuffer().get(index.mFctlOffsets)
+                    .get(index.mDataOffsets)
+                    .get(index.mStartTimes);
+            buf.position(buf.position() + frameCount * 16 + (frameCount + 1) * 8);
+            buf.asIntBuffer().get(index.mDataCounts)
+                    .get(index.mHeadStates);
+            buf.position(buf.position() + frameCount * 8);
+
+            index.mSnapshots = new PngStream.HeadState[snapshotCount];
+            for (int i = 0; i < snapshotCount; i++) {
+                int dataLen = buf.getInt();
+                int blockCount = buf.getInt();
+                if (dataLen < 0 || blockCount < 0 || dataLen + blockCount * 8L > buf.remaining()) {
+                    throw new FormatNotSupportException("Broken frame index");
+                }
+                byte[] data = new byte[dataLen];
+                int[] typeCodes = new int[blockCount];
+                int[] lens = new int[blockCount];
+                buf.get(data);
+                buf.asIntBuffer().get(typeCodes).get(lens);
+                buf.position(buf.position() + blockCount * 8);
+                index.mSnapshots[i] = new PngStream.HeadState(data, typeCodes, lens);
+            }
+
+            for (int i = 0; i < frameCount; i++) {
+                if (index.mHeadStates[i] >>> 1 >= snapshotCount) {
+                    throw new FormatNotSupportException("Broken frame index");
+                }
+            }
+            return index;
+        } catch (RuntimeException e) {
+            // BufferUnderflowException, IndexOutOfBoundsException etc.
+            throw new FormatNotSupportException("Broken frame index: " + e);
+        }
+    }
+
+    /**
+     * scan all chunks from the first chunk (IHDR) and build the index
+     */
+    static ApngFrameIndex build(ApngReader reader) throws IOException {
+        ApngFrameIndex index = new ApngFrameIndex();
+        index.scan(new ApngCursor(reader));
+        return index;
+    }
+
+    /**
+     * compute a frame's delay in microseconds,
+     * if delayDen is 0, the denominator is treated as 100 (as the apng spec)
+     */
+    static long delayMicros(int delayNum, int delayDen) {
+        int num = delayNum & 0xFFFF;
+        int den = delayDen & 0xFFFF;
+        if (den == 0) den = 100;
+        return num * 1000000L / den;
+    }
+
+    private void scan(ApngCursor cursor) throws IOException {
+        int capacity = 16;
+        mFctlOffsets = new long[capacity];
+        mDataOffsets = new long[capacity];
+        mDataCounts = new int[capacity];
+        mHeadStates = new int[capacity];
+        mStartTimes = new long[capacity + 1];
+
+        ArrayList<PngStream.HeadState> snapshots = new ArrayList<>();
+        ApngFCTLChunk fctl = new ApngFCTLChunk();
+        ApngMmapParserChunk chunk = cursor.getChunk();
+        while (cursor.locateFrame(fctl)) {
+            // snapshot head data before IHDR updated by the frame
+            if (cursor.clearHeadChanged()) snapshots.add(cursor.getHeadStream().saveHeadState());
+            boolean updateIHDR = cursor.isUpdateIHDR();
+            if (updateIHDR) cursor.getHeadStream().updateIHDR(fctl.getWidth(), fctl.getHeight());
+
+            // count all consecutive dat chunks
+            long dataOffset = chunk.getOffset();
+            int dataCount = 0;
+            while (chunk.typeCode == CODE_fdAT || chunk.typeCode == CODE_IDAT) {
+                dataCount++;
+                chunk.parseNext();
+            }
+
+            if (mFrameCount == capacity) capacity = ensureCapacity(capacity << 1);
+            mFctlOffsets[mFrameCount] = cursor.getFctlOffset();
+            mDataOffsets[mFrameCount] = dataOffset;
+            mDataCounts[mFrameCount] = dataCount;
+            mHeadStates[mFrameCount] = (snapshots.size() - 1) << 1 | (updateIHDR ? STATE_UPDATE_IHDR : 0);
+            mStartTimes[mFrameCount + 1] = mStartTimes[mFrameCount] +
+                    delayMicros(fctl.getDelayNum(), fctl.getDelayDen());
+            mFrameCount++;
+        }
+        mActlOffset = cursor.getActlOffset();
+        mSnapshots = snapshots.toArray(new PngStream.HeadState[snapshots.size()]);
+    }
+
+    private int ensureCapacity(int capacity) {
+        mFctlOffsets = Arrays.copyOf(mFctlOffsets, capacity);
+        mDataOffsets = Arrays.copyOf(mDataOffsets, capacity);
+        mDataCounts = Arrays.copyOf(mDataCounts, capacity);
+        mHeadStates = Arrays.copyOf(mHeadStates, capacity);
+        mStartTimes = Arrays.copyOf(mStartTimes, capacity + 1);
+        return capacity;
+    }
+
+    /**
+     * count of indexed frames
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * acTL chunk's offset, or -1 if there's no acTL chunk
+     */
+    long getActlOffset() {
+        return mActlOffset;
+    }
+
+    /**
+     * fcTL chunk's offset of the frame
+     */
+    long getFctlOffset(int frame) {
+        return mFctlOffsets[frame];
+    }
+
+    /**
+     * first IDAT/fdAT chunk's offset of the frame
+     */
+    long getDataOffset(int frame) {
+        return mDataOffsets[frame];
+    }
+
+    /**
+     * count of consecutive IDAT/fdAT chunks of the frame
+     */
+    int getDataCount(int frame) {
+        return mDataCounts[frame];
+    }
+
+    /**
+     * head data snapshot used by the frame
+     */
+    PngStream.HeadState getHeadState(int frame) {
+        return mSnapshots[mHeadStates[frame] >>> 1];
+    }
+
+    /**
+     * whether the IHDR should be updated by the frame's width/height
+     */
+    boolean isUpdateIHDR(int frame) {
+        return (mHeadStates[frame] & STATE_UPDATE_IHDR) != 0;
+    }
+
+    /**
+     * start time of the frame in milliseconds
+     */
+    public long getFrameStartTime(int frame) {
+        return mStartTimes[frame] / 1000;
+    }
+
+    /**
+     * start time of the frame in microseconds, the duration of one play for frame == frame count
+     */
+    long getStartMicros(int frame) {
+        return mStartTimes[frame];
+    }
+
+    /**
+     * total duration of one play in milliseconds
+     */
+    public long getDuration() {
+        return mStartTimes[mFrameCount] / 1000;
+    }
+
+    /**
+     * locate the frame displayed at the time, the time is wrapped by the total duration
+     *
+     * @param millis time in milliseconds from the first frame's start
+     * @return frame index, or -1 if no frame indexed
+     */
+    public int frameAtTime(long millis) {
+        if (mFrameCount == 0) return -1;
+        long total = mStartTimes[mFrameCount];
+        if (total <= 0) return 0;
+        long t = millis * 1000 % total;
+        if (t < 0) t += total;
+
+        // binary search the last frame whose start time <= t
+        int low = 0;
+        int high = mFrameCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mStartTimes[mid] <= t) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
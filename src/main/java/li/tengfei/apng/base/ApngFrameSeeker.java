@@ -0,0 +1,323 @@
+package li.tengfei.apng.base;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Random access to composed frames, by keyframe checkpoints of the compositor
+ * <p>
+ * the canvas of frame N depends on all frames since the last frame replacing the whole canvas.
+ * such key frames (full canvas, SOURCE blend, not PREVIOUS disposal) are found when the seeker is created,
+ * composing from them needs no saved state. between them, the compositor state is saved as a checkpoint
+ * at every interval-th frame composed, so seekFrame(N) composes at most interval frames from the latest
+ * checkpoint, key frame or current frame before N.
+ * <p>
+ * checkpoints are only saved for frames composed, so the bound holds for frames after ranges already visited:
+ * the first seek far from a key frame composes all frames from it. call precompute() once to compose all
+ * frames ahead, then the bound holds for every seek.
+ * <p>
+ * checkpoints are kept within a memory budget: once it's exceeded, the interval is doubled and every other
+ * checkpoint is dropped, so the replay bound stays even. checkpoints can be deflate compressed, which trades
+ * some seek time for much more checkpoints in the budget, as canvases are usually very compressible.
+ * <p>
+ * !!! ATTENTION !!! not thread safe, and call release() after use
+ *
+ * @author ltf
+ * @since 26/10/20, 下午11:40
+ */
+public class ApngFrameSeeker {
+    public static final int DEFAULT_INTERVAL = 16;
+    public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+    private final ApngCompositor mCompositor;
+    private final ApngCursor mCursor;
+    private final int mFrameCount;
+    private final BitSet mKeyFrames;
+    private final TreeMap<Integer, Checkpoint> mCheckpoints = new TreeMap<>();
+    private final long mMaxBytes;
+    private final boolean mCompressed;
+    private int mInterval;
+    private long mBytes;
+    private int mComposed = -1; // frame composed last on the canvas, -1 for none
+    private int mCursorNext;    // frame read by the cursor's nextFrame()
+    private int mReplayed;      // frames composed by last seekFrame()
+    private Deflater mDeflater;
+    private Inflater mInflater;
+    private byte[] mBuffer;     // canvas bytes for compression
+    private Object mRestored;   // inflated canvas of compressed checkpoints
+
+    public ApngFrameSeeker(ApngReader reader, ApngCompositor compositor) throws IOException {
+        this(reader, compositor, DEFAULT_INTERVAL, DEFAULT_MAX_BYTES, false);
+    }
+
+    /**
+     * @param reader     reader of the apng file
+     * @param compositor compositor of the canvas, of any format, sample size and region, owned by the seeker
+     * @param interval   frames between checkpoints, the max frames composed by a seek
+     * @param maxBytes   memory budget of checkpoints
+     * @param compressed deflate compress checkpoints
+     */
+    public ApngFrameSeeker(ApngReader reader, ApngCompositor compositor, int interval, long maxBytes,
+                           boolean compressed) throws IOException {
+        if (interval < 1) throw new IllegalArgumentException("interval must be positive");
+        mCompositor = compositor;
+        mFrameCount = reader.getFrameIndex().getFrameCount();
+        mInterval = interval;
+        mMaxBytes = maxBytes;
+        mCompressed = compressed;
+
+        mKeyFrames = compositor.findKeyFrames(reader);
+        mCursor = reader.newCursor();
+    }
+
+    public ApngCompositor getCompositor() {
+        return mCompositor;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * current frames between checkpoints, it grows when the budget is exceeded
+     */
+    public int getInterval() {
+        return mInterval;
+    }
+
+    public int getCheckpointCount() {
+        return mCheckpoints.size();
+    }
+
+    /**
+     * memory used by checkpoints
+     */
+    public long getCheckpointBytes() {
+        return mBytes;
+    }
+
+    /**
+     * count of frames composed by last seekFrame()
+     */
+    public int getReplayedFrames() {
+        return mReplayed;
+    }
+
+    /**
+     * compose the canvas of the frame
+     *
+     * @param frameIndex index of the frame, start from 0
+     * @return the canvas like ApngCompositor.compose(), the canvas of other formats is read from the compositor
+     * @throws IOException               if the image data is broken, or frameIndex out of range
+     * @throws FormatNotSupportException if the image format is not supported
+     */
+    public int[] seekFrame(int frameIndex) throws IOException, FormatNotSupportException {
+        if (frameIndex < 0 || frameIndex >= mFrameCount) throw new IOException("Frame index out of range");
+
+        // start after the latest state before the frame: current frame, checkpoint, or before key frame
+        int key = mKeyFrames.previousSetBit(frameIndex);
+        Map.Entry<Integer, Checkpoint> checkpoint = mCheckpoints.floorEntry(frameIndex);
+        if (checkpoint != null && checkpoint.getKey() < key) checkpoint = null; // the key frame is later
+        int from = checkpoint != null ? checkpoint.getKey() + 1 : Math.max(key, 0);
+        if (mComposed >= 0 && mComposed <= frameIndex && mComposed + 1 >= from) {
+            from = mComposed + 1;
+        } else if (checkpoint != null) {
+            restore(checkpoint.getValue());
+            mComposed = checkpoint.getKey();
+        } else if (key < 0) {
+            mCompositor.reset();
+        }
+        // else compose from the key frame, regardless of the canvas
+
+        mReplayed = frameIndex - from + 1;
+        composeRange(from, frameIndex);
+        switch (PixelFormat.bytesPerPixel(mCompositor.getFormat())) {
+            case 4:
+                return mCompositor.getCanvas();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * compose all frames once to save checkpoints ahead, so any later seek composes at most interval frames.
+     * it costs a full decode of the animation, the canvas is the last frame's after it
+     *
+     * @throws IOException               if the image data is broken
+     * @throws FormatNotSupportException if the image format is not supported
+     */
+    public void precompute() throws IOException, FormatNotSupportException {
+        mCompositor.reset();
+        composeRange(0, mFrameCount - 1);
+    }
+
+    /**
+     * compose frames from..to on the canvas composed till frame from - 1, save checkpoints at the interval
+     */
+    private void composeRange(int from, int to) throws IOException, FormatNotSupportException {
+        for (int i = from; i <= to; i++) {
+            int next = mCursorNext;
+            mCursorNext = -1; // unknown cursor position if failed
+            ApngFrame frame = i == next ? mCursor.nextFrame() : mCursor.seekFrame(i);
+            if (frame == null) throw new IOException("Frame " + i + " not found");
+            mCursorNext = i + 1;
+            mComposed = -1; // unknown state if failed
+            mCompositor.compose(frame);
+            mComposed = i;
+            if (i % mInterval == 0 && i > 0 && !mKeyFrames.get(i) && !mCheckpoints.containsKey(i)) save(i);
+        }
+    }
+
+    /**
+     * save a checkpoint of the composed frame, keep checkpoints in the budget
+     */
+    private void save(int frameIndex) {
+        ApngCompositor.State state = mCompositor.saveState();
+        Checkpoint checkpoint = new Checkpoint(state);
+        if (mCompressed) {
+            int length = mCompositor.getWidth() * mCompositor.getHeight();
+            checkpoint.mCompressed = deflate(state.canvas, length);
+            state.canvas = null;
+        }
+        checkpoint.mBytes = checkpoint.size(PixelFormat.bytesPerPixel(mCompositor.getFormat()));
+        if (checkpoint.mBytes > mMaxBytes) return;
+        mCheckpoints.put(frameIndex, checkpoint);
+        mBytes += checkpoint.mBytes;
+
+        while (mBytes > mMaxBytes) {
+            mInterval <<= 1;
+            Iterator<Map.Entry<Integer, Checkpoint>> it = mCheckpoints.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Checkpoint> entry = it.next();
+                if (entry.getKey() % mInterval != 0) {
+                    mBytes -= entry.getValue().mBytes;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private void restore(Checkpoint checkpoint) throws IOException {
+        ApngCompositor.State state = checkpoint.mState;
+        if (checkpoint.mCompressed != null) {
+            state.canvas = inflate(checkpoint.mCompressed);
+            try {
+                mCompositor.restoreState(state);
+            } finally {
+                state.canvas = null;
+            }
+        } else {
+            mCompositor.restoreState(state);
+        }
+    }
+
+    /**
+     * canvas bytes in native order, for compression
+     */
+    private byte[] canvasBuffer(int bytes) {
+        if (mBuffer == null || mBuffer.length < bytes) mBuffer = new byte[bytes];
+        return mBuffer;
+    }
+
+    private byte[] deflate(Object canvas, int length) {
+        int bytes = length * PixelFormat.bytesPerPixel(mCompositor.getFormat());
+        byte[] raw = canvasBuffer(bytes);
+        ByteBuffer buf = ByteBuffer.wrap(raw).order(ByteOrder.nativeOrder());
+        if (canvas instanceof int[]) buf.asIntBuffer().put((int[]) canvas, 0, length);
+        else if (canvas instanceof short[]) buf.asShortBuffer().put((short[]) canvas, 0, length);
+        else buf.put((byte[]) canvas, 0, length);
+
+        if (mDeflater == null) mDeflater = new Deflater(Deflater.BEST_SPEED);
+        mDeflater.reset();
+        mDeflater.setInput(raw, 0, bytes);
+        mDeflater.finish();
+        byte[] out = new byte[Math.max(64, bytes / 8)];
+        int size = 0;
+        while (!mDeflater.finished()) {
+            if (size == out.length) out = Arrays.copyOf(out, out.length << 1);
+            size += mDeflater.deflate(out, size, out.length - size);
+        }
+        return Arrays.copyOf(out, size);
+    }
+
+    private Object inflate(byte[] compressed) throws IOException {
+        int length = mCompositor.getWidth() * mCompositor.getHeight();
+        int bytes = length * PixelFormat.bytesPerPixel(mCompositor.getFormat());
+        byte[] raw = canvasBuffer(bytes);
+        if (mInflater == null) mInflater = new Inflater();
+        mInflater.reset();
+        mInflater.setInput(compressed);
+        try {
+            int size = 0;
+            while (size < bytes && !mInflater.finished()) {
+                int n = mInflater.inflate(raw, size, bytes - size);
+                if (n == 0 && mInflater.needsInput()) break;
+                size += n;
+            }
+            if (size != bytes) throw new IOException("Broken checkpoint");
+        } catch (DataFormatException e) {
+            throw new IOException("Broken checkpoint", e);
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(raw, 0, bytes).order(ByteOrder.nativeOrder());
+        switch (PixelFormat.bytesPerPixel(mCompositor.getFormat())) {
+            case 4:
+                if (mRestored == null) mRestored = new int[length];
+                buf.asIntBuffer().get((int[]) mRestored);
+                break;
+            case 2:
+                if (mRestored == null) mRestored = new short[length];
+                buf.asShortBuffer().get((short[]) mRestored);
+                break;
+            default:
+                if (mRestored == null) mRestored = new byte[length];
+                buf.get((byte[]) mRestored);
+        }
+        return mRestored;
+    }
+
+    /**
+     * drop all checkpoints, and release the compositor, the seeker is not usable after released
+     */
+    public void release() {
+        mCheckpoints.clear();
+        mBytes = 0;
+        if (mDeflater != null) mDeflater.end();
+        if (mInflater != null) mInflater.end();
+        mCompositor.release();
+    }
+
+    /**
+     * a saved compositor state, the canvas is compressed if enabled
+     */
+    private static class Checkpoint {
+        final ApngCompositor.State mState;
+        byte[] mCompressed; // compressed canvas, or null
+        long mBytes;
+
+        Checkpoint(ApngCompositor.State state) {
+            mState = state;
+        }
+
+        long size(int bytesPerPixel) {
+            long bytes = mCompressed != null ? mCompressed.length : (long) length(mState.canvas) * bytesPerPixel;
+            return bytes + (long) length(mState.previous) * bytesPerPixel;
+        }
+
+        private static int length(Object pixels) {
+            if (pixels == null) return 0;
+            if (pixels instanceof int[]) return ((int[]) pixels).length;
+            if (pixels instanceof short[]) return ((short[]) pixels).length;
+            return ((byte[]) pixels).length;
+        }
+    }
+}
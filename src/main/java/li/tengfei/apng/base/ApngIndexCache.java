@@ -0,0 +1,148 @@
+package li.tengfei.apng.base;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent frame index cache directory
+ * <p>
+ * each apng file's index is stored as a small sidecar file named by the apng file's
+ * size + last modified time + header hash, so it can be mapped and trusted at the next open
+ * without scanning all chunks again
+ * <p>
+ * sidecar layout (big endian):
+ * magic version fileSize lastModified headerHash payloadLen payload[payloadLen] payloadCrc
+ *
+ * @author ltf
+ * @since 26/10/18, 上午11:05
+ */
+public class ApngIndexCache {
+    public static final int INDEX_MAGIC = 0x41494458; // "AIDX"
+    public static final int INDEX_VERSION = 2;
+    public static final String INDEX_SUFFIX = ".aidx";
+
+    /**
+     * bytes at the head of the apng file used to calculate the header hash
+     */
+    public static final int HEADER_HASH_LEN = 64 * 1024;
+
+    private static final int HEAD_LEN = 32;
+
+    private final File mDir;
+
+    public ApngIndexCache(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * calculate the header hash of the apng file data
+     */
+    static int headerHash(ApngStorage fileData) {
+        CRC32 crc = new CRC32();
+        crc.update(fileData.slice(0, (int) Math.min(fileData.size(), HEADER_HASH_LEN)));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * sidecar file of the apng file
+     */
+    File indexFile(File apngFile, int headerHash) {
+        return new File(mDir, String.format("%016x-%016x-%08x%s",
+                apngFile.length(), apngFile.lastModified(), headerHash, INDEX_SUFFIX));
+    }
+
+    /**
+     * load the index of the apng file
+     *
+     * @param apngFile apng file
+     * @param fileData the mapped apng file data
+     * @return the frame index, or null if not cached or the cached one is invalid
+     */
+    ApngFrameIndex load(File apngFile, ApngStorage fileData) throws IOException {
+        int headerHash = headerHash(fileData);
+        File indexFile = indexFile(apngFile, headerHash);
+        if (!indexFile.isFile()) return null;
+
+        MappedByteBuffer buf;
+        RandomAccessFile f = new RandomAccessFile(indexFile, "r");
+        try {
+            if (f.length() < HEAD_LEN + 4) return null;
+            buf = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+        } finally {
+            f.close();
+        }
+
+        if (buf.getInt() != INDEX_MAGIC
+                || buf.getInt() != INDEX_VERSION
+                || buf.getLong() != apngFile.length()
+                || buf.getLong() != apngFile.lastModified()
+                || buf.getInt() != headerHash) {
+            return null;
+        }
+        int payloadLen = buf.getInt();
+        if (payloadLen < 0 || payloadLen != buf.remaining() - 4) return null;
+
+        ByteBuffer payload = buf.slice();
+        payload.limit(payloadLen);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != buf.getInt(HEAD_LEN + payloadLen)) return null;
+
+        try {
+            return ApngFrameIndex.readFrom(payload);
+        } catch (FormatNotSupportException e) {
+            return null;
+        }
+    }
+
+    /**
+     * store the index of the apng file, the sidecar file is written to a temp file then renamed
+     *
+     * @param apngFile apng file
+     * @param fileData the mapped apng file data
+     * @param index    frame index of the apng file
+     */
+    void store(File apngFile, ApngStorage fileData, ApngFrameIndex index) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Can't create index cache directory: " + mDir);
+        }
+
+        int payloadLen = index.getSerializedSize();
+        ByteBuffer buf = ByteBuffer.allocate(HEAD_LEN + payloadLen + 4);
+        buf.putInt(INDEX_MAGIC);
+        buf.putInt(INDEX_VERSION);
+        buf.putLong(apngFile.length());
+        buf.putLong(apngFile.lastModified());
+        int headerHash = headerHash(fileData);
+        buf.putInt(headerHash);
+        buf.putInt(payloadLen);
+        index.writeTo(buf);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), HEAD_LEN, payloadLen);
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+
+        File indexFile = indexFile(apngFile, headerHash);
+        File tmpFile = File.createTempFile(indexFile.getName(), ".tmp", mDir);
+        try {
+            RandomAccessFile f = new RandomAccessFile(tmpFile, "rw");
+            try {
+                FileChannel channel = f.getChannel();
+                while (buf.hasRemaining()) channel.write(buf);
+            } finally {
+                f.close();
+            }
+            Files.move(tmpFile.toPath(), indexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if (tmpFile.exists()) tmpFile.delete();
+        }
+    }
+}
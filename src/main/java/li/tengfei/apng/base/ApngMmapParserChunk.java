@@ -1,65 +1,77 @@
 package li.tengfei.apng.base;
 
 import java.io.IOException;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
 
 /**
- * Parsable Apng Chunk Over MappedByteBuffer
+ * Parsable Apng Chunk Over MappedByteBuffer (or any ApngStorage holds the chunks)
  *
  * @author ltf
  * @since 16/11/26, 下午12:11
  */
 public class ApngMmapParserChunk extends ApngPaserChunk {
-    // data buffer
-    protected final MappedByteBuffer mBuf;
+    // data storage, shared by all chunks, only absolute read used
+    protected final ApngStorage mData;
 
-    // used to store the read pointer when Read Chunk As Stream
-    // when lastPos>=0, it's locked, else if lastPost=-1, it's not locked
-    private int lastPos = -1;
+    // read pointer of this chunk
+    protected long mPos;
 
-    public ApngMmapParserChunk(MappedByteBuffer mBuf) {
-        this.mBuf = mBuf;
+    public ApngMmapParserChunk(ByteBuffer buf) {
+        this(ApngStorage.wrap(buf));
     }
 
+    public ApngMmapParserChunk(ApngStorage data) {
+        this.mData = data;
+    }
+
+    /**
+     * copy a chunk, the read pointer of the copied chunk is at the chunk's head for read as stream
+     */
     ApngMmapParserChunk(ApngMmapParserChunk copyFromChunk) {
         super(copyFromChunk);
-        this.mBuf = copyFromChunk.mBuf;
-        lastPos = copyFromChunk.lastPos;
+        this.mData = copyFromChunk.mData;
+        this.mPos = offset;
     }
 
     @Override
-    public void parsePrepare(int offset) {
+    public void parsePrepare(long offset) {
         super.parsePrepare(offset);
-        mBuf.position(offset);
-        lastPos = -1; // parse prepare will clear readLock
+        mPos = offset;
     }
 
     @Override
     public int readInt() {
-        return mBuf.getInt();
+        int val = mData.getInt(mPos);
+        mPos += 4;
+        return val;
     }
 
     @Override
     public short readShort() {
-        return mBuf.getShort();
+        short val = mData.getShort(mPos);
+        mPos += 2;
+        return val;
     }
 
     @Override
     public byte readByte() {
-        return mBuf.get();
+        return mData.get(mPos++);
     }
 
     @Override
     public int read(byte[] dst, int dstOffset, int size) {
-        int count = mBuf.remaining();
-        count = count < size ? count : size;
-        mBuf.get(dst, dstOffset, count);
+        long remaining = mData.size() - mPos;
+        int count = remaining < size ? (int) remaining : size;
+        mData.get(mPos, dst, dstOffset, count);
+        mPos += count;
         return count;
     }
 
     @Override
     public void move(int distance) {
-        mBuf.position(mBuf.position() + distance);
+        mPos += distance;
     }
 
     /**
@@ -70,35 +82,16 @@ public class ApngMmapParserChunk extends ApngPaserChunk {
     }
 
     /**
-     * save current read pointer, and reset it to data section's head for read
-     */
-    void lockRead() {
-        lastPos = mBuf.position();
-        mBuf.position(offset);
-    }
-
-    /**
-     * save current read pointer, and set it to specified startOffset for read
+     * reset read pointer to chunk's head for read as stream
      */
-    void lockRead(int startOffset) {
-        lastPos = mBuf.position();
-        mBuf.position(startOffset);
-    }
-
-    /**
-     * restore read pointer lastPosition before call readAsStream()
-     */
-    void unlockRead() {
-        if (lastPos >= 0) {
-            mBuf.position(lastPos);
-            lastPos = -1;
-        }
+    void resetRead() {
+        mPos = offset;
     }
 
     /**
      * read data to buffer array
      * <p>
-     * !!! ATTENTION: must call lockRead() to move read pointer to head before call this function
+     * !!! ATTENTION: must call resetRead() to move read pointer to head before the first read
      *
      * @param buffer     target buffer array
      * @param byteOffset offset at target buffer array
@@ -107,24 +100,54 @@ public class ApngMmapParserChunk extends ApngPaserChunk {
      * @throws IOException
      */
     int readAsStream(byte[] buffer, int byteOffset, int byteCount) throws IOException {
-        int size = nextOffset - mBuf.position();
-        if (size <= 0) return 0;
-        size = size > byteCount ? byteCount : size;
+        long remaining = nextOffset - mPos;
+        if (remaining <= 0) return 0;
+        int size = remaining > byteCount ? byteCount : (int) remaining;
 
-        mBuf.get(buffer, byteOffset, size);
+        mData.get(mPos, buffer, byteOffset, size);
+        mPos += size;
         return size;
     }
 
+    /**
+     * add the chunk as a stream's data to the list as buffers, without copy the data
+     */
+    void collectBuffers(List<ByteBuffer> buffers) {
+        buffers.add(mData.slice(offset, getStreamLen()));
+    }
+
+    /**
+     * get the chunk's image data (compressed data of IDAT) as a buffer without copy
+     */
+    ByteBuffer dataBuffer() {
+        return mData.slice(offset + 8, length);
+    }
+
+    /**
+     * whether the chunk as a stream is the same as it's in the file,
+     * only unchanged chunks can be forwarded by FileChannel.transferTo
+     */
+    boolean isStreamUnchanged() {
+        return true;
+    }
+
+    /**
+     * channel of the mapped file, maybe null
+     */
+    FileChannel getSource() {
+        return mData.getChannel();
+    }
+
     /**
      * assign to a data chunk to holder the data
      */
     void assignTo(ApngDataChunk dataChunk) {
-        int pos = mBuf.position();
-        mBuf.position(offset);
+        long pos = mPos;
+        mPos = offset;
         try {
             dataChunk.parse(this);
         } finally {
-            mBuf.position(pos);
+            mPos = pos;
         }
     }
 
@@ -133,9 +156,7 @@ public class ApngMmapParserChunk extends ApngPaserChunk {
      */
     public byte[] duplicateData() throws IOException {
         byte[] data = new byte[getStreamLen()];
-        lockRead();
-        readAsStream(data, 0, data.length);
-        unlockRead();
+        mData.get(offset, data, 0, data.length);
         return data;
     }
 }
@@ -11,10 +11,10 @@ import static li.tengfei.apng.base.ApngConst.CODE_IEND;
 abstract class ApngPaserChunk extends ApngChunk implements ApngDataSupplier {
     // chunk start offset, SHOULD NOT CHANGE AFTER PARSE PREPARED
     // used for parse and read
-    protected int offset;
+    protected long offset;
 
     // next chunk start offset, INITED AFTER CALL parse(), used for parseNext
-    protected int nextOffset;
+    protected long nextOffset;
 
     ApngPaserChunk() {
     }
@@ -25,7 +25,7 @@ abstract class ApngPaserChunk extends ApngChunk implements ApngDataSupplier {
         this.nextOffset = copyFrom.nextOffset;
     }
 
-    int getOffset() {
+    long getOffset() {
         return offset;
     }
 
@@ -33,17 +33,24 @@ abstract class ApngPaserChunk extends ApngChunk implements ApngDataSupplier {
      * set the offset before parse
      * !!! ATTENTION !!! parseNext() will start parse from current prepared offset
      */
-    public void parsePrepare(int offset) {
+    public void parsePrepare(long offset) {
         this.offset = offset;
         this.nextOffset = offset;
     }
 
+    /**
+     * int offset variant of parsePrepare(long), kept for callers built against the int offset api
+     */
+    public void parsePrepare(int offset) {
+        parsePrepare((long) offset);
+    }
+
     /**
      * parse chunk info,
      * and return next chunk's start position, or return -1 if this is the last chunk
      * ATTENTION: must call parsePrepare() to init the offset before call this function
      */
-    public int parse() {
+    public long parse() {
         length = readInt();
         typeCode = readInt();
         parseData();
@@ -69,7 +76,7 @@ abstract class ApngPaserChunk extends ApngChunk implements ApngDataSupplier {
      * when parsePrepare() called, parseNext() = parse(),
      * it will start parse from current prepared offset
      */
-    public int parseNext() {
+    public long parseNext() {
         parsePrepare(nextOffset);
         return parse();
     }
@@ -78,7 +85,7 @@ abstract class ApngPaserChunk extends ApngChunk implements ApngDataSupplier {
      * parse info from next chunk, and locate for the specified typeCode chunk
      * and return next chunk's start position, or return -1 if this is the last chunk
      */
-    int locateNext(int chunkTypeCode) {
+    long locateNext(int chunkTypeCode) {
         parseNext();
         while (typeCode != chunkTypeCode && nextOffset > 0) {
             parseNext();
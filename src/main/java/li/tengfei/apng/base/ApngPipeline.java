@@ -0,0 +1,267 @@
+package li.tengfei.apng.base;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pipelined frame composing, parse, decode and composite stages run concurrently on their own threads
+ * <p>
+ * the parse thread locates frames and builds their png streams by a cursor, the decode thread inflates,
+ * unfilters and converts them to pixels, and the consumer thread composites them in nextFrame().
+ * so frame N + 1 is parsed while frame N is decoded and frame N - 1 is composited, the throughput is
+ * close to the slowest stage's rate, instead of the sum of all stages.
+ * <p>
+ * the stages are connected by one pre-allocated ring of reusable frame slots, like a disruptor: each stage
+ * publishes it's own sequence, and waits for the sequence of the stage before it (the parse stage waits for
+ * the composite stage to free slots). each sequence has a single writer, so there's no lock or CAS,
+ * waiting stages spin for a while, then park for periods growing up to a few ms, so a stage waiting long
+ * (on a slow stage, or a consumer not calling nextFrame()) doesn't keep waking up. decoded pixel buffers
+ * of the slots are reused, no pixel buffer is allocated per frame once they are large enough.
+ * <p>
+ * the canvas is ARGB_8888 or ARGB_PREMULTIPLIED, optionally subsampled. frames are played once,
+ * errors of any stage are thrown by nextFrame() in frame order.
+ * <p>
+ * usage: start(), then loop nextFrame() till it returns null, and close() at last.
+ * nextFrame() should be called by one consumer thread
+ *
+ * @author ltf
+ * @since 26/10/20, 下午7:40
+ */
+public class ApngPipeline implements Closeable {
+    public static final int DEFAULT_RING_SIZE = 4;
+
+    // spins before parking while waiting for another stage, then park periods are doubled up to the max
+    private static final int SPIN_TRIES = 200;
+    private static final long PARK_NANOS = 20_000;
+    private static final long MAX_PARK_NANOS = 2_000_000;
+
+    private final ApngReader mReader;
+    private final int mFormat;
+    private final int mSampleSize;
+    private final ApngCompositor mCompositor;
+    private final Slot[] mRing;
+    private final int mMask;
+
+    // next sequence of each stage, slot of sequence s is mRing[s & mMask]
+    private final AtomicLong mParsed = new AtomicLong();
+    private final AtomicLong mDecoded = new AtomicLong();
+    private final AtomicLong mComposited = new AtomicLong();
+
+    private volatile boolean mClosed;
+    private Thread mParseThread;
+    private Thread mDecodeThread;
+    private boolean mEnded;
+    private int mFrameIndex = -1;
+
+    public ApngPipeline(ApngReader reader) throws IOException {
+        this(reader, PixelFormat.ARGB_8888, 1, DEFAULT_RING_SIZE);
+    }
+
+    /**
+     * @param reader     reader of the apng file, it's not closed by the pipeline
+     * @param format     canvas pixel format, ARGB_8888 or ARGB_PREMULTIPLIED
+     * @param sampleSize keep one of every sampleSize rows and columns, power of 2, 1 for full size
+     * @param ringSize   count of frame slots in the ring, power of 2, at least 2
+     */
+    public ApngPipeline(ApngReader reader, int format, int sampleSize, int ringSize) throws IOException {
+        if (PixelFormat.bytesPerPixel(format) != 4) {
+            throw new IllegalArgumentException("Pipeline supports only ARGB_8888 and ARGB_PREMULTIPLIED");
+        }
+        if (ringSize < 2 || Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("ringSize must be a power of 2, at least 2");
+        }
+        mReader = reader;
+        mFormat = format;
+        mSampleSize = sampleSize;
+        ApngFrame first = reader.getFrame(0);
+        if (first == null) throw new IOException("No frame in the file");
+        mCompositor = new ApngCompositor(first.getWidth(), first.getHeight(), format, sampleSize);
+        mRing = new Slot[ringSize];
+        for (int i = 0; i < ringSize; i++) mRing[i] = new Slot();
+        mMask = ringSize - 1;
+    }
+
+    public int getWidth() {
+        return mCompositor.getWidth();
+    }
+
+    public int getHeight() {
+        return mCompositor.getHeight();
+    }
+
+    /**
+     * start the parse and decode threads
+     */
+    public synchronized void start() {
+        if (mParseThread != null) throw new IllegalStateException("Already started");
+        mParseThread = new Thread(new ParseStage(), "ApngPipeline-parse");
+        mDecodeThread = new Thread(new DecodeStage(), "ApngPipeline-decode");
+        mParseThread.setDaemon(true);
+        mDecodeThread.setDaemon(true);
+        mParseThread.start();
+        mDecodeThread.start();
+    }
+
+    /**
+     * composite the next frame on the canvas
+     *
+     * @return the canvas with the next frame composed, it's reused by later calls, or null after the last frame
+     * @throws IOException               if the image data is broken, or the pipeline is closed
+     * @throws FormatNotSupportException if the image format is not supported
+     */
+    public int[] nextFrame() throws IOException, FormatNotSupportException {
+        if (mEnded) return null;
+        // frames decoded before close() are not composed, the compositor is released
+        if (mClosed) throw new IOException("Pipeline closed");
+        long seq = mComposited.get();
+        if (!waitFor(mDecoded, seq)) throw new IOException("Pipeline closed");
+
+        Slot slot = mRing[(int) seq & mMask];
+        try {
+            if (slot.mError != null) {
+                mEnded = true;
+                if (slot.mError instanceof IOException) throw (IOException) slot.mError;
+                if (slot.mError instanceof FormatNotSupportException) throw (FormatNotSupportException) slot.mError;
+                throw new IOException("Decode frame failed", slot.mError);
+            }
+            if (slot.mFrame == null) {
+                mEnded = true;
+                return null;
+            }
+            int[] canvas = mCompositor.compose(slot.mFrame, slot.mPixels);
+            mFrameIndex++;
+            return canvas;
+        } finally {
+            slot.mFrame = null;
+            mComposited.lazySet(seq + 1);
+        }
+    }
+
+    /**
+     * index of the frame composed by last nextFrame(), or -1
+     */
+    public int getFrameIndex() {
+        return mFrameIndex;
+    }
+
+    /**
+     * stop the stage threads and release the compositor, the reader is not closed
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        Thread parse, decode;
+        synchronized (this) {
+            parse = mParseThread;
+            decode = mDecodeThread;
+        }
+        boolean interrupted = join(parse) | join(decode);
+        if (interrupted) Thread.currentThread().interrupt();
+        mCompositor.release();
+    }
+
+    private static boolean join(Thread thread) {
+        boolean interrupted = false;
+        while (thread != null && thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        return interrupted;
+    }
+
+    /**
+     * wait till the sequence passes the value
+     *
+     * @return false if the pipeline is closed
+     */
+    private boolean waitFor(AtomicLong sequence, long value) {
+        long park = PARK_NANOS;
+        for (int tries = 0; sequence.get() <= value; tries++) {
+            if (mClosed) return false;
+            if (tries < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(park);
+                if (park < MAX_PARK_NANOS) park = Math.min(park << 1, MAX_PARK_NANOS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * read frames by a cursor, and publish them to free slots.
+     * a slot with no frame marks the end, it carries the error if failed
+     */
+    private class ParseStage implements Runnable {
+        @Override
+        public void run() {
+            ApngCursor cursor = mReader.newCursor();
+            for (long seq = 0; ; seq++) {
+                if (!waitFor(mComposited, seq - mRing.length)) return;
+                Slot slot = mRing[(int) seq & mMask];
+                try {
+                    slot.mFrame = cursor.nextFrame();
+                } catch (Throwable e) {
+                    slot.mFrame = null;
+                    slot.mError = e;
+                }
+                mParsed.lazySet(seq + 1);
+                if (slot.mFrame == null) return;
+            }
+        }
+    }
+
+    /**
+     * decode the parsed frames to the slots' pixel buffers
+     */
+    private class DecodeStage implements Runnable {
+        @Override
+        public void run() {
+            FrameDecoder decoder = new FrameDecoder(mFormat);
+            decoder.setSampleSize(mSampleSize);
+            try {
+                for (long seq = 0; ; seq++) {
+                    if (!waitFor(mParsed, seq)) return;
+                    Slot slot = mRing[(int) seq & mMask];
+                    boolean end = slot.mFrame == null;
+                    if (!end) {
+                        try {
+                            decode(decoder, slot);
+                        } catch (Throwable e) {
+                            slot.mFrame = null;
+                            slot.mError = e;
+                            end = true;
+                        }
+                    }
+                    mDecoded.lazySet(seq + 1);
+                    if (end) return;
+                }
+            } finally {
+                decoder.release();
+            }
+        }
+
+        private void decode(FrameDecoder decoder, Slot slot) throws IOException, FormatNotSupportException {
+            ApngFrame frame = slot.mFrame;
+            int w = frame.getSampledWidth(mSampleSize);
+            int h = frame.getSampledHeight(mSampleSize);
+            if (w == 0 || h == 0) return; // no sampled pixel, nothing to compose
+            if (slot.mPixels == null || slot.mPixels.length < w * h) slot.mPixels = new int[w * h];
+            decoder.decode(frame, slot.mPixels, 0, w);
+        }
+    }
+
+    /**
+     * a reusable frame slot of the ring, written by one stage at a time
+     */
+    private static class Slot {
+        ApngFrame mFrame;  // parsed frame, or null for the end
+        int[] mPixels;     // decoded pixels of the frame's (subsampled) region
+        Throwable mError;  // error of the parse or decode stage
+    }
+}
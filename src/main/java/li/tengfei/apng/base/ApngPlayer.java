@@ -0,0 +1,451 @@
+package li.tengfei.apng.base;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Real time apng player engine, deliver composed frames by the animation's timeline
+ * <p>
+ * the timeline is monotonic over all plays: frame i of play p is presented at p * duration + start(i),
+ * frame delays follow the apng spec (denominator 0 means 100), and acTL's num_plays (0 for infinite) ends it.
+ * <p>
+ * frames are composed ahead on a background thread into a bounded ring of canvas buffers. frames that can't
+ * be presented in time are dropped instead of slowing the animation down: the producer doesn't deliver frames
+ * already over, and jumps to a due key frame (full canvas, SOURCE blend, not PREVIOUS disposal) if any, as the
+ * frames before it don't affect the canvas. the consumer skips ready frames already replaced by later ones.
+ * the last frame of the timeline is never dropped.
+ * <p>
+ * with a frame cache, composed canvases are cached and later plays copy them from the cache, instead of
+ * parsing, decoding and compositing them again. after a cache miss, compositing resumes from the last
+ * composed frame, or from a key frame.
+ * <p>
+ * usage: start(), then loop awaitFrame() / release() till awaitFrame() returns null, and close() at last.
+ * awaitFrame() and release() should be called by one consumer thread
+ *
+ * @author ltf
+ * @since 26/10/20, 下午5:20
+ */
+public class ApngPlayer implements Closeable {
+    public static final int DEFAULT_BUFFER_COUNT = 3;
+
+    // marks the end of the timeline in the ready queue
+    private static final Frame END = new Frame(null);
+
+    private final ApngReader mReader;
+    private final ApngFrameIndex mIndex;
+    private final int mNumPlays;
+    private final ApngCompositor mCompositor;
+    private final BitSet mKeyFrames; // frames replacing the whole canvas
+    private final ApngFrameCache mCache;
+    private final ApngFrameCache.FileId mFileId;
+    private final ArrayBlockingQueue<Frame> mFree;
+    private final ArrayBlockingQueue<Frame> mReady;
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mDelivered = new AtomicLong();
+    private volatile long mLastLag;
+    private volatile long mMaxLag;
+    private volatile Throwable mError;
+    private Thread mThread;
+    private long mStartNanos;
+    private boolean mEnded; // end mark taken by the consumer
+
+    public ApngPlayer(ApngReader reader) throws IOException, FormatNotSupportException {
+        this(reader, PixelFormat.ARGB_8888, 1, DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * @param reader      reader of the apng file, it's not closed by the player
+     * @param format      canvas pixel format, one of PixelFormat's formats
+     * @param sampleSize  keep one of every sampleSize rows and columns, power of 2, 1 for full size
+     * @param bufferCount count of canvas buffers in the ring, at least 2
+     */
+    public ApngPlayer(ApngReader reader, int format, int sampleSize, int bufferCount)
+            throws IOException, FormatNotSupportException {
+        this(reader, format, sampleSize, bufferCount, null);
+    }
+
+    /**
+     * @param reader      reader of the apng file, it's not closed by the player
+     * @param format      canvas pixel format, one of PixelFormat's formats
+     * @param sampleSize  keep one of every sampleSize rows and columns, power of 2, 1 for full size
+     * @param bufferCount count of canvas buffers in the ring, at least 2
+     * @param cache       cache of composed canvases, may be shared by players. null to disable,
+     *                    also disabled if the reader is not read from a file
+     */
+    public ApngPlayer(ApngReader reader, int format, int sampleSize, int bufferCount, ApngFrameCache cache)
+            throws IOException, FormatNotSupportException {
+        if (bufferCount < 2) throw new IllegalArgumentException("bufferCount must be at least 2");
+        mReader = reader;
+        mIndex = reader.getFrameIndex();
+        if (mIndex.getFrameCount() == 0) throw new FormatNotSupportException("No frame to play");
+        mNumPlays = reader.getACTL().getNumPlays();
+        ApngFrame first = reader.getFrame(0);
+        mCompositor = new ApngCompositor(first.getWidth(), first.getHeight(), format, sampleSize);
+
+        try {
+            // find key frames by their FCTL chunks once, instead of reading frames while behind the timeline
+            mKeyFrames = mCompositor.findKeyFrames(reader);
+            File file = reader.getFile();
+            mCache = file != null ? cache : null;
+            mFileId = mCache != null ? ApngFrameCache.identify(file) : null;
+        } catch (IOException | RuntimeException e) {
+            // the player is not returned, release the compositor's inflater
+            mCompositor.release();
+            throw e;
+        }
+        mFree = new ArrayBlockingQueue<>(bufferCount);
+        mReady = new ArrayBlockingQueue<>(bufferCount + 1);
+        int size = mCompositor.getWidth() * mCompositor.getHeight();
+        for (int i = 0; i < bufferCount; i++) {
+            switch (PixelFormat.bytesPerPixel(format)) {
+                case 4:
+                    mFree.add(new Frame(new int[size]));
+                    break;
+                case 2:
+                    mFree.add(new Frame(new short[size]));
+                    break;
+                default:
+                    mFree.add(new Frame(new byte[size]));
+            }
+        }
+    }
+
+    public int getWidth() {
+        return mCompositor.getWidth();
+    }
+
+    public int getHeight() {
+        return mCompositor.getHeight();
+    }
+
+    /**
+     * start the timeline and the background composing thread
+     */
+    public synchronized void start() {
+        if (mThread != null) throw new IllegalStateException("Already started");
+        mStartNanos = System.nanoTime();
+        mThread = new Thread(new Producer(), "ApngPlayer");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * microseconds since start()
+     */
+    private long now() {
+        return (System.nanoTime() - mStartNanos) / 1000;
+    }
+
+    /**
+     * wait for the frame to present now, frames already replaced by later frames are dropped
+     *
+     * @return the frame at it's presentation time, call release() after it's displayed,
+     * or null if the timeline ended
+     * @throws IOException          if composing frames failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Frame awaitFrame() throws IOException, InterruptedException {
+        if (mEnded) return end();
+        Frame frame = mReady.take();
+        if (frame == END) return end();
+
+        // drop the frame if next frame is also due
+        Frame next;
+        while ((next = mReady.peek()) != null && next != END && next.mTime <= now()) {
+            mReady.poll();
+            release(frame);
+            mDropped.incrementAndGet();
+            frame = next;
+        }
+
+        long wait = frame.mTime - now();
+        if (wait > 0) TimeUnit.MICROSECONDS.sleep(wait);
+        long lag = Math.max(0, now() - frame.mTime);
+        mLastLag = lag;
+        if (lag > mMaxLag) mMaxLag = lag;
+        mDelivered.incrementAndGet();
+        return frame;
+    }
+
+    private Frame end() throws IOException {
+        mEnded = true;
+        Throwable error = mError;
+        if (error instanceof IOException) throw (IOException) error;
+        if (error != null) throw new IOException("Compose frame failed", error);
+        return null;
+    }
+
+    /**
+     * return the frame's buffer to the ring after it's displayed
+     */
+    public void release(Frame frame) {
+        if (frame != null && frame != END) mFree.offer(frame);
+    }
+
+    /**
+     * count of frames not presented because they couldn't be in time
+     */
+    public long getDroppedFrames() {
+        return mDropped.get();
+    }
+
+    /**
+     * count of frames returned by awaitFrame()
+     */
+    public long getDeliveredFrames() {
+        return mDelivered.get();
+    }
+
+    /**
+     * lag of the last delivered frame behind it's presentation time, in microseconds
+     */
+    public long getLastLagMicros() {
+        return mLastLag;
+    }
+
+    /**
+     * max lag of all delivered frames, in microseconds
+     */
+    public long getMaxLagMicros() {
+        return mMaxLag;
+    }
+
+    /**
+     * stop the background thread and release the compositor, the reader is not closed
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        mCompositor.release();
+    }
+
+    /**
+     * compose frames by the timeline, and put them to the ready queue
+     */
+    private class Producer implements Runnable {
+        private final ApngCursor mCursor = mReader.newCursor();
+        private final int mFrameCount = mIndex.getFrameCount();
+        private final long mDuration = mIndex.getStartMicros(mFrameCount);
+        private final int mPixelCount = mCompositor.getWidth() * mCompositor.getHeight();
+        // cache keys by frame index, null if no cache
+        private final ApngFrameCache.Key[] mKeys = mCache != null ? new ApngFrameCache.Key[mFrameCount] : null;
+        private int mComposed = -1; // last frame composed on the canvas in current play, -1 for none
+        private int mCursorNext; // frame read by the cursor's nextFrame()
+
+        @Override
+        public void run() {
+            try {
+                produce();
+            } catch (InterruptedException e) {
+                // closed
+            } catch (Throwable e) {
+                mError = e;
+            }
+            mReady.offer(END); // never blocks, the queue has room for all buffers and the end mark
+        }
+
+        private void produce() throws IOException, FormatNotSupportException, InterruptedException {
+            int frame = 0;
+            long play = 0;
+            while (true) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                long now = now();
+                boolean last = isLast(play, frame);
+
+                // whole plays already over
+                if (!last && mDuration > 0 && now >= (play + 1) * mDuration) {
+                    long skip = now / mDuration - play;
+                    if (mNumPlays > 0) skip = Math.min(skip, mNumPlays - 1 - play);
+                    if (skip > 0) {
+                        mDropped.addAndGet(mFrameCount - frame + (skip - 1) * mFrameCount);
+                        play += skip;
+                        frame = 0;
+                        mComposed = -1;
+                        continue;
+                    }
+                }
+
+                if (!last && timeOf(play, frame + 1) <= now) {
+                    // behind the timeline, jump to the latest due key frame if any
+                    int key = dueKeyFrame(play, frame, now);
+                    if (key > frame) {
+                        mDropped.addAndGet(key - frame);
+                        frame = key;
+                        continue;
+                    }
+                    if (getCached(frame) == null) composeTo(frame);
+                    mDropped.incrementAndGet();
+                } else {
+                    deliver(play, frame);
+                }
+
+                if (last) return;
+                if (++frame == mFrameCount) {
+                    frame = 0;
+                    play++;
+                    mComposed = -1;
+                }
+            }
+        }
+
+        /**
+         * compose frames on the canvas till the frame, from the frame after last composed frame,
+         * or from the latest key frame if it's later
+         */
+        private void composeTo(int frame) throws IOException, FormatNotSupportException {
+            int from = Math.max(mComposed + 1, mKeyFrames.previousSetBit(frame));
+            if (from == 0) mCompositor.reset();
+            for (int i = from; i <= frame; i++) {
+                ApngFrame apngFrame = i == mCursorNext ? mCursor.nextFrame() : mCursor.seekFrame(i);
+                mCursorNext = i + 1;
+                mCompositor.compose(apngFrame);
+                mComposed = i;
+                if (mCache != null) mCache.put(cacheKey(i), canvas(), mPixelCount, mCompositor.getPalette());
+            }
+        }
+
+        private ApngFrameCache.CachedFrame getCached(int frame) {
+            return mCache != null ? mCache.get(cacheKey(frame)) : null;
+        }
+
+        /**
+         * cache key of the frame, created once per frame, as it's looked up on every play
+         */
+        private ApngFrameCache.Key cacheKey(int frame) {
+            ApngFrameCache.Key key = mKeys[frame];
+            if (key == null) {
+                key = new ApngFrameCache.Key(mFileId, frame, mCompositor.getFormat(), mCompositor.getSampleSize());
+                mKeys[frame] = key;
+            }
+            return key;
+        }
+
+        private Object canvas() {
+            switch (PixelFormat.bytesPerPixel(mCompositor.getFormat())) {
+                case 4:
+                    return mCompositor.getCanvas();
+                case 2:
+                    return mCompositor.getShortCanvas();
+                default:
+                    return mCompositor.getByteCanvas();
+            }
+        }
+
+        private long timeOf(long play, int frame) {
+            return play * mDuration + mIndex.getStartMicros(frame);
+        }
+
+        private boolean isLast(long play, int frame) {
+            return frame == mFrameCount - 1 && (mNumPlays > 0 && play >= mNumPlays - 1 || mDuration == 0);
+        }
+
+        /**
+         * find the latest key frame after frame and due now in the play, or -1
+         */
+        private int dueKeyFrame(long play, int frame, long now) {
+            int due = frame + 1;
+            while (due + 1 < mFrameCount && timeOf(play, due + 1) <= now) due++;
+            int key = mKeyFrames.previousSetBit(due);
+            return key > frame ? key : -1;
+        }
+
+        /**
+         * copy the cached or composed canvas to a free buffer, and put it to the ready queue
+         */
+        private void deliver(long play, int frame)
+                throws IOException, FormatNotSupportException, InterruptedException {
+            ApngFrameCache.CachedFrame cached = getCached(frame);
+            if (cached == null) composeTo(frame);
+            Frame slot = mFree.take();
+            if (cached != null) {
+                cached.copyTo(slot.mPixels);
+                slot.mPalette = cached.getPalette();
+            } else {
+                System.arraycopy(canvas(), 0, slot.mPixels, 0, mPixelCount);
+                slot.mPalette = mCompositor.getPalette();
+            }
+            slot.mFrameIndex = frame;
+            slot.mPlay = play;
+            slot.mTime = timeOf(play, frame);
+            mReady.put(slot);
+        }
+    }
+
+    /**
+     * a composed frame delivered by the player, it's buffer is reused after release()
+     */
+    public static final class Frame {
+        private final Object mPixels;
+        private int[] mPalette;
+        private int mFrameIndex;
+        private long mPlay;
+        private long mTime;
+
+        Frame(Object pixels) {
+            mPixels = pixels;
+        }
+
+        /**
+         * index of the frame in a play
+         */
+        public int getFrameIndex() {
+            return mFrameIndex;
+        }
+
+        /**
+         * index of the play, start from 0
+         */
+        public long getPlay() {
+            return mPlay;
+        }
+
+        /**
+         * presentation time on the timeline in microseconds since start()
+         */
+        public long getPresentationMicros() {
+            return mTime;
+        }
+
+        /**
+         * canvas of ARGB_8888 or ARGB_PREMULTIPLIED format, see ApngCompositor.getCanvas()
+         */
+        public int[] getCanvas() {
+            return (int[]) mPixels;
+        }
+
+        public short[] getShortCanvas() {
+            return (short[]) mPixels;
+        }
+
+        public byte[] getByteCanvas() {
+            return (byte[]) mPixels;
+        }
+
+        /**
+         * palette of INDEXED_8 canvas
+         */
+        public int[] getPalette() {
+            return mPalette;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package li.tengfei.apng.base;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Storage mapping only a prefix of the file, the prefix grows on demand when data after it is read
+ * <p>
+ * the prefix starts small and at least doubles at each growth, so a reader touching only the file's
+ * head maps (and pages in) only the head. slices of smaller prefixes are still valid after growth.
+ * it's limited to MAX_BUFFER_SIZE, like ApngBufferStorage.
+ * <p>
+ * !!! ATTENTION !!! not thread safe
+ *
+ * @author ltf
+ * @since 26/10/20, 下午2:10
+ */
+class ApngPrefixStorage extends ApngStorage {
+    private final long mSize;
+    private MappedByteBuffer mPrefix;
+
+    /**
+     * @param channel     file channel, owned by the storage
+     * @param initialSize size of the first mapped prefix
+     */
+    ApngPrefixStorage(FileChannel channel, int initialSize) throws IOException {
+        super(channel);
+        mSize = Math.min(channel.size(), MAX_BUFFER_SIZE);
+        mPrefix = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(initialSize, mSize));
+    }
+
+    /**
+     * current mapped prefix length
+     */
+    int getMappedLength() {
+        return mPrefix.capacity();
+    }
+
+    /**
+     * make sure [0, end) is mapped, grow the prefix if not
+     */
+    private MappedByteBuffer prefix(long end) {
+        if (end <= mPrefix.capacity() || end > mSize) return mPrefix;
+        long size = Math.min(mSize, Math.max(end, (long) mPrefix.capacity() << 1));
+        try {
+            mPrefix = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return mPrefix;
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public int getInt(long pos) {
+        return prefix(pos + 4).getInt((int) pos);
+    }
+
+    @Override
+    public short getShort(long pos) {
+        return prefix(pos + 2).getShort((int) pos);
+    }
+
+    @Override
+    public byte get(long pos) {
+        return prefix(pos + 1).get((int) pos);
+    }
+
+    @Override
+    public void get(long pos, byte[] dst, int dstOffset, int length) {
+        prefix(pos + length).get((int) pos, dst, dstOffset, length);
+    }
+
+    @Override
+    public ByteBuffer slice(long pos, int length) {
+        return prefix(pos + length).slice((int) pos, length).asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,154 @@
+package li.tengfei.apng.base;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static li.tengfei.apng.base.ApngConst.*;
+
+/**
+ * Fast path to read only the default image (the IDAT image) of a png/apng file, for poster images
+ * <p>
+ * the file is mapped by a prefix storage, chunks are parsed from the head till the end of the first IDAT run,
+ * nothing after it is mapped or read. acTL is skipped, head data chunks and paCH before the IDAT are applied.
+ * the returned frame is still readable after the file is closed, it holds only the mapped prefix.
+ *
+ * @author ltf
+ * @since 26/10/20, 下午2:30
+ */
+public final class ApngProbe {
+    /**
+     * size of the first mapped prefix, enough for head chunks and the image data of small images
+     */
+    public static final int INITIAL_PREFIX = 64 * 1024;
+
+    private ApngProbe() {
+    }
+
+    /**
+     * read the default image as a frame, read it's image stream for png data, or decode it by FrameDecoder
+     *
+     * @param path png/apng file path
+     * @return the default image, with the FCTL info if it's the first frame of the animation,
+     * or with the whole image region and no delay if it's not part of the animation (or a png only)
+     * @throws IOException               if the file is broken before the end of the IDAT run
+     * @throws FormatNotSupportException if it's not a png/apng file, or there's no IDAT chunk
+     */
+    public static ApngFrame firstFrame(String path) throws IOException, FormatNotSupportException {
+        RandomAccessFile f = new RandomAccessFile(path, "r");
+        ApngStorage storage;
+        try {
+            storage = new ApngPrefixStorage(f.getChannel(), INITIAL_PREFIX);
+        } catch (IOException e) {
+            f.close();
+            throw e;
+        }
+        try {
+            return readDefaultImage(storage);
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * read the default image as standalone png data
+     *
+     * @see #firstFrame(String)
+     */
+    public static byte[] firstFramePng(String path) throws IOException, FormatNotSupportException {
+        return ((PngStream) firstFrame(path).imageStream).toByteArray();
+    }
+
+    /**
+     * decode the default image to pixels, of the frame's (subsampled) size
+     *
+     * @param path    png/apng file path
+     * @param decoder decoder of ARGB_8888 or ARGB_PREMULTIPLIED format, it's sample size applied
+     * @see #firstFrame(String)
+     */
+    public static int[] firstFramePixels(String path, FrameDecoder decoder)
+            throws IOException, FormatNotSupportException {
+        ApngFrame frame = firstFrame(path);
+        int width = frame.getSampledWidth(decoder.getSampleSize());
+        int[] pixels = new int[width * frame.getSampledHeight(decoder.getSampleSize())];
+        decoder.decode(frame, pixels, 0, width);
+        return pixels;
+    }
+
+    /**
+     * parse chunks from the head till the end of the first IDAT run
+     */
+    static ApngFrame readDefaultImage(ApngStorage storage) throws IOException, FormatNotSupportException {
+        if (storage.size() < 16 || storage.getInt(0) != PNG_SIG || storage.getInt(4) != PNG_SIG_VER
+                || storage.getInt(12) != CODE_IHDR) {
+            throw new FormatNotSupportException("Not a png/apng file");
+        }
+
+        ApngFrame frame = new ApngFrame();
+        boolean hasFctl = false;
+        PngStream head = new PngStream();
+        ApngMmapParserChunk chunk = new ApngMmapParserChunk(storage);
+        chunk.parsePrepare(8);
+        parse(chunk, storage);
+        while (chunk.typeCode != CODE_IDAT) {
+            switch (chunk.typeCode) {
+                case CODE_IHDR:
+                    head.setIHDR(chunk.duplicateData());
+                    break;
+                case CODE_fcTL:
+                    chunk.assignTo(frame);
+                    hasFctl = true;
+                    break;
+                case CODE_paCH:
+                    AngPatchChunk patchChunk = new AngPatchChunk();
+                    chunk.assignTo(patchChunk);
+                    head.applyPatches(patchChunk.mPatches);
+                    break;
+                case CODE_IEND:
+                case CODE_fdAT:
+                    throw new FormatNotSupportException("No IDAT chunk before frame data or end");
+                default:
+                    // acTL and other chunks are skipped
+                    if (Arrays.binarySearch(ApngReader.COPIED_TYPE_CODES, chunk.typeCode) >= 0) {
+                        head.setHeadData(chunk.getTypeCode(), chunk.duplicateData());
+                    }
+            }
+            chunk.parsePrepare(chunk.nextOffset);
+            parse(chunk, storage);
+        }
+
+        PngStream stream = head.newFrameStream();
+        if (!hasFctl) {
+            byte[] data = stream.getHeadData();
+            frame.setImageSize(getInt(data, PngStream.IHDR_WIDTH_OFF), getInt(data, PngStream.IHDR_HEIGHT_OFF));
+        }
+
+        // collect the IDAT run, only the type code of the chunk after it is read
+        while (true) {
+            stream.addDataChunk(new ApngMmapParserChunk(chunk));
+            long next = chunk.nextOffset;
+            if (next + 8 > storage.size() || storage.getInt(next + 4) != CODE_IDAT) break;
+            chunk.parsePrepare(next);
+            parse(chunk, storage);
+        }
+        frame.imageStream = stream;
+        return frame;
+    }
+
+    /**
+     * parse the chunk at the prepared offset, check the whole chunk is in the file before parse
+     */
+    private static void parse(ApngMmapParserChunk chunk, ApngStorage storage) throws EOFException {
+        long offset = chunk.getOffset();
+        if (offset < 0 || offset + 12 > storage.size()
+                || offset + 12 + (storage.getInt(offset) & 0xFFFFFFFFL) > storage.size()) {
+            throw new EOFException("Unexpected end of png data");
+        }
+        chunk.parse();
+    }
+
+    private static int getInt(byte[] data, int off) {
+        return (data[off] & 0xFF) << 24 | (data[off + 1] & 0xFF) << 16 | (data[off + 2] & 0xFF) << 8 | data[off + 3] & 0xFF;
+    }
+}
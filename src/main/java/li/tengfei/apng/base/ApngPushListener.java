@@ -0,0 +1,35 @@
+package li.tengfei.apng.base;
+
+import java.io.IOException;
+
+/**
+ * Listener to receive parsed results from ApngPushParser
+ *
+ * @author ltf
+ * @since 26/10/19, 下午2:10
+ */
+public interface ApngPushListener {
+
+    /**
+     * called when the acTL chunk arrived
+     *
+     * @param actl animation control info
+     * @throws IOException stop parsing and throw it to the feeder
+     */
+    void onACTL(ApngACTLChunk actl) throws IOException;
+
+    /**
+     * called in frame order as soon as a frame's fcTL chunk and all its IDAT/fdAT chunks arrived
+     *
+     * @param frame frame control info & bitmap, it's image stream doesn't depend on later fed data
+     * @throws IOException stop parsing and throw it to the feeder
+     */
+    void onFrameReady(ApngFrame frame) throws IOException;
+
+    /**
+     * called when the IEND chunk arrived, no more callbacks after it
+     *
+     * @throws IOException stop parsing and throw it to the feeder
+     */
+    void onEnd() throws IOException;
+}
@@ -0,0 +1,206 @@
+package li.tengfei.apng.base;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static li.tengfei.apng.base.ApngConst.*;
+
+/**
+ * Non-blocking push mode Apng parser, data is fed in pieces of any size as it arrives
+ * <p>
+ * fed data is buffered until a whole chunk is available, then the chunk is handled and discarded.
+ * a frame is reported once its fcTL chunk and all its consecutive IDAT/fdAT chunks arrived,
+ * so the first frame can be shown while the rest of the file is still transferring
+ * <p>
+ * !!! ATTENTION !!! not thread safe, feed() from one thread at a time
+ *
+ * @author ltf
+ * @since 26/10/19, 下午2:20
+ */
+public class ApngPushParser {
+    private static final int STATE_SIGNATURE = 0;
+    private static final int STATE_CHUNKS = 1;
+    private static final int STATE_END = 2;
+
+    private final ApngPushListener mListener;
+    private final ApngChannelSupplier mData;
+    private final PngStream mHeadStream = new PngStream();
+    private final AngPatchChunk mPatchChunk = new AngPatchChunk();
+    private int mState = STATE_SIGNATURE;
+    private ApngACTLChunk mActlChunk;
+    private ApngFrame mFrame;        // frame whose data chunks are collecting
+    private PngStream mFrameStream;  // png stream of the collecting frame
+    private byte[] mRunData;         // collect a frame's data chunks, handed off to the frame's png stream
+    private int mRunLen;
+    private int mRunSize = ApngChannelSupplier.DEFAULT_BUFFER_SIZE; // initial size of the run buffer
+    private boolean mIhdrCopied;
+
+    public ApngPushParser(ApngPushListener listener) {
+        this(listener, new ApngChannelSupplier(null));
+    }
+
+    /**
+     * parse data buffered in an existing supplier, data is added to it by it's owner
+     */
+    ApngPushParser(ApngPushListener listener, ApngChannelSupplier data) {
+        mListener = listener;
+        mData = data;
+    }
+
+    /**
+     * feed next piece of data, all listener callbacks it triggers are called before return
+     *
+     * @param data data between position and limit is consumed
+     * @throws IOException
+     * @throws FormatNotSupportException
+     */
+    public void feed(ByteBuffer data) throws IOException, FormatNotSupportException {
+        if (mState == STATE_END) {
+            // ignore trailing data after IEND
+            data.position(data.limit());
+            return;
+        }
+        mData.append(data);
+        parse();
+    }
+
+    /**
+     * whether the IEND chunk arrived
+     */
+    public boolean isEnded() {
+        return mState == STATE_END;
+    }
+
+    /**
+     * acTL chunk information, null if not arrived yet
+     */
+    public ApngACTLChunk getACTL() {
+        return mActlChunk;
+    }
+
+    /**
+     * parse all whole chunks in the buffer
+     */
+    void parse() throws IOException, FormatNotSupportException {
+        if (mState == STATE_SIGNATURE) {
+            if (mData.remaining() < 16) return;
+            if (mData.readInt() != PNG_SIG
+                    || mData.readInt() != PNG_SIG_VER
+                    || mData.peekInt(4) != CODE_IHDR) {
+                throw new FormatNotSupportException("Not a png/apng file");
+            }
+            mState = STATE_CHUNKS;
+        }
+
+        while (mState == STATE_CHUNKS && mData.remaining() >= 8) {
+            int length = mData.peekInt(0);
+            if (length < 0) throw new IOException("Broken chunk length");
+            int typeCode = mData.peekInt(4);
+
+            // data chunks run ended, the frame is ready
+            if (mFrameStream != null && typeCode != CODE_IDAT && typeCode != CODE_fdAT) finishFrame();
+
+            // wait for the whole chunk
+            if (mData.remaining() < length + 12L) return;
+            handleChunk(typeCode, length);
+        }
+    }
+
+    /**
+     * handle a whole buffered chunk, and move to next chunk
+     */
+    private void handleChunk(int typeCode, int length) throws IOException {
+        switch (typeCode) {
+            case CODE_IEND:
+                mData.skip(length + 12L);
+                mState = STATE_END;
+                mListener.onEnd();
+                break;
+            case CODE_fcTL:
+                if (mFrame != null) {
+                    // previous fcTL has no data chunk yet, keep it
+                    mData.skip(length + 12L);
+                    break;
+                }
+                mFrame = new ApngFrame();
+                mFrame.parse(mData);
+                break;
+            case CODE_IDAT:
+            case CODE_fdAT:
+                if (mFrame == null) {
+                    // IDAT not belongs to any frame (default image excluded from animation)
+                    mData.skip(length + 12L);
+                    break;
+                }
+                if (mFrameStream == null) {
+                    // first data chunk of the frame
+                    if (!mIhdrCopied || typeCode == CODE_fdAT) mHeadStream.updateIHDR(mFrame.getWidth(), mFrame.getHeight());
+                    mIhdrCopied = false;
+                    mFrameStream = mHeadStream.newFrameStream();
+                    mRunData = new byte[mRunSize];
+                    mRunLen = 0;
+                }
+                int len = length + 12;
+                if (mRunData.length - mRunLen < len) {
+                    mRunData = Arrays.copyOf(mRunData, Math.max(mRunLen + len, mRunData.length << 1));
+                }
+                mData.readFully(mRunData, mRunLen, len);
+                mRunLen += len;
+                break;
+            case CODE_IHDR:
+                mHeadStream.setIHDR(readChunk(length));
+                mIhdrCopied = true;
+                break;
+            case CODE_paCH:
+                mPatchChunk.parse(mData);
+                mHeadStream.applyPatches(mPatchChunk.mPatches);
+                break;
+            case CODE_acTL:
+                ApngACTLChunk actlChunk = new ApngACTLChunk();
+                actlChunk.parse(mData);
+                if (mActlChunk == null) {
+                    mActlChunk = actlChunk;
+                    mListener.onACTL(actlChunk);
+                }
+                break;
+            default:
+                if (Arrays.binarySearch(ApngReader.COPIED_TYPE_CODES, typeCode) >= 0) {
+                    mHeadStream.setHeadData(typeCode, readChunk(length));
+                } else {
+                    mData.skip(length + 12L);
+                }
+        }
+    }
+
+    /**
+     * construct the frame's png stream over the collected data chunks, and report it
+     */
+    private void finishFrame() throws IOException {
+        // the run buffer is owned by the frame from now, next frame collects to a new one
+        ApngMmapParserChunk chunk = new ApngMmapParserChunk(ByteBuffer.wrap(mRunData, 0, mRunLen));
+        chunk.parsePrepare(0);
+        do {
+            chunk.parseNext();
+            mFrameStream.addDataChunk(ApngCursor.newDataChunk(chunk));
+        } while (chunk.nextOffset < mRunLen);
+
+        ApngFrame frame = mFrame;
+        frame.imageStream = mFrameStream;
+        mFrame = null;
+        mFrameStream = null;
+        mRunData = null;
+        mRunSize = Math.max(ApngChannelSupplier.DEFAULT_BUFFER_SIZE, mRunLen); // frames are often of similar size
+        mRunLen = 0;
+        mListener.onFrameReady(frame);
+    }
+
+    /**
+     * read the whole chunk to an array
+     */
+    private byte[] readChunk(int length) throws IOException {
+        byte[] data = new byte[length + 12];
+        mData.readFully(data, 0, data.length);
+        return data;
+    }
+}
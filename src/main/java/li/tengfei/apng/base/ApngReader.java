@@ -1,10 +1,17 @@
 package li.tengfei.apng.base;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
 
 import static li.tengfei.apng.base.ApngConst.*;
 
@@ -14,7 +21,7 @@ import static li.tengfei.apng.base.ApngConst.*;
  * @author ltf
  * @since 16/11/25, 上午8:14
  */
-public class ApngReader {
+public class ApngReader implements Closeable {
 
     /**
      * chunks should be copied to each frame
@@ -39,23 +46,100 @@ public class ApngReader {
         Arrays.sort(COPIED_TYPE_CODES);
     }
 
-    private final MappedByteBuffer mBuffer;
-    private final ApngMmapParserChunk mChunk;
-    private final PngStream mPngStream = new PngStream();
+    private final ApngStorage mStorage; // channel kept open for forwarding unchanged chunks, see PngStream.transferTo()
+    private final File mFile;
+    private final ApngCursor mCursor;
     private ApngACTLChunk mActlChunk;
-    private AngPatchChunk mPatchChunk;
+    private ApngFrameIndex mFrameIndex;
 
     public ApngReader(String apngFile) throws IOException, FormatNotSupportException {
-        RandomAccessFile f = new RandomAccessFile(apngFile, "r");
-        mBuffer = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
-        f.close();
-        if (mBuffer.getInt() != PNG_SIG
-                && mBuffer.getInt(4) != PNG_SIG_VER
-                && mBuffer.getInt(8) != CODE_IHDR) {
+        this(apngFile, null);
+    }
+
+    /**
+     * @param apngFile   apng file path
+     * @param indexCache persistent frame index cache, the index is loaded from it if cached,
+     *                   or built and stored to it at open. null to disable
+     */
+    public ApngReader(String apngFile, ApngIndexCache indexCache) throws IOException, FormatNotSupportException {
+        this(openStorage(apngFile), new File(apngFile), indexCache);
+    }
+
+    /**
+     * @param storage    storage holds the apng data, it's owned by this reader and closed by close()
+     * @param file       the apng file of the storage, used as the key of index cache
+     * @param indexCache persistent frame index cache, null to disable
+     */
+    ApngReader(ApngStorage storage, File file, ApngIndexCache indexCache)
+            throws IOException, FormatNotSupportException {
+        mStorage = storage;
+        mFile = file;
+        if (mStorage.size() < 16
+                || mStorage.getInt(0) != PNG_SIG
+                && mStorage.getInt(4) != PNG_SIG_VER
+                && mStorage.getInt(8) != CODE_IHDR) {
+            mStorage.close();
             throw new FormatNotSupportException("Not a png/apng file");
         }
-        mChunk = new ApngMmapParserChunk(mBuffer);
-        reset();
+
+        if (indexCache != null) {
+            boolean built = false;
+            try {
+                mFrameIndex = indexCache.load(file, mStorage);
+                if (mFrameIndex == null) {
+                    mFrameIndex = ApngFrameIndex.build(this);
+                    built = true;
+                }
+            } catch (IOException | RuntimeException e) {
+                // broken file, close the storage as the reader is not returned
+                try {
+                    mStorage.close();
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+                throw e;
+            }
+            if (built) {
+                try {
+                    indexCache.store(file, mStorage, mFrameIndex);
+                } catch (IOException e) {
+                    // cache is only an accelerator, the built index is still usable
+                }
+            }
+        }
+        mCursor = new ApngCursor(this);
+    }
+
+    private static ApngStorage openStorage(String apngFile) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(apngFile, "r");
+        try {
+            return ApngStorage.map(f.getChannel());
+        } catch (IOException e) {
+            f.close();
+            throw e;
+        }
+    }
+
+    ApngStorage getStorage() {
+        return mStorage;
+    }
+
+    /**
+     * the apng file of the reader, or null if it's not read from a file
+     */
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * close the file channel and release the storage,
+     * files not larger than 2GB are mapped as one buffer, it's still readable after closed,
+     * but PngStream.transferTo() will not forward chunks by FileChannel.transferTo any more.
+     * larger files are mapped in windows, all windows are dropped and not readable after closed
+     */
+    @Override
+    public void close() throws IOException {
+        mStorage.close();
     }
 
     /**
@@ -65,146 +149,207 @@ public class ApngReader {
      * @throws IOException
      * @throws FormatNotSupportException
      */
-    public ApngACTLChunk getACTL() throws IOException, FormatNotSupportException {
+    public synchronized ApngACTLChunk getACTL() throws IOException, FormatNotSupportException {
         if (mActlChunk != null) return mActlChunk;
-        int pos = mBuffer.position();
-        try {
-            ApngMmapParserChunk tmpChunk = new ApngMmapParserChunk(mBuffer);
-            // locate first chunk (IHDR)
-            tmpChunk.parsePrepare(8);
-            tmpChunk.parse();
-
-            // locate ACTL chunk
-            while (tmpChunk.typeCode != CODE_acTL) {
-                if (tmpChunk.typeCode == CODE_IEND || tmpChunk.parseNext() < 0) {
-                    throw new FormatNotSupportException("No ACTL chunk founded, not an apng file. (maybe it's a png only)");
-                }
-            }
+        ApngMmapParserChunk tmpChunk = new ApngMmapParserChunk(mStorage);
+        // locate first chunk (IHDR), or the ACTL chunk directly if indexed
+        tmpChunk.parsePrepare(mFrameIndex != null && mFrameIndex.getActlOffset() > 0
+                ? mFrameIndex.getActlOffset() : 8);
+        tmpChunk.parse();
 
-            handleACTL(tmpChunk);
-        } finally {
-            mBuffer.position(pos);
+        // locate ACTL chunk
+        while (tmpChunk.typeCode != CODE_acTL) {
+            if (tmpChunk.typeCode == CODE_IEND || tmpChunk.parseNext() < 0) {
+                throw new FormatNotSupportException("No ACTL chunk founded, not an apng file. (maybe it's a png only)");
+            }
         }
+
+        handleACTL(tmpChunk);
         return mActlChunk;
     }
 
     /**
      * hanlde actl chunk
      */
-    private void handleACTL(ApngMmapParserChunk chunk) throws IOException {
+    synchronized void handleACTL(ApngMmapParserChunk chunk) {
         if (mActlChunk == null) {
-            mActlChunk = new ApngACTLChunk();
-            chunk.assignTo(mActlChunk);
+            ApngACTLChunk actlChunk = new ApngACTLChunk();
+            chunk.assignTo(actlChunk);
+            mActlChunk = actlChunk;
         }
     }
 
     /**
-     * hanlde paCH chunk( ANG patch chunk )
+     * get the random access index of all frames, built by one pass scan at the first call
+     *
+     * @return frame index
+     * @throws IOException
      */
-    private void handlePatch(ApngMmapParserChunk chunk) throws IOException {
-        if (mPatchChunk == null) mPatchChunk = new AngPatchChunk();
-        chunk.assignTo(mPatchChunk);
-        mPngStream.applyPatches(mPatchChunk.mPatches);
+    public synchronized ApngFrameIndex getFrameIndex() throws IOException {
+        if (mFrameIndex == null) mFrameIndex = ApngFrameIndex.build(this);
+        return mFrameIndex;
     }
 
     /**
-     * handle other's chunk
+     * create a new frame read cursor, cursors share the mapped data and frame index of this reader,
+     * use one cursor per thread to read frames concurrently
      */
-    private void handleOtherChunk(ApngMmapParserChunk chunk) throws IOException {
-        if (Arrays.binarySearch(COPIED_TYPE_CODES, chunk.typeCode) >= 0) {
-            mPngStream.setHeadData(chunk.getTypeCode(), chunk.duplicateData());
-        }
+    public ApngCursor newCursor() {
+        return new ApngCursor(this);
     }
 
     /**
-     * get next frame control info & bitmap
+     * read the specified frame by the frame index, this function is thread safe,
+     * and doesn't change the position of nextFrame()
      *
-     * @return next frame control info, or null if no next FCTL chunk || no next IDAT/FDAT
+     * @param frameIndex index of the frame, start from 0
+     * @return frame control info & bitmap, or null if frameIndex out of range
      * @throws IOException
      */
-    public ApngFrame nextFrame() throws IOException {
-        // reset read pointers from previous frame's lock
-        mPngStream.clearDataChunks();
-        mPngStream.resetPos();
-        mChunk.unlockRead();
-
-        // locate next FCTL chunk
-        boolean ihdrCopied = false;
-        while (mChunk.typeCode != CODE_fcTL) {
-            switch (mChunk.typeCode) {
-                case CODE_IEND:
-                    return null;
-                case CODE_IHDR:
-                    mPngStream.setIHDR(mChunk.duplicateData());
-                    ihdrCopied = true;
-                    break;
-                case CODE_paCH:
-                    handlePatch(mChunk);
-                    break;
-                case CODE_acTL:
-                    handleACTL(mChunk);
-                    break;
-                default:
-                    handleOtherChunk(mChunk);
+    public ApngFrame getFrame(int frameIndex) throws IOException {
+        ApngFrameIndex index = getFrameIndex();
+        if (frameIndex < 0 || frameIndex >= index.getFrameCount()) return null;
+        return ApngCursor.readFrame(index, frameIndex, new ApngMmapParserChunk(mStorage));
+    }
+
+    /**
+     * extract all frames to standalone png data in parallel on the common ForkJoinPool
+     *
+     * @see #extractAll(Executor, int, ApngFrameCallback)
+     */
+    public void extractAll(ApngFrameCallback callback) throws IOException, InterruptedException {
+        extractAll(ForkJoinPool.commonPool(), callback);
+    }
+
+    /**
+     * extract all frames to standalone png data in parallel,
+     * at most 2 x available processors frames are in flight
+     *
+     * @see #extractAll(Executor, int, ApngFrameCallback)
+     */
+    public void extractAll(Executor executor, ApngFrameCallback callback) throws IOException, InterruptedException {
+        extractAll(executor, Runtime.getRuntime().availableProcessors() * 2, callback);
+    }
+
+    /**
+     * extract all frames to standalone png data in parallel,
+     * frames are converted on the executor, and delivered to the callback in frame order on caller's thread
+     *
+     * @param executor    executor to convert frames
+     * @param maxInFlight max count of frames being converted or waiting for delivery, bounds the memory used
+     * @param callback    receive each frame's png data
+     * @throws IOException          if read frame failed, or thrown by the callback
+     * @throws InterruptedException if interrupted while waiting for frames
+     */
+    public void extractAll(Executor executor, int maxInFlight, ApngFrameCallback callback)
+            throws IOException, InterruptedException {
+        if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be positive");
+        int count = getFrameIndex().getFrameCount();
+        // frames in flight, in frame order
+        ArrayDeque<FutureTask<ApngFrame>> window = new ArrayDeque<>(Math.min(maxInFlight, Math.max(count, 1)));
+        int submitted = 0;
+        try {
+            for (; submitted < maxInFlight && submitted < count; submitted++) {
+                FutureTask<ApngFrame> task = new FutureTask<>(new ExtractTask(this, submitted));
+                window.add(task);
+                executor.execute(task);
             }
-            mChunk.parseNext();
-        }
 
-        // located at FCTL chunk
-        ApngFrame frame = new ApngFrame();
-        mChunk.assignTo(frame);
-
-        // locate next IDAT or fdAt chunk
-        mChunk.parseNext();// first move next from current FCTL
-        while (mChunk.typeCode != CODE_IDAT && mChunk.typeCode != CODE_fdAT) {
-            switch (mChunk.typeCode) {
-                case CODE_IEND:
-                    return null;
-                case CODE_IHDR:
-                    mPngStream.setIHDR(mChunk.duplicateData());
-                    ihdrCopied = true;
-                    break;
-                case CODE_paCH:
-                    handlePatch(mChunk);
-                    break;
-                case CODE_acTL:
-                    handleACTL(mChunk);
-                    break;
-                default:
-                    handleOtherChunk(mChunk);
+            for (int i = 0; i < count; i++) {
+                ApngFrame frame;
+                try {
+                    frame = window.peek().get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                    throw new IOException("Extract frame " + i + " failed", e.getCause());
+                }
+                window.poll();
+
+                // keep the window full before deliver
+                if (submitted < count) {
+                    FutureTask<ApngFrame> task = new FutureTask<>(new ExtractTask(this, submitted++));
+                    window.add(task);
+                    executor.execute(task);
+                }
+                callback.onFrame(i, frame, ((ExtractedStream) frame.imageStream).getPng());
             }
-            mChunk.parseNext();
+        } finally {
+            for (FutureTask<ApngFrame> task : window) task.cancel(false);
         }
+    }
 
-        // located at first IDAT or fdAT chunk
-        // collect all consecutive dat chunks
-        boolean needUpdateIHDR = true;
-        int dataOffset = mChunk.getOffset();
-        while (mChunk.typeCode == CODE_fdAT || mChunk.typeCode == CODE_IDAT) {
-            if (needUpdateIHDR && (!ihdrCopied || mChunk.typeCode == CODE_fdAT)) {
-                mPngStream.updateIHDR(frame.getWidth(), frame.getHeight());
-                needUpdateIHDR = false;
-            }
+    /**
+     * task to extract a frame as standalone png data
+     */
+    private static class ExtractTask implements Callable<ApngFrame> {
+        private final ApngReader mReader;
+        private final int mFrameIndex;
 
-            if (mChunk.typeCode == CODE_fdAT) {
-                mPngStream.addDataChunk(new Fdat2IdatChunk(mChunk));
-            } else {
-                mPngStream.addDataChunk(new ApngMmapParserChunk(mChunk));
-            }
-            mChunk.parseNext();
+        ExtractTask(ApngReader reader, int frameIndex) {
+            mReader = reader;
+            mFrameIndex = frameIndex;
         }
 
-        // lock position for this frame's image as OutputStream
-        mChunk.lockRead(dataOffset);
-        frame.imageStream = mPngStream;
-        return frame;
+        @Override
+        public ApngFrame call() throws Exception {
+            ApngFrame frame = mReader.getFrame(mFrameIndex);
+            frame.imageStream = new ExtractedStream(((PngStream) frame.imageStream).toByteArray());
+            return frame;
+        }
+    }
+
+    /**
+     * image stream of extracted frame
+     */
+    private static class ExtractedStream extends ByteArrayInputStream {
+
+        ExtractedStream(byte[] png) {
+            super(png);
+        }
+
+        byte[] getPng() {
+            return buf;
+        }
+    }
+
+    /**
+     * get next frame control info & bitmap
+     *
+     * @return next frame control info, or null if no next FCTL chunk || no next IDAT/FDAT
+     * @throws IOException
+     */
+    public ApngFrame nextFrame() throws IOException {
+        return mCursor.nextFrame();
+    }
+
+    /**
+     * locate to the specified frame directly by the frame index,
+     * the following nextFrame() calls will continue from this frame
+     *
+     * @param frameIndex index of the frame, start from 0
+     * @return frame control info & bitmap, or null if frameIndex out of range
+     * @throws IOException
+     */
+    public ApngFrame seekFrame(int frameIndex) throws IOException {
+        return mCursor.seekFrame(frameIndex);
+    }
+
+    /**
+     * locate to the frame displayed at the specified time by the frame index,
+     * the time is wrapped by the total duration of one play
+     *
+     * @param millis time in milliseconds from the first frame's start
+     * @return frame control info & bitmap, or null if there's no frame
+     * @throws IOException
+     */
+    public ApngFrame seekTime(long millis) throws IOException {
+        return mCursor.seekTime(millis);
     }
 
     /**
      * locate to the first chunk, and parse it
      */
     public void reset() {
-        mChunk.parsePrepare(8);
-        mChunk.parse();
+        mCursor.reset();
     }
 }
@@ -0,0 +1,77 @@
+package li.tengfei.apng.base;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A lease of a shared reader from ApngReaderPool
+ * <p>
+ * all functions are thread safe, use a cursor per thread to read frames sequentially.
+ * the reader may be closed after the lease closed, don't use the lease or it's cursors after that
+ *
+ * @author ltf
+ * @since 26/10/19, 下午3:30
+ */
+public class ApngReaderLease implements Closeable {
+    private final ApngReaderPool mPool;
+    private final ApngReader mReader;
+    private final Object mToken;
+    private volatile boolean mClosed;
+
+    ApngReaderLease(ApngReaderPool pool, ApngReader reader, Object token) {
+        mPool = pool;
+        mReader = reader;
+        mToken = token;
+    }
+
+    private ApngReader reader() {
+        if (mClosed) throw new IllegalStateException("Lease closed");
+        return mReader;
+    }
+
+    /**
+     * get the shared acTL chunk information
+     *
+     * @see ApngReader#getACTL()
+     */
+    public ApngACTLChunk getACTL() throws IOException, FormatNotSupportException {
+        return reader().getACTL();
+    }
+
+    /**
+     * get the shared frame index, built at the first call of all leases
+     *
+     * @see ApngReader#getFrameIndex()
+     */
+    public ApngFrameIndex getFrameIndex() throws IOException {
+        return reader().getFrameIndex();
+    }
+
+    /**
+     * read the specified frame by the shared frame index
+     *
+     * @see ApngReader#getFrame(int)
+     */
+    public ApngFrame getFrame(int frameIndex) throws IOException {
+        return reader().getFrame(frameIndex);
+    }
+
+    /**
+     * create a new frame read cursor over the shared data
+     *
+     * @see ApngReader#newCursor()
+     */
+    public ApngCursor newCursor() {
+        return reader().newCursor();
+    }
+
+    /**
+     * return the reader to the pool, call it only once
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) return;
+        mClosed = true;
+        mPool.release(mToken);
+    }
+}
@@ -0,0 +1,263 @@
+package li.tengfei.apng.base;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Pool of shared ApngReaders for frequently opened apng files
+ * <p>
+ * readers are keyed by file path and identified by file size + modified time, a changed file is reopened.
+ * the mapped data, acTL and frame index (with its head data snapshots) of a reader are shared by all leases,
+ * each lease creates its own cursors to read frames.
+ * <p>
+ * least recently used idle readers are closed once the mapped bytes or open files budget is exceeded,
+ * readers in use are never closed, a replaced reader is closed when its last lease is closed.
+ * <p>
+ * readers are opened out of the pool lock, so a slow open (mapping, index build) doesn't block other files.
+ * concurrent acquires of the same file share one open, a failed open is not pooled
+ *
+ * @author ltf
+ * @since 26/10/19, 下午3:30
+ */
+public class ApngReaderPool implements Closeable {
+    private final long mMaxMappedBytes;
+    private final int mMaxOpenFiles;
+    private final ApngIndexCache mIndexCache;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true); // in LRU order
+    private long mMappedBytes;
+    private int mOpenFiles;
+    private boolean mClosed;
+
+    /**
+     * @param maxMappedBytes budget of total mapped bytes of all open files
+     * @param maxOpenFiles   budget of open files count
+     */
+    public ApngReaderPool(long maxMappedBytes, int maxOpenFiles) {
+        this(maxMappedBytes, maxOpenFiles, null);
+    }
+
+    /**
+     * @param maxMappedBytes budget of total mapped bytes of all open files
+     * @param maxOpenFiles   budget of open files count
+     * @param indexCache     persistent frame index cache for opened readers, null to disable
+     */
+    public ApngReaderPool(long maxMappedBytes, int maxOpenFiles, ApngIndexCache indexCache) {
+        if (maxMappedBytes < 0 || maxOpenFiles < 0) throw new IllegalArgumentException("budget must not be negative");
+        mMaxMappedBytes = maxMappedBytes;
+        mMaxOpenFiles = maxOpenFiles;
+        mIndexCache = indexCache;
+    }
+
+    /**
+     * acquire a lease of the shared reader of the apng file, open it if not pooled or changed,
+     * close the lease after use
+     *
+     * @param apngFile apng file path
+     * @return lease of the shared reader
+     * @throws IOException
+     * @throws FormatNotSupportException
+     */
+    public ApngReaderLease acquire(String apngFile) throws IOException, FormatNotSupportException {
+        File file = new File(apngFile);
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+
+        String key = file.getAbsolutePath();
+        Entry entry;
+        synchronized (this) {
+            if (mClosed) throw new IllegalStateException("Pool closed");
+            entry = mEntries.get(key);
+            if (entry != null && (entry.mSize != size || entry.mModified != mtime)) {
+                // file changed, the old reader is closed when it's idle
+                mEntries.remove(key);
+                retire(entry);
+                entry = null;
+            }
+            if (entry == null) {
+                // reserve the entry, the reader is opened out of the lock by the first acquire
+                entry = new Entry(apngFile, mIndexCache, size, mtime);
+                mEntries.put(key, entry);
+                mMappedBytes += size;
+                mOpenFiles++;
+            }
+            // referenced while opening, so it's not trimmed
+            entry.mRefCount++;
+        }
+
+        boolean leased = false;
+        try {
+            ApngReader reader = entry.open();
+            synchronized (this) {
+                trim();
+            }
+            leased = true;
+            return new ApngReaderLease(this, reader, entry);
+        } finally {
+            if (!leased) abandon(key, entry);
+        }
+    }
+
+    /**
+     * drop the reference of a failed acquire, remove the entry from the pool if its open failed
+     */
+    private synchronized void abandon(String key, Entry entry) {
+        if (entry.isFailed() && !entry.mRetired) {
+            if (mEntries.get(key) == entry) mEntries.remove(key);
+            entry.mRetired = true;
+        }
+        entry.mRefCount--;
+        if (entry.mRetired && entry.mRefCount == 0) {
+            try {
+                closeEntry(entry);
+            } catch (IOException e) {
+                // the error of the acquire is thrown
+            }
+        }
+    }
+
+    /**
+     * called by lease's close()
+     */
+    synchronized void release(Object token) throws IOException {
+        Entry entry = (Entry) token;
+        entry.mRefCount--;
+        if (entry.mRetired) {
+            if (entry.mRefCount == 0) closeEntry(entry);
+        } else {
+            trim();
+        }
+    }
+
+    /**
+     * close least recently used idle readers until in budget
+     */
+    private void trim() throws IOException {
+        Iterator<Entry> it = mEntries.values().iterator();
+        while ((mMappedBytes > mMaxMappedBytes || mOpenFiles > mMaxOpenFiles) && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.mRefCount > 0) continue;
+            it.remove();
+            closeEntry(entry);
+        }
+    }
+
+    /**
+     * remove a reader from the pool, close it now if it's idle, or when its last lease closed
+     */
+    private void retire(Entry entry) throws IOException {
+        entry.mRetired = true;
+        if (entry.mRefCount == 0) closeEntry(entry);
+    }
+
+    private void closeEntry(Entry entry) throws IOException {
+        mMappedBytes -= entry.mSize;
+        mOpenFiles--;
+        ApngReader reader = entry.getReader();
+        if (reader != null) reader.close();
+    }
+
+    /**
+     * total mapped bytes of open files, include replaced files still in use
+     */
+    public synchronized long getMappedBytes() {
+        return mMappedBytes;
+    }
+
+    /**
+     * count of open files, include replaced files still in use
+     */
+    public synchronized int getOpenFiles() {
+        return mOpenFiles;
+    }
+
+    /**
+     * close all idle readers, readers in use are closed when their last lease closed,
+     * no more acquire() after closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        mClosed = true;
+        List<Entry> entries = new ArrayList<>(mEntries.values());
+        mEntries.clear();
+        IOException error = null;
+        for (Entry entry : entries) {
+            try {
+                retire(entry);
+            } catch (IOException e) {
+                if (error == null) error = e;
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    /**
+     * pooled reader and its identity, the reader is opened once by the first acquire of the entry
+     */
+    private static class Entry {
+        private final FutureTask<ApngReader> mOpen;
+        private final long mSize;
+        private final long mModified;
+        private int mRefCount;
+        private boolean mRetired;
+
+        Entry(final String apngFile, final ApngIndexCache indexCache, long size, long modified) {
+            mOpen = new FutureTask<>(new Callable<ApngReader>() {
+                @Override
+                public ApngReader call() throws Exception {
+                    return new ApngReader(apngFile, indexCache);
+                }
+            });
+            mSize = size;
+            mModified = modified;
+        }
+
+        /**
+         * open the reader on the calling thread, or wait for the open by another acquire
+         */
+        ApngReader open() throws IOException, FormatNotSupportException {
+            mOpen.run(); // no-op if already opening or opened
+            try {
+                return mOpen.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while opening");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof FormatNotSupportException) throw (FormatNotSupportException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IOException("Open apng failed", cause);
+            }
+        }
+
+        /**
+         * the opened reader, null if not opened yet or the open failed
+         */
+        ApngReader getReader() {
+            if (!mOpen.isDone()) return null;
+            try {
+                return mOpen.get();
+            } catch (InterruptedException | ExecutionException | CancellationException e) {
+                return null;
+            }
+        }
+
+        boolean isFailed() {
+            return mOpen.isDone() && getReader() == null;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package li.tengfei.apng.base;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access apng data storage with 64-bit offsets
+ * <p>
+ * files not larger than 2GB are mapped as one MappedByteBuffer (the fast path),
+ * larger files are mapped lazily in windows, see ApngWindowedStorage
+ *
+ * @author ltf
+ * @since 26/10/19, 上午10:15
+ */
+public abstract class ApngStorage implements Closeable {
+    /**
+     * max size of a single buffer storage
+     */
+    public static final long MAX_BUFFER_SIZE = Integer.MAX_VALUE;
+
+    // channel of the mapped file, maybe null
+    protected final FileChannel mChannel;
+
+    ApngStorage(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    /**
+     * map the whole file channel as a storage, the storage owns the channel and closes it on close()
+     */
+    public static ApngStorage map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size <= MAX_BUFFER_SIZE) {
+            return new ApngBufferStorage(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), channel);
+        }
+        return new ApngWindowedStorage(channel, size, ApngWindowedStorage.DEFAULT_WINDOW_SHIFT);
+    }
+
+    /**
+     * wrap a buffer as a storage, data is between 0 and limit
+     */
+    public static ApngStorage wrap(ByteBuffer buffer) {
+        return new ApngBufferStorage(buffer, null);
+    }
+
+    /**
+     * channel of the mapped file, maybe null
+     */
+    public FileChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * total data size
+     */
+    public abstract long size();
+
+    /**
+     * read int at the absolute position
+     */
+    public abstract int getInt(long pos);
+
+    /**
+     * read short at the absolute position
+     */
+    public abstract short getShort(long pos);
+
+    /**
+     * read byte at the absolute position
+     */
+    public abstract byte get(long pos);
+
+    /**
+     * read bytes from the absolute position to the array
+     */
+    public abstract void get(long pos, byte[] dst, int dstOffset, int length);
+
+    /**
+     * get a read only buffer of data at [pos, pos+length), without copy if possible
+     */
+    public abstract ByteBuffer slice(long pos, int length);
+
+    /**
+     * close the channel (if any) and release the data
+     */
+    @Override
+    public void close() throws IOException {
+        if (mChannel != null) mChannel.close();
+    }
+}
@@ -0,0 +1,102 @@
+package li.tengfei.apng.base;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Forward only Apng reader over an InputStream or ReadableByteChannel, no file or mmap required
+ * <p>
+ * chunks are read through a small reusable buffer and parsed by an ApngPushParser,
+ * only a frame's IDAT/fdAT chunks are held in memory, so the memory used is proportional
+ * to the largest frame, not the whole file
+ *
+ * @author ltf
+ * @since 26/10/18, 下午8:05
+ */
+public class ApngStreamReader implements Closeable {
+    private final ReadableByteChannel mChannel;
+    private final ApngChannelSupplier mData;
+    private final ApngPushParser mParser;
+    private final ArrayDeque<ApngFrame> mFrames = new ArrayDeque<>(); // parsed but not returned frames
+
+    public ApngStreamReader(InputStream in) throws IOException, FormatNotSupportException {
+        this(Channels.newChannel(in));
+    }
+
+    public ApngStreamReader(ReadableByteChannel channel) throws IOException, FormatNotSupportException {
+        mChannel = channel;
+        mData = new ApngChannelSupplier(channel);
+        mParser = new ApngPushParser(new ApngPushListener() {
+            @Override
+            public void onACTL(ApngACTLChunk actl) {
+            }
+
+            @Override
+            public void onFrameReady(ApngFrame frame) {
+                mFrames.add(frame);
+            }
+
+            @Override
+            public void onEnd() {
+            }
+        }, mData);
+        if (!mData.ensure(16)) throw new FormatNotSupportException("Not a png/apng file");
+        mParser.parse();
+    }
+
+    /**
+     * get the acTL chunk information, read ahead until the acTL chunk if it's not read yet
+     *
+     * @return animation control info
+     * @throws IOException
+     * @throws FormatNotSupportException
+     */
+    public ApngACTLChunk getACTL() throws IOException, FormatNotSupportException {
+        while (mParser.getACTL() == null) {
+            if (!mFrames.isEmpty() || mParser.isEnded() || !readMore()) {
+                throw new FormatNotSupportException("No ACTL chunk founded, not an apng file. (maybe it's a png only)");
+            }
+        }
+        return mParser.getACTL();
+    }
+
+    /**
+     * get next frame control info & bitmap
+     *
+     * @return next frame control info, or null if no next FCTL chunk || no next IDAT/FDAT
+     * @throws IOException
+     */
+    public ApngFrame nextFrame() throws IOException {
+        while (mFrames.isEmpty()) {
+            if (mParser.isEnded()) return null;
+            if (!readMore()) throw new EOFException("Unexpected end of apng data");
+        }
+        return mFrames.poll();
+    }
+
+    /**
+     * read once from the channel and parse the buffered data
+     *
+     * @return false if end of the channel reached
+     */
+    private boolean readMore() throws IOException {
+        if (!mData.fill()) return false;
+        try {
+            mParser.parse();
+        } catch (FormatNotSupportException e) {
+            // signature is checked in constructor already
+            throw new IOException(e);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+}
@@ -0,0 +1,112 @@
+package li.tengfei.apng.base;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Storage over a large file (> 2GB), mapped lazily in fixed size windows with 64-bit offsets
+ * <p>
+ * a window is mapped at the first access into it. reads crossing a window boundary are assembled
+ * from both windows. after close(), all windows are dropped and any read throws IllegalStateException
+ *
+ * @author ltf
+ * @since 26/10/19, 上午11:20
+ */
+class ApngWindowedStorage extends ApngStorage {
+    public static final int DEFAULT_WINDOW_SHIFT = 30; // 1GB windows
+
+    private final long mSize;
+    private final int mWindowShift;
+    private final long mWindowMask;
+    private volatile AtomicReferenceArray<MappedByteBuffer> mWindows;
+
+    ApngWindowedStorage(FileChannel channel, long size, int windowShift) {
+        super(channel);
+        mSize = size;
+        mWindowShift = windowShift;
+        mWindowMask = (1L << windowShift) - 1;
+        mWindows = new AtomicReferenceArray<>((int) ((size + mWindowMask) >>> windowShift));
+    }
+
+    /**
+     * get the window contains the position, map it if not mapped yet
+     */
+    private MappedByteBuffer window(long pos) {
+        AtomicReferenceArray<MappedByteBuffer> windows = mWindows;
+        if (windows == null) throw new IllegalStateException("Storage closed");
+        int index = (int) (pos >>> mWindowShift);
+        MappedByteBuffer window = windows.get(index);
+        if (window == null) {
+            long base = (long) index << mWindowShift;
+            try {
+                window = mChannel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(mWindowMask + 1, mSize - base));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (!windows.compareAndSet(index, null, window)) window = windows.get(index);
+        }
+        return window;
+    }
+
+    /**
+     * whether [pos, pos+length) is in one window
+     */
+    private boolean inOneWindow(long pos, int length) {
+        return (pos & mWindowMask) + length <= mWindowMask + 1;
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public int getInt(long pos) {
+        if (inOneWindow(pos, 4)) return window(pos).getInt((int) (pos & mWindowMask));
+        return (get(pos) & 0xFF) << 24 | (get(pos + 1) & 0xFF) << 16 | (get(pos + 2) & 0xFF) << 8 | get(pos + 3) & 0xFF;
+    }
+
+    @Override
+    public short getShort(long pos) {
+        if (inOneWindow(pos, 2)) return window(pos).getShort((int) (pos & mWindowMask));
+        return (short) ((get(pos) & 0xFF) << 8 | get(pos + 1) & 0xFF);
+    }
+
+    @Override
+    public byte get(long pos) {
+        return window(pos).get((int) (pos & mWindowMask));
+    }
+
+    @Override
+    public void get(long pos, byte[] dst, int dstOffset, int length) {
+        while (length > 0) {
+            int off = (int) (pos & mWindowMask);
+            int count = (int) Math.min(length, mWindowMask + 1 - off);
+            window(pos).get(off, dst, dstOffset, count);
+            pos += count;
+            dstOffset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public ByteBuffer slice(long pos, int length) {
+        if (inOneWindow(pos, length)) {
+            return window(pos).slice((int) (pos & mWindowMask), length).asReadOnlyBuffer();
+        }
+        // crossed a window boundary, rare for chunks, copy it
+        byte[] data = new byte[length];
+        get(pos, data, 0, length);
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mWindows = null;
+        super.close();
+    }
+}
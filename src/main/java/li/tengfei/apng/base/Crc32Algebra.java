@@ -0,0 +1,96 @@
+package li.tengfei.apng.base;
+
+/**
+ * CRC-32 (the PNG/zlib CRC) arithmetic over GF(2), without touching the data again
+ * <p>
+ * a CRC value is treated as a polynomial modulo the CRC polynomial (bit reflected as zlib does),
+ * appending n bytes after data multiplies it's CRC by x^(8n), so CRCs of concatenated data are combined
+ * by crc(A+B) = shift(crc(A), len(B)) ^ crc(B), in O(log n) time
+ *
+ * @author ltf
+ * @since 26/10/19, 下午5:10
+ */
+public final class Crc32Algebra {
+    private static final int POLY = 0xEDB88320; // reflected CRC-32 polynomial
+    private static final int X0 = 0x80000000; // polynomial x^0 (1) in reflected form
+
+    // X2N[k] = x^(2^k) modulo POLY
+    private static final int[] X2N = new int[32];
+
+    static {
+        int p = X0 >>> 1; // x^1
+        X2N[0] = p;
+        for (int k = 1; k < 32; k++) {
+            X2N[k] = p = multiply(p, p);
+        }
+    }
+
+    private Crc32Algebra() {
+    }
+
+    /**
+     * multiply two polynomials modulo the CRC polynomial
+     */
+    public static int multiply(int a, int b) {
+        int m = X0;
+        int p = 0;
+        for (; ; ) {
+            if ((a & m) != 0) {
+                p ^= b;
+                if ((a & (m - 1)) == 0) break;
+            }
+            m >>>= 1;
+            b = (b & 1) != 0 ? (b >>> 1) ^ POLY : b >>> 1;
+        }
+        return p;
+    }
+
+    /**
+     * x^(n * 2^k) modulo the CRC polynomial
+     */
+    private static int x2nModP(long n, int k) {
+        int p = X0;
+        while (n != 0) {
+            if ((n & 1) != 0) p = multiply(X2N[k & 31], p);
+            n >>>= 1;
+            k++;
+        }
+        return p;
+    }
+
+    /**
+     * shift a crc as if len zero bytes are appended to the data without the CRC pre/post conditioning,
+     * that's the part of crc(A+B) contributed by A
+     *
+     * @param crc CRC value of A
+     * @param len length of B in bytes
+     */
+    public static int shift(int crc, long len) {
+        return multiply(x2nModP(len, 3), crc);
+    }
+
+    /**
+     * CRC of concatenated data A+B
+     *
+     * @param crc1 CRC value of A
+     * @param crc2 CRC value of B
+     * @param len2 length of B in bytes
+     * @return CRC value of A+B
+     */
+    public static int combine(int crc1, int crc2, long len2) {
+        return shift(crc1, len2) ^ crc2;
+    }
+
+    /**
+     * CRC of data with a replaced prefix, P1+B to P2+B, the data B is not needed
+     *
+     * @param crc     CRC value of P1+B
+     * @param oldHead CRC value of P1
+     * @param newHead CRC value of P2
+     * @param len     length of B in bytes
+     * @return CRC value of P2+B
+     */
+    public static int replaceHead(int crc, int oldHead, int newHead, long len) {
+        return crc ^ shift(oldHead ^ newHead, len);
+    }
+}
@@ -1,8 +1,11 @@
 package li.tengfei.apng.base;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.zip.CRC32;
 
+import static li.tengfei.apng.base.ApngConst.CODE_IDAT;
 import static li.tengfei.apng.base.PngStream.intToArray;
 
 /**
@@ -12,14 +15,13 @@ import static li.tengfei.apng.base.PngStream.intToArray;
  * @since 16/12/2, 下午3:56
  */
 public class Fdat2IdatChunk extends ApngMmapParserChunk {
-    private int mDataSigOff; // signature "fdAT" 's  offset
-    private int mDataSigdEnd; // d's end(or A's position), in signature "fdAT"
-    private int mDataCrcOff; // data CRC's offset
-    private int mFDATSeqOff; // offset of "fdAT"'s sequence_number, only available when mIsFDAT = true
-    private int mFDATSeqEnd; // end of "fdAT"'s sequence_number, only available when mIsFDAT = true
-    private CRC32 mCrc = new CRC32();
-    private boolean mCalCrc = true; // need to compute/calculate CRC
-    private byte[] mCrcVal = new byte[4]; // used for fdAT recompute crc
+    private static final int IDAT_SIG_CRC = signatureCrc(); // CRC of "IDAT"
+    private long mDataSigOff; // signature "fdAT" 's  offset
+    private long mDataSigdEnd; // d's end(or A's position), in signature "fdAT"
+    private long mDataCrcOff; // data CRC's offset
+    private long mFDATSeqOff; // offset of "fdAT"'s sequence_number, only available when mIsFDAT = true
+    private long mFDATSeqEnd; // end of "fdAT"'s sequence_number, only available when mIsFDAT = true
+    private byte[] mCrcVal = new byte[4]; // converted IDAT chunk's crc
     private byte[] mFDATLength = new byte[4];// used for fdAT recompute length
 
     Fdat2IdatChunk(ApngMmapParserChunk copyFromChunk) {
@@ -34,6 +36,27 @@ public class Fdat2IdatChunk extends ApngMmapParserChunk {
         mFDATSeqEnd = offset + 12;
         mDataCrcOff = nextOffset - 4;
         intToArray(length - 4, mFDATLength, 0);
+        intToArray(idatCrc(), mCrcVal, 0);
+    }
+
+    /**
+     * derive the converted IDAT chunk's CRC from the stored fdAT chunk's CRC,
+     * replace the "fdAT"+sequence_number prefix by "IDAT" without hashing the data again
+     */
+    private int idatCrc() {
+        byte[] head = new byte[8];
+        mData.get(mDataSigOff, head, 0, 8);
+        CRC32 crc = new CRC32();
+        crc.update(head, 0, 8);
+        return Crc32Algebra.replaceHead(this.crc, (int) crc.getValue(), IDAT_SIG_CRC, length - 4);
+    }
+
+    private static int signatureCrc() {
+        byte[] sig = new byte[4];
+        intToArray(CODE_IDAT, sig, 0);
+        CRC32 crc = new CRC32();
+        crc.update(sig, 0, 4);
+        return (int) crc.getValue();
     }
 
     @Override
@@ -41,56 +64,71 @@ public class Fdat2IdatChunk extends ApngMmapParserChunk {
         return length + 8; // FDAT covert to IDAT will lost it's 4byte seq_num
     }
 
+    @Override
+    void collectBuffers(List<ByteBuffer> buffers) {
+        byte[] head = new byte[8];
+        System.arraycopy(mFDATLength, 0, head, 0, 4);
+        intToArray(CODE_IDAT, head, 4);
+        ByteBuffer data = mData.slice(mFDATSeqEnd, (int) (mDataCrcOff - mFDATSeqEnd));
+
+        buffers.add(ByteBuffer.wrap(head));
+        buffers.add(data);
+        buffers.add(ByteBuffer.wrap(mCrcVal.clone()));
+    }
+
+    @Override
+    ByteBuffer dataBuffer() {
+        return mData.slice(mFDATSeqEnd, length - 4);
+    }
+
+    @Override
+    boolean isStreamUnchanged() {
+        return false;
+    }
+
     // this function is optimized for performance, so it's maybe hard to read and control
     @Override
     int readAsStream(byte[] buffer, int byteOffset, int byteCount) throws IOException {
-        int pos = mBuf.position();
-        int size = nextOffset - pos;
+        long pos = mPos;
+        long remaining = nextOffset - pos;
         if (pos < mFDATSeqEnd) {
-            int removed = mFDATSeqEnd - pos;
-            size -= removed > 4 ? 4 : removed;
+            long removed = mFDATSeqEnd - pos;
+            remaining -= removed > 4 ? 4 : removed;
         }
-        if (size <= 0) return 0;
-        size = size > byteCount ? byteCount : size;
+        if (remaining <= 0) return 0;
+        int size = remaining > byteCount ? byteCount : (int) remaining;
         int dstEndOffset = byteOffset + size;
 
         for (int want = size; want > 0; ) {
             int count;
             if (pos >= mDataCrcOff) {
                 // read DATA CRC
-                count = nextOffset - pos;
+                count = (int) (nextOffset - pos);
                 count = want < count ? want : count;
-
-                // CRC only calculated for one times
-                if (mCalCrc) {
-                    intToArray((int) mCrc.getValue(), mCrcVal, 0);
-                    mCalCrc = false;
-                }
-                System.arraycopy(mCrcVal, 4 - (nextOffset - pos), buffer, dstEndOffset - want, count);
+                System.arraycopy(mCrcVal, 4 - (int) (nextOffset - pos), buffer, dstEndOffset - want, count);
                 move(count);
             } else if (pos >= mFDATSeqEnd) {
                 // all raw data don't need modify
-                count = mDataCrcOff - pos;
-                count = want < count ? want : count;
-                mBuf.get(buffer, dstEndOffset - want, count);
-                // compute crc for fdAT
-                if (mCalCrc) mCrc.update(buffer, dstEndOffset - want, count);
+                count = (int) Math.min(mDataCrcOff - pos, want);
+                mData.get(pos, buffer, dstEndOffset - want, count);
+                move(count);
                 //Log.d("ApngSurfaceView", String.format("r: %d, crc: %d", read - pre, System.currentTimeMillis() - read));
             } else if (pos >= mFDATSeqOff) {
                 // seq_num chunk will be skipped
-                count = mFDATSeqEnd - pos;
+                count = (int) (mFDATSeqEnd - pos);
                 count = want < count ? want : count;
                 want += count;
                 move(count);
             } else {
                 // data trunk header( length + type_code)
-                count = mFDATSeqOff - pos;
+                count = (int) (mFDATSeqOff - pos);
                 count = want < count ? want : count;
-                mBuf.get(buffer, dstEndOffset - want, count);
+                mData.get(pos, buffer, dstEndOffset - want, count);
+                move(count);
 
                 // update fdAT to IDAT
                 if (pos < mDataSigdEnd) {
-                    int dOff = mDataSigdEnd - pos - 2;
+                    int dOff = (int) (mDataSigdEnd - pos) - 2;
                     int cover = count - dOff;
                     if (cover >= 2) {
                         if (count > 1) buffer[dstEndOffset - want + dOff] = 'I';
@@ -100,20 +138,11 @@ public class Fdat2IdatChunk extends ApngMmapParserChunk {
                     }
                 }
 
-                // calculate CRC
-                if (pos >= mDataSigOff) {
-                    if (mCalCrc) mCrc.update(buffer, dstEndOffset - want, count);
-                } else {
-                    // compute CRC on bytes included
-                    int dOff = mDataSigOff - pos;
-                    int cover = count - dOff;
-                    if (mCalCrc && cover > 0) {
-                        mCrc.update(buffer, dstEndOffset - want + dOff, cover);
-                    }
-
-                    // update length
-                    cover = dOff < count ? dOff : count;
-                    if (cover > 0) System.arraycopy(mFDATLength, 4 - dOff, buffer, dstEndOffset - want, cover);
+                // update length
+                if (pos < mDataSigOff) {
+                    int dOff = (int) (mDataSigOff - pos);
+                    int cover = dOff < count ? dOff : count;
+                    System.arraycopy(mFDATLength, 4 - dOff, buffer, dstEndOffset - want, cover);
                 }
             }
             want -= count;
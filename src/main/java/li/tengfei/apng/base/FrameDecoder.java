@@ -0,0 +1,712 @@
+package li.tengfei.apng.base;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static li.tengfei.apng.base.PngStream.PNG_SIG_LEN;
+
+/**
+ * Frame pixel decoder, inflate and unfilter a frame's image data straight from the mapped chunks to pixels
+ * <p>
+ * the synthesized png stream is not read at all, the compressed data of IDAT/fdAT chunks are fed to the inflater
+ * as slices of the mapping. the inflater and scanline buffers are reused by all frames, so nothing is allocated
+ * for a frame unless it needs larger scanline buffers than before.
+ * <p>
+ * pixels are converted to the output format (see PixelFormat) scanline by scanline right after unfiltering,
+ * while the scanline is still in cache, there's no second pass over the frame.
+ * <p>
+ * with a sample size N (power of 2) set, only every Nth row and column is converted and stored, the rows are
+ * sampled on the canvas grid, see ApngFCTLChunk.sampled(). all rows are still inflated and unfiltered,
+ * as a filtered row depends on the previous row, but rows after the last sampled row are not inflated.
+ * <p>
+ * with a region of interest set, only the part of the frame inside the region is converted and stored,
+ * frames outside the region are not inflated at all. rows after the region's last row are not inflated,
+ * and bytes right of the region's last column are not unfiltered, as filters only refer to pixels left or up.
+ * <p>
+ * Adam7 interlaced frames are unfiltered pass by pass with pass sized scanlines, and each pass's pixels are
+ * scattered straight into the destination, so there's no full size intermediate image. with a pass listener set,
+ * the destination holds a complete low resolution image after each pass, see FramePassListener.
+ * <p>
+ * !!! ATTENTION !!! not thread safe, use a decoder per thread, and call release() after use
+ *
+ * @author ltf
+ * @since 26/10/19, 下午8:10
+ */
+public class FrameDecoder {
+    // color types
+    static final int COLOR_GRAY = 0;
+    static final int COLOR_RGB = 2;
+    static final int COLOR_PALETTE = 3;
+    static final int COLOR_GRAY_ALPHA = 4;
+    static final int COLOR_RGBA = 6;
+
+    // filter types
+    static final int FILTER_NONE = 0;
+    static final int FILTER_SUB = 1;
+    static final int FILTER_UP = 2;
+    static final int FILTER_AVERAGE = 3;
+    static final int FILTER_PAETH = 4;
+
+    // Adam7 passes: first pixel and pixel spacing of each pass
+    private static final int[] ADAM7_X = {0, 4, 0, 2, 0, 1, 0};
+    private static final int[] ADAM7_Y = {0, 0, 4, 0, 2, 0, 1};
+    private static final int[] ADAM7_DX = {8, 8, 4, 4, 2, 2, 1};
+    private static final int[] ADAM7_DY = {8, 8, 8, 4, 4, 2, 2};
+
+    private final int mFormat;
+    private final Inflater mInflater = new Inflater();
+    private byte[] mCur = new byte[0]; // current scanline, filter type byte at 0
+    private byte[] mPrev = new byte[0]; // previous scanline, filter type byte at 0
+    private int[] mRow = new int[0]; // ARGB pixels (or palette indices) of a scanline, for destinations not ARGB int arrays
+    private int[] mColumns = new int[0]; // pass pixel of each destination column, interlaced frames only
+    private FramePassListener mPassListener;
+    private PixelTables mTables; // lookup tables of last decoded head data state
+    private int mSampleSize = 1;
+
+    // region of interest on the (subsampled) canvas
+    private int mRegionX;
+    private int mRegionY;
+    private int mRegionWidth = Integer.MAX_VALUE;
+    private int mRegionHeight = Integer.MAX_VALUE;
+
+    // current frame's header info
+    private int mWidth;
+    private int mHeight;
+    private int mBitDepth;
+    private int mColorType;
+    private boolean mInterlaced;
+
+    // current frame's sampled columns in the region: x = mPhaseX + i * mSampleSize, i < mOutWidth
+    private int mPhaseX;
+    private int mOutWidth;
+
+    // current frame's data chunks
+    private PngStream mStream;
+    private int mChunkIndex;
+
+    /**
+     * decoder of ARGB_8888 pixels
+     */
+    public FrameDecoder() {
+        this(PixelFormat.ARGB_8888);
+    }
+
+    /**
+     * @param format output pixel format, one of PixelFormat's formats
+     */
+    public FrameDecoder(int format) {
+        PixelFormat.bytesPerPixel(format); // check the format
+        mFormat = format;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getSampleSize() {
+        return mSampleSize;
+    }
+
+    /**
+     * set the sample size of following decodes, frames are decoded to their region on a canvas subsampled
+     * by the sample size, see ApngFCTLChunk.getSampledxOff()/getSampledWidth() etc.
+     *
+     * @param sampleSize keep one of every sampleSize rows and columns, power of 2, 1 for full size
+     */
+    public void setSampleSize(int sampleSize) {
+        if (sampleSize < 1 || (sampleSize & sampleSize - 1) != 0) {
+            throw new IllegalArgumentException("Sample size must be a power of 2");
+        }
+        mSampleSize = sampleSize;
+    }
+
+    /**
+     * set the region of interest of following decodes, only pixels of frames inside the region are decoded,
+     * the destination offset of decode() is the index of the top left pixel of the frame's part in the region
+     *
+     * @param x      region left on the canvas, the subsampled canvas if sample size is not 1
+     * @param y      region top on the canvas
+     * @param width  region width
+     * @param height region height
+     */
+    public void setRegion(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0
+                || width > Integer.MAX_VALUE - x || height > Integer.MAX_VALUE - y) {
+            throw new IllegalArgumentException("Invalid region");
+        }
+        mRegionX = x;
+        mRegionY = y;
+        mRegionWidth = width;
+        mRegionHeight = height;
+    }
+
+    /**
+     * decode the whole frames again
+     */
+    public void clearRegion() {
+        mRegionX = 0;
+        mRegionY = 0;
+        mRegionWidth = Integer.MAX_VALUE;
+        mRegionHeight = Integer.MAX_VALUE;
+    }
+
+    /**
+     * set the listener of decoded passes of interlaced frames, pass pixels are also replicated to the blocks
+     * they stand for while the listener is set, so the destination is complete at each pass for early display
+     *
+     * @param listener the listener, null to remove
+     */
+    public void setPassListener(FramePassListener listener) {
+        mPassListener = listener;
+    }
+
+    /**
+     * palette (ARGB_8888 colors) of last decoded frame, for INDEXED_8 pixels,
+     * it's shared by frames with the same palette and MUST NOT be modified
+     *
+     * @return the palette, or null if last frame is not a palette image
+     */
+    public int[] getPalette() {
+        return mTables == null ? null : mTables.palette;
+    }
+
+    /**
+     * lookup tables of last decoded frame, null if nothing decoded yet
+     */
+    PixelTables getTables() {
+        return mTables;
+    }
+
+    /**
+     * decode a frame to pixels of an int array, for ARGB_8888 and ARGB_PREMULTIPLIED formats
+     *
+     * @param frame  frame read by ApngReader/ApngCursor/ApngPushParser, it's image stream is not read
+     * @param dst    destination pixels
+     * @param offset index of the frame's top left pixel in dst, the first sampled pixel in the region if
+     *               sample size or region is set
+     * @param stride pixels count between two rows in dst
+     * @throws IOException               if the image data is broken
+     * @throws FormatNotSupportException if the image format is not supported
+     */
+    public void decode(ApngFrame frame, int[] dst, int offset, int stride)
+            throws IOException, FormatNotSupportException {
+        if (PixelFormat.bytesPerPixel(mFormat) != 4) throw new IllegalArgumentException("int array for 32-bit formats only");
+        decode(frame, dst, offset, stride, dst.length);
+    }
+
+    /**
+     * decode a frame to pixels of a short array, for RGB_565 and ARGB_4444 formats
+     *
+     * @see #decode(ApngFrame, int[], int, int)
+     */
+    public void decode(ApngFrame frame, short[] dst, int offset, int stride)
+            throws IOException, FormatNotSupportException {
+        if (PixelFormat.bytesPerPixel(mFormat) != 2) throw new IllegalArgumentException("short array for 16-bit formats only");
+        decode(frame, dst, offset, stride, dst.length);
+    }
+
+    /**
+     * decode a frame to palette indices of a byte array, for INDEXED_8 format, see getPalette()
+     *
+     * @throws FormatNotSupportException if the frame is not a palette image
+     * @see #decode(ApngFrame, int[], int, int)
+     */
+    public void decode(ApngFrame frame, byte[] dst, int offset, int stride)
+            throws IOException, FormatNotSupportException {
+        if (mFormat != PixelFormat.INDEXED_8) throw new IllegalArgumentException("byte array for INDEXED_8 format only");
+        decode(frame, dst, offset, stride, dst.length);
+    }
+
+    /**
+     * decode a frame to pixels of a buffer (usually a direct buffer), each pixel in the buffer's order
+     *
+     * @param frame  frame read by ApngReader/ApngCursor/ApngPushParser, it's image stream is not read
+     * @param dst    destination pixels, absolute put used, it's position is not changed
+     * @param offset index (in pixels, not bytes) of the frame's top left pixel in dst
+     * @param stride pixels count between two rows in dst
+     * @throws IOException               if the image data is broken
+     * @throws FormatNotSupportException if the image format is not supported
+     */
+    public void decode(ApngFrame frame, ByteBuffer dst, int offset, int stride)
+            throws IOException, FormatNotSupportException {
+        decode(frame, dst, offset, stride, dst.limit() / PixelFormat.bytesPerPixel(mFormat));
+    }
+
+    private void decode(ApngFrame frame, Object dst, int offset, int stride, int capacity)
+            throws IOException, FormatNotSupportException {
+        if (!(frame.imageStream instanceof PngStream)) {
+            throw new IllegalArgumentException("Frame's image stream is not a png stream");
+        }
+        prepare((PngStream) frame.imageStream);
+
+        // sampled rows and columns in the region, on the grid of the subsampled canvas
+        int n = mSampleSize;
+        int top = Math.max(ApngFCTLChunk.sampled(frame.getyOff(), n), mRegionY);
+        int bottom = Math.min(ApngFCTLChunk.sampled(frame.getyOff() + mHeight, n), mRegionY + mRegionHeight);
+        int left = Math.max(ApngFCTLChunk.sampled(frame.getxOff(), n), mRegionX);
+        int right = Math.min(ApngFCTLChunk.sampled(frame.getxOff() + mWidth, n), mRegionX + mRegionWidth);
+        int phaseY = top * n - frame.getyOff();
+        int outHeight = bottom - top;
+        mPhaseX = left * n - frame.getxOff();
+        mOutWidth = right - left;
+        if (mOutWidth <= 0 || outHeight <= 0) {
+            mStream = null;
+            return;
+        }
+
+        long last = offset + (long) (outHeight - 1) * stride + mOutWidth;
+        if (offset < 0 || stride < mOutWidth || last > capacity) {
+            throw new IllegalArgumentException("Destination too small for the frame");
+        }
+
+        if (mInterlaced) {
+            try {
+                decodeAdam7(frame, dst, offset, stride, phaseY, outHeight);
+            } finally {
+                mStream = null;
+            }
+            return;
+        }
+
+        int bpp = bytesPerPixel();
+        int rowBytes = rowBytes(mWidth);
+        int usedBytes = rowBytes(mPhaseX + (mOutWidth - 1) * n + 1); // bytes till the last used pixel
+        if (mCur.length < rowBytes + 1) {
+            mCur = new byte[rowBytes + 1];
+            mPrev = new byte[rowBytes + 1];
+        }
+        if (mRow.length < mOutWidth) mRow = new int[mOutWidth];
+        Arrays.fill(mPrev, 0, rowBytes + 1, (byte) 0);
+
+        try {
+            int lastRow = phaseY + (outHeight - 1) * n;
+            for (int y = 0, next = phaseY; y <= lastRow; y++) {
+                inflateFully(mCur, rowBytes + 1);
+                PixelKernels.unfilter(mCur, mPrev, usedBytes, bpp);
+                if (y == next) {
+                    writeRow(mCur, dst, offset);
+                    offset += stride;
+                    next += n;
+                }
+                byte[] tmp = mPrev;
+                mPrev = mCur;
+                mCur = tmp;
+            }
+        } finally {
+            mStream = null;
+        }
+    }
+
+    /**
+     * decode an interlaced frame pass by pass, scatter each pass's pixels into the destination
+     *
+     * @param phaseY    first sampled row in the region
+     * @param outHeight count of sampled rows in the region
+     */
+    private void decodeAdam7(ApngFrame frame, Object dst, int offset, int stride, int phaseY, int outHeight)
+            throws IOException {
+        int n = mSampleSize;
+        int lastRow = phaseY + (outHeight - 1) * n;
+        int bpp = bytesPerPixel();
+        boolean fill = mPassListener != null;
+        if (mRow.length < mWidth) mRow = new int[mWidth];
+        if (mColumns.length < mOutWidth) mColumns = new int[mOutWidth];
+        int lastPass = 6;
+        while (ADAM7_X[lastPass] >= mWidth || ADAM7_Y[lastPass] >= mHeight) lastPass--;
+
+        for (int p = 0; p <= lastPass; p++) {
+            int x0 = ADAM7_X[p];
+            int y0 = ADAM7_Y[p];
+            int dx = ADAM7_DX[p];
+            int dy = ADAM7_DY[p];
+            if (x0 >= mWidth || y0 >= mHeight) continue; // empty pass, no data at all
+            int passWidth = (mWidth - x0 + dx - 1) / dx;
+            int passHeight = (mHeight - y0 + dy - 1) / dy;
+            // block of image a pass pixel stands for, when replicated
+            int blockW = fill ? (x0 == 0 ? dx : dx >> 1) : 1;
+            int blockH = fill ? (y0 == 0 ? dy : dy >> 1) : 1;
+
+            // pass pixel of each destination column, -1 if not in this pass
+            int maxK = -1;
+            for (int c = 0, x = mPhaseX; c < mOutWidth; c++, x += n) {
+                int k = x < x0 ? -1 : (x - x0) / dx;
+                if (k >= passWidth || k >= 0 && x - x0 - k * dx >= blockW) k = -1;
+                mColumns[c] = k;
+                if (k > maxK) maxK = k;
+            }
+
+            int rowBytes = rowBytes(passWidth);
+            int usedBytes = rowBytes(maxK + 1);
+            if (mCur.length < rowBytes + 1) {
+                mCur = new byte[rowBytes + 1];
+                mPrev = new byte[rowBytes + 1];
+            }
+            Arrays.fill(mPrev, 0, rowBytes + 1, (byte) 0);
+
+            for (int j = 0, y = y0; j < passHeight; j++, y += dy) {
+                inflateFully(mCur, rowBytes + 1);
+                if (y > lastRow) {
+                    // following rows of the pass are not used, only inflated to reach the next pass
+                    if (p == lastPass) break;
+                    continue;
+                }
+                PixelKernels.unfilter(mCur, mPrev, usedBytes, bpp);
+
+                // sampled rows in the block of this pass row
+                int r = Math.max(y, phaseY);
+                r = phaseY + (r - phaseY + n - 1) / n * n;
+                int end = Math.min(y + blockH, lastRow + 1);
+                if (r < end && maxK >= 0) {
+                    passRow(mCur, maxK + 1);
+                    for (; r < end; r += n) scatterRow(dst, offset + (r - phaseY) / n * stride);
+                }
+                byte[] tmp = mPrev;
+                mPrev = mCur;
+                mCur = tmp;
+            }
+            if (mPassListener != null) mPassListener.onPass(frame, p + 1);
+        }
+    }
+
+    /**
+     * convert the first count pixels of a pass scanline to mRow, in ARGB of the format or palette indices
+     */
+    private void passRow(byte[] row, int count) {
+        if (mFormat == PixelFormat.INDEXED_8) {
+            for (int k = 0; k < count; k++) mRow[k] = indexAt(row, mTables, k) & 0xFF;
+            return;
+        }
+        convertRow(row, mRow, 0, 0, 1, count);
+        if (mFormat == PixelFormat.ARGB_PREMULTIPLIED) PixelFormat.premultiplyRow(mRow, 0, count);
+    }
+
+    /**
+     * write the converted pass pixels to their columns of a destination row
+     */
+    private void scatterRow(Object dst, int dstOff) {
+        int[] columns = mColumns;
+        int[] pixels = mRow;
+        for (int c = 0; c < mOutWidth; c++) {
+            int k = columns[c];
+            if (k < 0) continue;
+            int v = pixels[k];
+            int i = dstOff + c;
+            if (dst instanceof int[]) {
+                ((int[]) dst)[i] = v;
+            } else if (dst instanceof short[]) {
+                ((short[]) dst)[i] = mFormat == PixelFormat.RGB_565 ? PixelFormat.toRgb565(v) : PixelFormat.toArgb4444(v);
+            } else if (dst instanceof byte[]) {
+                ((byte[]) dst)[i] = (byte) v;
+            } else {
+                ByteBuffer buf = (ByteBuffer) dst;
+                switch (mFormat) {
+                    case PixelFormat.INDEXED_8:
+                        buf.put(i, (byte) v);
+                        break;
+                    case PixelFormat.RGB_565:
+                        buf.putShort(i << 1, PixelFormat.toRgb565(v));
+                        break;
+                    case PixelFormat.ARGB_4444:
+                        buf.putShort(i << 1, PixelFormat.toArgb4444(v));
+                        break;
+                    default:
+                        buf.putInt(i << 2, v);
+                }
+            }
+        }
+    }
+
+    /**
+     * convert an unfiltered scanline to the output format, and write it to the destination
+     */
+    private void writeRow(byte[] row, Object dst, int dstOff) {
+        int width = mOutWidth;
+        if (mFormat == PixelFormat.INDEXED_8) {
+            if (dst instanceof byte[] && mSampleSize == 1 && mPhaseX == 0) {
+                indexRow(row, mTables, (byte[]) dst, dstOff, width);
+            } else if (dst instanceof byte[]) {
+                byte[] indices = (byte[]) dst;
+                for (int i = 0, x = mPhaseX; i < width; i++, x += mSampleSize) {
+                    indices[dstOff + i] = indexAt(row, mTables, x);
+                }
+            } else {
+                ByteBuffer buf = (ByteBuffer) dst;
+                for (int i = 0, x = mPhaseX; i < width; i++, x += mSampleSize) {
+                    buf.put(dstOff + i, indexAt(row, mTables, x));
+                }
+            }
+            return;
+        }
+
+        if (dst instanceof int[]) {
+            int[] pixels = (int[]) dst;
+            convertRow(row, pixels, dstOff, mPhaseX, mSampleSize, width);
+            if (mFormat == PixelFormat.ARGB_PREMULTIPLIED) PixelFormat.premultiplyRow(pixels, dstOff, width);
+            return;
+        }
+
+        int[] argb = mRow;
+        convertRow(row, argb, 0, mPhaseX, mSampleSize, width);
+        if (mFormat == PixelFormat.ARGB_PREMULTIPLIED) PixelFormat.premultiplyRow(argb, 0, width);
+        if (dst instanceof short[]) {
+            PixelFormat.packRow(mFormat, argb, 0, (short[]) dst, dstOff, width);
+            return;
+        }
+
+        ByteBuffer buf = (ByteBuffer) dst;
+        switch (mFormat) {
+            case PixelFormat.RGB_565:
+                for (int x = 0; x < width; x++) buf.putShort((dstOff + x) << 1, PixelFormat.toRgb565(argb[x]));
+                break;
+            case PixelFormat.ARGB_4444:
+                for (int x = 0; x < width; x++) buf.putShort((dstOff + x) << 1, PixelFormat.toArgb4444(argb[x]));
+                break;
+            default:
+                for (int x = 0; x < width; x++) buf.putInt((dstOff + x) << 2, argb[x]);
+        }
+    }
+
+    /**
+     * copy palette indices of a scanline
+     */
+    private static void indexRow(byte[] row, PixelTables tables, byte[] dst, int dstOff, int width) {
+        if (tables.bitDepth == 8) {
+            System.arraycopy(row, 1, dst, dstOff, width);
+            return;
+        }
+        byte[] indices = tables.indices;
+        int count = tables.pixelsPerByte;
+        int end = dstOff + width;
+        int d = dstOff;
+        int s = 1;
+        for (int full = end - count; d <= full; s++) {
+            int t = (row[s] & 0xFF) * count;
+            for (int k = 0; k < count; k++) dst[d++] = indices[t + k];
+        }
+        if (d < end) {
+            for (int t = (row[s] & 0xFF) * count; d < end; t++) dst[d++] = indices[t];
+        }
+    }
+
+    private static byte indexAt(byte[] row, PixelTables tables, int x) {
+        if (tables.bitDepth == 8) return row[1 + x];
+        int count = tables.pixelsPerByte;
+        return tables.indices[(row[1 + x / count] & 0xFF) * count + x % count];
+    }
+
+    /**
+     * release the native inflater, the decoder is not usable after released
+     */
+    public void release() {
+        mInflater.end();
+    }
+
+    /**
+     * read the frame's header info from head data, and prepare the inflater
+     */
+    private void prepare(PngStream stream) throws FormatNotSupportException {
+        byte[] head = stream.getHeadData();
+        int ihdr = PNG_SIG_LEN + 8;
+        mWidth = getInt(head, ihdr);
+        mHeight = getInt(head, ihdr + 4);
+        mBitDepth = head[ihdr + 8] & 0xFF;
+        mColorType = head[ihdr + 9] & 0xFF;
+        if (head[ihdr + 10] != 0 || head[ihdr + 11] != 0) {
+            throw new FormatNotSupportException("Unknown compression or filter method");
+        }
+        if ((head[ihdr + 12] & 0xFF) > 1) throw new FormatNotSupportException("Unknown interlace method");
+        mInterlaced = head[ihdr + 12] == 1;
+        if (mWidth <= 0 || mHeight <= 0) throw new FormatNotSupportException("Invalid image size");
+        if (!isValidDepth(mColorType, mBitDepth)) {
+            throw new FormatNotSupportException("Invalid color type " + mColorType + " with bit depth " + mBitDepth);
+        }
+        if (mTables == null || mTables.version != stream.getHeadVersion()) {
+            mTables = PixelTables.build(stream, mColorType, mBitDepth);
+        }
+        if (mFormat == PixelFormat.INDEXED_8 && mColorType != COLOR_PALETTE) {
+            throw new FormatNotSupportException("INDEXED_8 format for palette images only");
+        }
+
+        mStream = stream;
+        mChunkIndex = 0;
+        mInflater.reset();
+    }
+
+    static boolean isValidDepth(int colorType, int bitDepth) {
+        switch (colorType) {
+            case COLOR_GRAY:
+                return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8 || bitDepth == 16;
+            case COLOR_PALETTE:
+                return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+            case COLOR_RGB:
+            case COLOR_GRAY_ALPHA:
+            case COLOR_RGBA:
+                return bitDepth == 8 || bitDepth == 16;
+            default:
+                return false;
+        }
+    }
+
+    private static int getInt(byte[] data, int off) {
+        return (data[off] & 0xFF) << 24 | (data[off + 1] & 0xFF) << 16 | (data[off + 2] & 0xFF) << 8 | data[off + 3] & 0xFF;
+    }
+
+    private int channels() {
+        switch (mColorType) {
+            case COLOR_RGB:
+                return 3;
+            case COLOR_GRAY_ALPHA:
+                return 2;
+            case COLOR_RGBA:
+                return 4;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * bytes per complete pixel, at least 1, used by filters
+     */
+    private int bytesPerPixel() {
+        return Math.max(1, channels() * mBitDepth >> 3);
+    }
+
+    /**
+     * bytes of a scanline's pixels, without the filter type byte
+     */
+    private int rowBytes(int width) {
+        return (int) (((long) width * channels() * mBitDepth + 7) >> 3);
+    }
+
+    /**
+     * inflate exactly size bytes to buf, feed data chunks to the inflater as needed
+     */
+    private void inflateFully(byte[] buf, int size) throws IOException {
+        int filled = 0;
+        try {
+            while (filled < size) {
+                int count = mInflater.inflate(buf, filled, size - filled);
+                if (count == 0) {
+                    if (mInflater.finished() || mInflater.needsDictionary()) {
+                        throw new EOFException("Image data ended before all rows decoded");
+                    }
+                    if (mInflater.needsInput()) {
+                        if (mChunkIndex >= mStream.getDataChunkCount()) {
+                            throw new EOFException("Image data chunks ended before all rows decoded");
+                        }
+                        mInflater.setInput(mStream.getDataChunk(mChunkIndex++).dataBuffer());
+                    }
+                }
+                filled += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Broken image data", e);
+        }
+    }
+
+    /**
+     * convert packed 1/2/4/8-bit pixels by the expansion table
+     */
+    private static void expandRow(byte[] row, PixelTables tables, int[] dst, int dstOff, int width) {
+        int[] expand = tables.expand;
+        int count = tables.pixelsPerByte;
+        int end = dstOff + width;
+        int s = 1;
+        if (count == 1) {
+            for (int d = dstOff; d < end; d++) dst[d] = expand[row[s++] & 0xFF];
+            return;
+        }
+        int d = dstOff;
+        for (int full = end - count; d <= full; s++) {
+            int t = (row[s] & 0xFF) * count;
+            for (int k = 0; k < count; k++) dst[d++] = expand[t + k];
+        }
+        // last partial byte
+        if (d < end) {
+            for (int t = (row[s] & 0xFF) * count; d < end; t++) dst[d++] = expand[t];
+        }
+    }
+
+    /**
+     * convert sampled packed 1/2/4/8-bit pixels by the expansion table
+     */
+    private static void sampleRow(byte[] row, PixelTables tables, int[] dst, int dstOff, int width, int x, int step) {
+        int[] expand = tables.expand;
+        int count = tables.pixelsPerByte;
+        for (int d = dstOff, end = dstOff + width; d < end; d++, x += step) {
+            dst[d] = expand[(row[1 + x / count] & 0xFF) * count + x % count];
+        }
+    }
+
+    /**
+     * convert an unfiltered scanline's sampled pixels to ARGB pixels
+     *
+     * @param row    unfiltered scanline, pixels from 1
+     * @param dst    destination pixels
+     * @param dstOff index of the first pixel in dst
+     * @param x      first pixel to convert in the scanline
+     * @param sample convert one of every sample pixels
+     * @param width  count of pixels to convert
+     */
+    private void convertRow(byte[] row, int[] dst, int dstOff, int x, int sample, int width) {
+        int end = dstOff + width;
+        int bytes = mBitDepth == 16 ? 2 : 1; // bytes per channel
+        int first = 1 + x * channels() * bytes; // first sampled pixel in row, for 8/16-bit channels
+        int step = sample * channels() * bytes; // bytes between sampled pixels
+        switch (mColorType) {
+            case COLOR_RGBA:
+                if (mBitDepth == 8) {
+                    for (int d = dstOff, s = first; d < end; d++, s += step) {
+                        dst[d] = (row[s + 3] & 0xFF) << 24 | (row[s] & 0xFF) << 16 | (row[s + 1] & 0xFF) << 8 | row[s + 2] & 0xFF;
+                    }
+                } else {
+                    for (int d = dstOff, s = first; d < end; d++, s += step) {
+                        dst[d] = (row[s + 6] & 0xFF) << 24 | (row[s] & 0xFF) << 16 | (row[s + 2] & 0xFF) << 8 | row[s + 4] & 0xFF;
+                    }
+                }
+                break;
+            case COLOR_RGB:
+                if (mBitDepth == 8) {
+                    int key = mTables.transKey;
+                    for (int d = dstOff, s = first; d < end; d++, s += step) {
+                        int rgb = (row[s] & 0xFF) << 16 | (row[s + 1] & 0xFF) << 8 | row[s + 2] & 0xFF;
+                        dst[d] = rgb == key ? rgb : 0xFF000000 | rgb;
+                    }
+                } else {
+                    long key = mTables.transKey16;
+                    for (int d = dstOff, s = first; d < end; d++, s += step) {
+                        int rgb = (row[s] & 0xFF) << 16 | (row[s + 2] & 0xFF) << 8 | row[s + 4] & 0xFF;
+                        long rgb16 = (long) ((row[s] & 0xFF) << 8 | row[s + 1] & 0xFF) << 32
+                                | (long) ((row[s + 2] & 0xFF) << 8 | row[s + 3] & 0xFF) << 16
+                                | (row[s + 4] & 0xFF) << 8 | row[s + 5] & 0xFF;
+                        dst[d] = rgb16 == key ? rgb : 0xFF000000 | rgb;
+                    }
+                }
+                break;
+            case COLOR_GRAY_ALPHA:
+                for (int d = dstOff, s = first; d < end; d++, s += step) {
+                    int g = row[s] & 0xFF;
+                    dst[d] = (row[s + bytes] & 0xFF) << 24 | g << 16 | g << 8 | g;
+                }
+                break;
+            default:
+                if (mBitDepth == 16) {
+                    // COLOR_GRAY
+                    long key = mTables.transKey16;
+                    for (int d = dstOff, s = first; d < end; d++, s += step) {
+                        int g = row[s] & 0xFF;
+                        int g16 = g << 8 | row[s + 1] & 0xFF;
+                        dst[d] = (g16 == key ? 0 : 0xFF000000) | g << 16 | g << 8 | g;
+                    }
+                } else {
+                    // COLOR_GRAY and COLOR_PALETTE, by the expansion table
+                    if (sample == 1 && x == 0) expandRow(row, mTables, dst, dstOff, width);
+                    else sampleRow(row, mTables, dst, dstOff, width, x, sample);
+                }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package li.tengfei.apng.base;
+
+/**
+ * Listener of decoded Adam7 passes of interlaced frames, for progressive display
+ *
+ * @author ltf
+ * @since 26/10/20, 下午4:10
+ */
+public interface FramePassListener {
+
+    /**
+     * called after each pass of an interlaced frame decoded to the destination,
+     * the destination then holds the whole frame at the pass's resolution, each decoded pixel
+     * is replicated to the block it stands for, until later passes overwrite the block
+     *
+     * @param frame the frame being decoded
+     * @param pass  the decoded pass, 1 to 7, later passes are skipped if they're empty for small frames
+     */
+    void onPass(ApngFrame frame, int pass);
+}
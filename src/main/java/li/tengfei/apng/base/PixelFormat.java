@@ -0,0 +1,121 @@
+package li.tengfei.apng.base;
+
+/**
+ * Output pixel formats of FrameDecoder and ApngCompositor, and per row pixel conversions
+ * <p>
+ * ARGB_8888 and ARGB_PREMULTIPLIED are stored in int arrays, RGB_565 and ARGB_4444 in short arrays,
+ * INDEXED_8 (palette images only) in byte arrays with a shared ARGB palette
+ *
+ * @author ltf
+ * @since 26/10/20, 上午11:00
+ */
+public final class PixelFormat {
+    /**
+     * non-premultiplied 8-bit ARGB, int per pixel
+     */
+    public static final int ARGB_8888 = 0;
+    /**
+     * premultiplied 8-bit ARGB, int per pixel, ready for blitting
+     */
+    public static final int ARGB_PREMULTIPLIED = 1;
+    /**
+     * 5-6-5 bits RGB, short per pixel, alpha is dropped
+     */
+    public static final int RGB_565 = 2;
+    /**
+     * non-premultiplied 4-bit ARGB, short per pixel
+     */
+    public static final int ARGB_4444 = 3;
+    /**
+     * 8-bit palette index, byte per pixel, palette images only.
+     * ApngCompositor also needs a fully transparent palette color for the canvas background
+     */
+    public static final int INDEXED_8 = 4;
+
+    private PixelFormat() {
+    }
+
+    /**
+     * bytes of a pixel in the format
+     */
+    public static int bytesPerPixel(int format) {
+        switch (format) {
+            case ARGB_8888:
+            case ARGB_PREMULTIPLIED:
+                return 4;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case INDEXED_8:
+                return 1;
+            default:
+                throw new IllegalArgumentException("Unknown pixel format " + format);
+        }
+    }
+
+    /**
+     * premultiply an ARGB_8888 pixel, color channels rounded
+     */
+    public static int premultiply(int argb) {
+        int a = argb >>> 24;
+        if (a == 0xFF) return argb;
+        if (a == 0) return 0;
+        int rb = (argb & 0xFF00FF) * a + 0x800080;
+        rb = (rb + (rb >>> 8 & 0xFF00FF)) >>> 8 & 0xFF00FF;
+        int g = (argb >> 8 & 0xFF) * a + 128;
+        return a << 24 | rb | (g + (g >> 8)) & 0xFF00;
+    }
+
+    /**
+     * pack ARGB_8888 to RGB_565, alpha is dropped
+     */
+    public static short toRgb565(int argb) {
+        return (short) (argb >> 8 & 0xF800 | argb >> 5 & 0x07E0 | argb >> 3 & 0x001F);
+    }
+
+    /**
+     * pack ARGB_8888 to ARGB_4444
+     */
+    public static short toArgb4444(int argb) {
+        return (short) (argb >>> 16 & 0xF000 | argb >> 12 & 0x0F00 | argb >> 8 & 0x00F0 | argb >> 4 & 0x000F);
+    }
+
+    /**
+     * expand RGB_565 to opaque ARGB_8888
+     */
+    public static int fromRgb565(short pixel) {
+        int r = pixel >> 11 & 0x1F;
+        int g = pixel >> 5 & 0x3F;
+        int b = pixel & 0x1F;
+        return 0xFF000000 | (r << 3 | r >> 2) << 16 | (g << 2 | g >> 4) << 8 | b << 3 | b >> 2;
+    }
+
+    /**
+     * expand ARGB_4444 to ARGB_8888
+     */
+    public static int fromArgb4444(short pixel) {
+        return ((pixel >> 12 & 0xF) * 0x11) << 24 | ((pixel >> 8 & 0xF) * 0x11) << 16
+                | ((pixel >> 4 & 0xF) * 0x11) << 8 | (pixel & 0xF) * 0x11;
+    }
+
+    /**
+     * premultiply a row of ARGB pixels in place
+     */
+    static void premultiplyRow(int[] pixels, int off, int count) {
+        for (int end = off + count; off < end; off++) {
+            int p = pixels[off];
+            if (p >>> 24 != 0xFF) pixels[off] = premultiply(p);
+        }
+    }
+
+    /**
+     * pack a row of ARGB pixels to RGB_565 or ARGB_4444
+     */
+    static void packRow(int format, int[] src, int srcOff, short[] dst, int dstOff, int count) {
+        if (format == RGB_565) {
+            for (int i = 0; i < count; i++) dst[dstOff + i] = toRgb565(src[srcOff + i]);
+        } else {
+            for (int i = 0; i < count; i++) dst[dstOff + i] = toArgb4444(src[srcOff + i]);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package li.tengfei.apng.base;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+import static li.tengfei.apng.base.FrameDecoder.FILTER_AVERAGE;
+import static li.tengfei.apng.base.FrameDecoder.FILTER_NONE;
+import static li.tengfei.apng.base.FrameDecoder.FILTER_PAETH;
+import static li.tengfei.apng.base.FrameDecoder.FILTER_SUB;
+import static li.tengfei.apng.base.FrameDecoder.FILTER_UP;
+
+/**
+ * Per pixel hot loops of decoding and compositing: scanline unfiltering and OVER blending
+ * <p>
+ * the fast kernels work on several bytes at once in a long/int register (SWAR, SIMD within a register),
+ * reading byte arrays through VarHandle views, which the JIT compiles to plain wide loads and stores.
+ * they produce exactly the same bytes as the scalar kernels, which are kept as fallbacks and references.
+ * set system property "li.tengfei.apng.scalarKernels" to true to use the scalar kernels only
+ *
+ * @author ltf
+ * @since 26/10/19, 下午10:40
+ */
+final class PixelKernels {
+    static final boolean FAST = !Boolean.getBoolean("li.tengfei.apng.scalarKernels") && wideAccessSupported();
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final long L_LOW7 = 0x7F7F7F7F7F7F7F7FL;
+    private static final long L_HIGH1 = 0x8080808080808080L;
+    private static final int I_LOW7 = 0x7F7F7F7F;
+    private static final int I_HIGH1 = 0x80808080;
+    private static final int I_NOT_LOW1 = 0xFEFEFEFE;
+
+    private PixelKernels() {
+    }
+
+    /**
+     * capability check of the wide array access used by fast kernels
+     */
+    private static boolean wideAccessSupported() {
+        try {
+            byte[] probe = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+            return (long) MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN)
+                    .get(probe, 1) == 0x0908070605040302L;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /**
+     * reverse the scanline filter in place
+     *
+     * @param cur      current scanline, filter type at 0, filtered bytes from 1
+     * @param prev     previous unfiltered scanline, all 0 for the first row
+     * @param rowBytes bytes of the scanline without filter type
+     * @param bpp      bytes per complete pixel
+     */
+    static void unfilter(byte[] cur, byte[] prev, int rowBytes, int bpp) throws IOException {
+        if (!FAST) {
+            unfilterScalar(cur, prev, rowBytes, bpp);
+            return;
+        }
+        switch (cur[0]) {
+            case FILTER_UP:
+                unfilterUp(cur, prev, rowBytes + 1);
+                break;
+            case FILTER_SUB:
+                if (bpp == 4) unfilterSub4(cur, rowBytes + 1);
+                else unfilterScalar(cur, prev, rowBytes, bpp);
+                break;
+            case FILTER_AVERAGE:
+                if (bpp == 4) unfilterAverage4(cur, prev, rowBytes + 1);
+                else unfilterScalar(cur, prev, rowBytes, bpp);
+                break;
+            default:
+                unfilterScalar(cur, prev, rowBytes, bpp);
+        }
+    }
+
+    /**
+     * byte wise add without carry between bytes
+     */
+    private static long addBytes(long x, long y) {
+        return ((x & L_LOW7) + (y & L_LOW7)) ^ ((x ^ y) & L_HIGH1);
+    }
+
+    private static int addBytes(int x, int y) {
+        return ((x & I_LOW7) + (y & I_LOW7)) ^ ((x ^ y) & I_HIGH1);
+    }
+
+    /**
+     * byte wise floor((x + y) / 2)
+     */
+    private static int avgBytes(int x, int y) {
+        return (x & y) + (((x ^ y) & I_NOT_LOW1) >>> 1);
+    }
+
+    private static void unfilterUp(byte[] cur, byte[] prev, int end) {
+        int i = 1;
+        for (; i + 8 <= end; i += 8) {
+            LONGS.set(cur, i, addBytes((long) LONGS.get(cur, i), (long) LONGS.get(prev, i)));
+        }
+        for (; i < end; i++) {
+            cur[i] += prev[i];
+        }
+    }
+
+    private static void unfilterSub4(byte[] cur, int end) {
+        int i = 5;
+        if (i + 4 > end) {
+            for (; i < end; i++) cur[i] += cur[i - 4];
+            return;
+        }
+        int left = (int) INTS.get(cur, 1);
+        for (; i + 4 <= end; i += 4) {
+            left = addBytes((int) INTS.get(cur, i), left);
+            INTS.set(cur, i, left);
+        }
+        for (; i < end; i++) {
+            cur[i] += cur[i - 4];
+        }
+    }
+
+    private static void unfilterAverage4(byte[] cur, byte[] prev, int end) {
+        if (end < 5) {
+            unfilterAverageScalar(cur, prev, end, 4);
+            return;
+        }
+        int left = addBytes((int) INTS.get(cur, 1), ((int) INTS.get(prev, 1) & I_NOT_LOW1) >>> 1);
+        INTS.set(cur, 1, left);
+        int i = 5;
+        for (; i + 4 <= end; i += 4) {
+            left = addBytes((int) INTS.get(cur, i), avgBytes(left, (int) INTS.get(prev, i)));
+            INTS.set(cur, i, left);
+        }
+        for (; i < end; i++) {
+            cur[i] += ((cur[i - 4] & 0xFF) + (prev[i] & 0xFF)) >> 1;
+        }
+    }
+
+    private static void unfilterAverageScalar(byte[] cur, byte[] prev, int end, int bpp) {
+        int first = Math.min(bpp + 1, end);
+        for (int i = 1; i < first; i++) {
+            cur[i] += (prev[i] & 0xFF) >> 1;
+        }
+        for (int i = bpp + 1; i < end; i++) {
+            cur[i] += ((cur[i - bpp] & 0xFF) + (prev[i] & 0xFF)) >> 1;
+        }
+    }
+
+    /**
+     * scalar reference of unfilter()
+     */
+    static void unfilterScalar(byte[] cur, byte[] prev, int rowBytes, int bpp) throws IOException {
+        int end = rowBytes + 1;
+        switch (cur[0]) {
+            case FILTER_NONE:
+                break;
+            case FILTER_SUB:
+                for (int i = bpp + 1; i < end; i++) {
+                    cur[i] += cur[i - bpp];
+                }
+                break;
+            case FILTER_UP:
+                for (int i = 1; i < end; i++) {
+                    cur[i] += prev[i];
+                }
+                break;
+            case FILTER_AVERAGE:
+                unfilterAverageScalar(cur, prev, end, bpp);
+                break;
+            case FILTER_PAETH:
+                int first = Math.min(bpp + 1, end);
+                for (int i = 1; i < first; i++) {
+                    cur[i] += prev[i];
+                }
+                for (int i = bpp + 1; i < end; i++) {
+                    int a = cur[i - bpp] & 0xFF;
+                    int b = prev[i] & 0xFF;
+                    int c = prev[i - bpp] & 0xFF;
+                    int pa = Math.abs(b - c);
+                    int pb = Math.abs(a - c);
+                    int pc = Math.abs(a + b - c - c);
+                    cur[i] += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                }
+                break;
+            default:
+                throw new IOException("Unknown filter type " + cur[0]);
+        }
+    }
+
+    /**
+     * blend non-premultiplied ARGB source pixels OVER the destination pixels, integer only
+     */
+    static void blendOver(int[] src, int srcOff, int srcStride, int[] dst, int dstOff, int dstStride, int w, int h) {
+        if (!FAST) {
+            blendOverScalar(src, srcOff, srcStride, dst, dstOff, dstStride, w, h);
+            return;
+        }
+        for (int row = 0; row < h; row++, srcOff += srcStride, dstOff += dstStride) {
+            for (int i = 0; i < w; i++) {
+                int s = src[srcOff + i];
+                int sa = s >>> 24;
+                if (sa == 0xFF) {
+                    dst[dstOff + i] = s;
+                } else if (sa != 0) {
+                    int d = dst[dstOff + i];
+                    if (d >>> 24 == 0xFF) {
+                        // opaque destination, red and blue blended in one register
+                        int ia = 255 - sa;
+                        int rb = (s & 0xFF00FF) * sa + (d & 0xFF00FF) * ia + 0x800080;
+                        rb = (rb + (rb >>> 8 & 0xFF00FF)) >>> 8 & 0xFF00FF;
+                        int g = (s >> 8 & 0xFF) * sa + (d >> 8 & 0xFF) * ia + 128;
+                        dst[dstOff + i] = 0xFF000000 | rb | (g + (g >> 8)) & 0xFF00;
+                    } else {
+                        dst[dstOff + i] = over(s, sa, d);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * scalar reference of blendOver()
+     */
+    static void blendOverScalar(int[] src, int srcOff, int srcStride, int[] dst, int dstOff, int dstStride, int w, int h) {
+        for (int row = 0; row < h; row++, srcOff += srcStride, dstOff += dstStride) {
+            for (int i = 0; i < w; i++) {
+                int s = src[srcOff + i];
+                int sa = s >>> 24;
+                if (sa == 0xFF) {
+                    dst[dstOff + i] = s;
+                } else if (sa != 0) {
+                    dst[dstOff + i] = over(s, sa, dst[dstOff + i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * blend premultiplied ARGB source pixels OVER premultiplied destination pixels: d = s + d * (1 - sa),
+     * all four channels scaled in two registers
+     */
+    static void blendOverPremultiplied(int[] src, int srcOff, int srcStride, int[] dst, int dstOff, int dstStride,
+                                       int w, int h) {
+        for (int row = 0; row < h; row++, srcOff += srcStride, dstOff += dstStride) {
+            for (int i = 0; i < w; i++) {
+                int s = src[srcOff + i];
+                int sa = s >>> 24;
+                if (sa == 0xFF) {
+                    dst[dstOff + i] = s;
+                } else if (sa != 0) {
+                    int d = dst[dstOff + i];
+                    int ia = 255 - sa;
+                    int rb = (d & 0xFF00FF) * ia + 0x800080;
+                    rb = (rb + (rb >>> 8 & 0xFF00FF)) >>> 8 & 0xFF00FF;
+                    int ag = (d >>> 8 & 0xFF00FF) * ia + 0x800080;
+                    ag = (ag + (ag >>> 8 & 0xFF00FF)) & 0xFF00FF00;
+                    dst[dstOff + i] = s + (ag | rb);
+                }
+            }
+        }
+    }
+
+    /**
+     * blend ARGB source pixels OVER RGB_565 or ARGB_4444 destination pixels
+     */
+    static void blendOver16(int format, int[] src, int srcOff, int srcStride, short[] dst, int dstOff, int dstStride,
+                            int w, int h) {
+        boolean rgb565 = format == PixelFormat.RGB_565;
+        for (int row = 0; row < h; row++, srcOff += srcStride, dstOff += dstStride) {
+            for (int i = 0; i < w; i++) {
+                int s = src[srcOff + i];
+                int sa = s >>> 24;
+                if (sa == 0) continue;
+                if (sa != 0xFF) {
+                    short d = dst[dstOff + i];
+                    s = over(s, sa, rgb565 ? PixelFormat.fromRgb565(d) : PixelFormat.fromArgb4444(d));
+                }
+                dst[dstOff + i] = rgb565 ? PixelFormat.toRgb565(s) : PixelFormat.toArgb4444(s);
+            }
+        }
+    }
+
+    /**
+     * blend palette index source pixels OVER index destination pixels, the palette colors MUST be
+     * fully opaque or fully transparent, so it's a copy of not transparent pixels
+     */
+    static void blendOverIndexed(byte[] src, int srcOff, int srcStride, int[] palette, byte[] dst, int dstOff,
+                                 int dstStride, int w, int h) {
+        for (int row = 0; row < h; row++, srcOff += srcStride, dstOff += dstStride) {
+            for (int i = 0; i < w; i++) {
+                byte s = src[srcOff + i];
+                if (palette[s & 0xFF] >>> 24 != 0) dst[dstOff + i] = s;
+            }
+        }
+    }
+
+    /**
+     * blend a translucent source pixel OVER a destination pixel
+     */
+    static int over(int s, int sa, int d) {
+        int da = d >>> 24;
+        if (da == 0) return s;
+        int ia = 255 - sa;
+        if (da == 0xFF) {
+            // opaque destination, result is opaque
+            return 0xFF000000
+                    | div255((s >> 16 & 0xFF) * sa + (d >> 16 & 0xFF) * ia) << 16
+                    | div255((s >> 8 & 0xFF) * sa + (d >> 8 & 0xFF) * ia) << 8
+                    | div255((s & 0xFF) * sa + (d & 0xFF) * ia);
+        }
+        // both translucent: a = sa + da * (1 - sa), c = (sc * sa + dc * da * (1 - sa)) / a, all scaled by 255
+        int ssa = sa * 255;
+        int dda = da * ia;
+        int a = ssa + dda;
+        int half = a >> 1;
+        return div255(a) << 24
+                | ((s >> 16 & 0xFF) * ssa + (d >> 16 & 0xFF) * dda + half) / a << 16
+                | ((s >> 8 & 0xFF) * ssa + (d >> 8 & 0xFF) * dda + half) / a << 8
+                | ((s & 0xFF) * ssa + (d & 0xFF) * dda + half) / a;
+    }
+
+    /**
+     * x / 255 rounded, for x in [0, 255 * 255]
+     */
+    static int div255(int x) {
+        x += 128;
+        return (x + (x >> 8)) >> 8;
+    }
+}
@@ -0,0 +1,141 @@
+package li.tengfei.apng.base;
+
+import static li.tengfei.apng.base.ApngConst.CODE_PLTE;
+import static li.tengfei.apng.base.ApngConst.CODE_tRNS;
+import static li.tengfei.apng.base.FrameDecoder.COLOR_GRAY;
+import static li.tengfei.apng.base.FrameDecoder.COLOR_PALETTE;
+import static li.tengfei.apng.base.FrameDecoder.COLOR_RGB;
+
+/**
+ * Precomputed pixel lookup tables of a head data state, built from IHDR, PLTE and tRNS
+ * <p>
+ * palette images get a 256 entries ARGB palette with tRNS alpha applied. 1/2/4-bit palette and gray images
+ * get an expansion table giving all pixels packed in a byte at once, 8-bit gray gets a gray to ARGB table,
+ * both with the tRNS color key folded in, so the per pixel conversion has no bit operations or branches.
+ * 16-bit channels are reduced by taking the high byte, they need no table.
+ * 1/2/4-bit palette images also get an index expansion table, for INDEXED_8 output.
+ * <p>
+ * tables are immutable, and valid for all streams with the same head version
+ *
+ * @author ltf
+ * @since 26/10/20, 上午9:20
+ */
+final class PixelTables {
+    final int version;       // head version of the tables
+    final int colorType;
+    final int bitDepth;
+    final int[] palette;     // ARGB of each palette index, palette images only
+    final int[] expand;      // ARGB of each packed pixel: expand[byte * pixelsPerByte + k], 1/2/4/8-bit gray and palette
+    final byte[] indices;    // palette index of each packed pixel, like expand, 1/2/4-bit palette images only
+    final int transparentIndex; // first fully transparent palette index, or -1
+    final int pixelsPerByte; // pixels packed in a byte, for the expansion table
+    final int transKey;      // transparent rgb of 8-bit RGB images, or -1
+    final long transKey16;   // transparent samples of 16-bit gray / RGB images, or -1
+
+    private PixelTables(int version, int colorType, int bitDepth, int[] palette, int[] expand,
+                        byte[] indices, int transKey, long transKey16) {
+        this.version = version;
+        this.colorType = colorType;
+        this.bitDepth = bitDepth;
+        this.palette = palette;
+        this.expand = expand;
+        this.indices = indices;
+        int transparent = -1;
+        for (int i = 0; palette != null && i < palette.length; i++) {
+            if (palette[i] >>> 24 == 0) {
+                transparent = i;
+                break;
+            }
+        }
+        this.transparentIndex = transparent;
+        this.pixelsPerByte = bitDepth < 8 ? 8 / bitDepth : 1;
+        this.transKey = transKey;
+        this.transKey16 = transKey16;
+    }
+
+    /**
+     * build tables for the stream's head data
+     */
+    static PixelTables build(PngStream stream, int colorType, int bitDepth) throws FormatNotSupportException {
+        byte[] head = stream.getHeadData();
+        int trns = stream.findHeadChunk(CODE_tRNS);
+        int trnsLen = trns < 0 ? 0 : getInt(head, trns);
+        int[] palette = null;
+        int[] expand = null;
+        byte[] indices = null;
+        int transKey = -1;
+        long transKey16 = -1;
+
+        if (colorType == COLOR_PALETTE) {
+            int plte = stream.findHeadChunk(CODE_PLTE);
+            if (plte < 0) throw new FormatNotSupportException("No PLTE chunk for palette image");
+            int count = Math.min(getInt(head, plte) / 3, 256);
+            palette = new int[256];
+            for (int i = 0; i < 256; i++) palette[i] = 0xFF000000;
+            for (int i = 0, p = plte + 8; i < count; i++, p += 3) {
+                palette[i] = 0xFF000000 | (head[p] & 0xFF) << 16 | (head[p + 1] & 0xFF) << 8 | head[p + 2] & 0xFF;
+            }
+            for (int i = 0, n = Math.min(trnsLen, count); i < n; i++) {
+                palette[i] = palette[i] & 0xFFFFFF | (head[trns + 8 + i] & 0xFF) << 24;
+            }
+            expand = bitDepth == 8 ? palette : expandTable(palette, bitDepth);
+            if (bitDepth < 8) {
+                int[] identity = new int[1 << bitDepth];
+                for (int i = 0; i < identity.length; i++) identity[i] = i;
+                int[] table = expandTable(identity, bitDepth);
+                indices = new byte[table.length];
+                for (int i = 0; i < table.length; i++) indices[i] = (byte) table[i];
+            }
+        } else if (colorType == COLOR_GRAY) {
+            int key = trnsLen >= 2 ? (head[trns + 8] & 0xFF) << 8 | head[trns + 9] & 0xFF : -1;
+            if (bitDepth == 16) {
+                transKey16 = key;
+            } else {
+                int max = (1 << bitDepth) - 1;
+                int[] gray = new int[max + 1];
+                for (int v = 0; v <= max; v++) {
+                    int g = v * 255 / max;
+                    gray[v] = (v == key ? 0 : 0xFF000000) | g << 16 | g << 8 | g;
+                }
+                expand = bitDepth == 8 ? gray : expandTable(gray, bitDepth);
+            }
+        } else if (colorType == COLOR_RGB && trnsLen >= 6) {
+            int r = (head[trns + 8] & 0xFF) << 8 | head[trns + 9] & 0xFF;
+            int g = (head[trns + 10] & 0xFF) << 8 | head[trns + 11] & 0xFF;
+            int b = (head[trns + 12] & 0xFF) << 8 | head[trns + 13] & 0xFF;
+            if (bitDepth == 16) transKey16 = (long) r << 32 | (long) g << 16 | b;
+            else transKey = (r & 0xFF) << 16 | (g & 0xFF) << 8 | b & 0xFF;
+        }
+        return new PixelTables(stream.getHeadVersion(), colorType, bitDepth, palette, expand, indices, transKey, transKey16);
+    }
+
+    /**
+     * whether all palette colors are fully opaque or fully transparent
+     */
+    boolean isPaletteBinaryAlpha() {
+        for (int argb : palette) {
+            int a = argb >>> 24;
+            if (a != 0 && a != 0xFF) return false;
+        }
+        return true;
+    }
+
+    /**
+     * expand a value table to all pixels packed in a byte, the first pixel in the highest bits
+     */
+    private static int[] expandTable(int[] values, int bitDepth) {
+        int count = 8 / bitDepth;
+        int mask = (1 << bitDepth) - 1;
+        int[] table = new int[256 * count];
+        for (int b = 0, t = 0; b < 256; b++) {
+            for (int k = 0; k < count; k++) {
+                table[t++] = values[b >> (8 - bitDepth * (k + 1)) & mask];
+            }
+        }
+        return table;
+    }
+
+    private static int getInt(byte[] data, int off) {
+        return (data[off] & 0xFF) << 24 | (data[off + 1] & 0xFF) << 16 | (data[off + 2] & 0xFF) << 8 | data[off + 3] & 0xFF;
+    }
+}
@@ -2,8 +2,14 @@ package li.tengfei.apng.base;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CRC32;
 
 import static li.tengfei.apng.base.ApngConst.CODE_IHDR;
@@ -28,16 +34,21 @@ public class PngStream extends InputStream {
     public static final int IHDR_CRC_OFF = PNG_SIG_LEN + IHDR_LEN - 4;
     public static final int[] IHDR_TYPE_CODE_HASHES = AngPatch.typeCodeHashes(CODE_IHDR);
 
+    // source of head data versions, unique in the process
+    private static final AtomicInteger HEAD_VERSIONS = new AtomicInteger();
+
     private byte[] mHeadData = new byte[PNG_SIG_LEN + IHDR_LEN]; // cached PNG_SIG_VER and IHDR and PLTE(optional) data
     private int mHeadDataLen = PNG_SIG_LEN + IHDR_LEN;
+    // version of head data except IHDR's width and height, streams with the same version have the same head data
+    private int mHeadVersion = HEAD_VERSIONS.incrementAndGet();
     /**
      * block infos chain for manage the head data
      */
     private BlockInfo mBlockInfos;
 
-    private int mIENDOffset; // IEND's offset, that's the length of all previous sections
-    private int mPos = 0;
-    private int mLen = 0;
+    private long mIENDOffset; // IEND's offset, that's the length of all previous sections
+    private long mPos = 0;
+    private long mLen = 0;
 
     private CRC32 mCrc = new CRC32();
     private ArrayList<ApngMmapParserChunk> mDataChunks = new ArrayList<>(3);
@@ -47,6 +58,25 @@ public class PngStream extends InputStream {
         System.arraycopy(PNG_SIG_DAT, 0, mHeadData, 0, PNG_SIG_LEN);
     }
 
+    /**
+     * construct a stream with head data restored from a snapshot
+     */
+    PngStream(HeadState state) {
+        restoreHeadState(state);
+    }
+
+    /**
+     * create a new stream for a frame, with a copy of current head data,
+     * so the frame's stream is not affected by the following head data changes
+     */
+    PngStream newFrameStream() {
+        PngStream stream = new PngStream();
+        stream.mHeadData = Arrays.copyOf(mHeadData, mHeadDataLen);
+        stream.mHeadDataLen = mHeadDataLen;
+        stream.mHeadVersion = mHeadVersion;
+        return stream;
+    }
+
     /**
      * finally generate data crc value
      */
@@ -62,6 +92,15 @@ public class PngStream extends InputStream {
      */
     void setIHDR(byte[] ihdrData) {
         System.arraycopy(ihdrData, 0, mHeadData, PNG_SIG_LEN, IHDR_LEN);
+        mHeadVersion = HEAD_VERSIONS.incrementAndGet();
+    }
+
+    /**
+     * version of head data (IHDR except width and height, and copied chunks),
+     * it's changed by new IHDR, new copied chunks and patches, but not by updateIHDR()
+     */
+    int getHeadVersion() {
+        return mHeadVersion;
     }
 
     /**
@@ -75,6 +114,7 @@ public class PngStream extends InputStream {
      * set(add/update) head Data by typeCode
      */
     void setHeadData(final int typeCode, byte[] data) {
+        mHeadVersion = HEAD_VERSIONS.incrementAndGet();
         BlockInfo block = getBlockInfo(typeCode, true);
         int delta = data.length - block.len;
         int oldHeadDataLen = mHeadDataLen;
@@ -185,6 +225,7 @@ public class PngStream extends InputStream {
      * apply patches to HeadData or IHDR
      */
     void applyPatches(List<AngPatch> patches) {
+        if (!patches.isEmpty()) mHeadVersion = HEAD_VERSIONS.incrementAndGet();
         for (AngPatch patch : patches) {
             if (IHDR_TYPE_CODE_HASHES[patch.typeHashIndex] == patch.typeHash) {
                 // applay patch to IHDR,
@@ -283,10 +324,54 @@ public class PngStream extends InputStream {
         }
     }
 
+    /**
+     * snapshot current head data (IHDR and copied chunks with all patches applied)
+     */
+    HeadState saveHeadState() {
+        int count = 0;
+        for (BlockInfo block = mBlockInfos; block != null; block = block.next) count++;
+        int[] typeCodes = new int[count];
+        int[] lens = new int[count];
+        count = 0;
+        for (BlockInfo block = mBlockInfos; block != null; block = block.next, count++) {
+            typeCodes[count] = block.typeCode;
+            lens[count] = block.len;
+        }
+        return new HeadState(Arrays.copyOf(mHeadData, mHeadDataLen), typeCodes, lens, mHeadVersion);
+    }
+
+    /**
+     * restore head data from a snapshot saved by saveHeadState()
+     */
+    void restoreHeadState(HeadState state) {
+        if (mHeadData.length < state.data.length) mHeadData = new byte[state.data.length];
+        System.arraycopy(state.data, 0, mHeadData, 0, state.data.length);
+        mHeadDataLen = state.data.length;
+        mHeadVersion = state.version;
+
+        mBlockInfos = null;
+        BlockInfo last = null;
+        int offset = PNG_SIG_LEN + IHDR_LEN;
+        for (int i = 0; i < state.typeCodes.length; i++) {
+            BlockInfo block = new BlockInfo(state.typeCodes[i]);
+            block.offset = offset;
+            block.len = state.lens[i];
+            offset += block.len;
+            if (last == null) {
+                mBlockInfos = block;
+            } else {
+                block.pre = last;
+                last.next = block;
+            }
+            last = block;
+        }
+    }
+
     /**
      * 3rd: set data chunk each time when use this to construct a frame png stream
      */
     void addDataChunk(ApngMmapParserChunk dataChunk) {
+        dataChunk.resetRead();
         this.mDataChunks.add(dataChunk);
         mIENDOffset = mHeadDataLen;
         for (ApngMmapParserChunk chunk : mDataChunks)
@@ -318,10 +403,139 @@ public class PngStream extends InputStream {
      * reset read position to head, dataChunkIndex to 0
      */
     void resetPos() {
+        for (ApngMmapParserChunk chunk : mDataChunks) chunk.resetRead();
         dataChunkIndex = 0;
         mPos = 0;
     }
 
+    /**
+     * head data array, IHDR starts at PNG_SIG_LEN, valid data is before getHeadDataLen()
+     */
+    byte[] getHeadData() {
+        return mHeadData;
+    }
+
+    int getHeadDataLen() {
+        return mHeadDataLen;
+    }
+
+    /**
+     * locate a copied chunk in head data by typeCode
+     *
+     * @return the chunk's start offset in head data, or -1 if not exists
+     */
+    int findHeadChunk(int typeCode) {
+        // head data after IHDR is a sequence of whole chunks, frame streams don't keep the block infos
+        for (int off = PNG_SIG_LEN + IHDR_LEN; off + 12 <= mHeadDataLen; ) {
+            int len = (mHeadData[off] & 0xFF) << 24 | (mHeadData[off + 1] & 0xFF) << 16
+                    | (mHeadData[off + 2] & 0xFF) << 8 | mHeadData[off + 3] & 0xFF;
+            if (len < 0 || off + 12 + len > mHeadDataLen) return -1;
+            int code = (mHeadData[off + 4] & 0xFF) << 24 | (mHeadData[off + 5] & 0xFF) << 16
+                    | (mHeadData[off + 6] & 0xFF) << 8 | mHeadData[off + 7] & 0xFF;
+            if (code == typeCode) return off;
+            off += 12 + len;
+        }
+        return -1;
+    }
+
+    /**
+     * count of data chunks
+     */
+    int getDataChunkCount() {
+        return mDataChunks.size();
+    }
+
+    /**
+     * get a data chunk by index
+     */
+    ApngMmapParserChunk getDataChunk(int index) {
+        return mDataChunks.get(index);
+    }
+
+    /**
+     * total length of the png stream
+     */
+    long length() {
+        return mLen;
+    }
+
+    /**
+     * read the whole png stream from head to an array
+     */
+    byte[] toByteArray() throws IOException {
+        if (mLen > Integer.MAX_VALUE) throw new IOException("Png stream too large for an array");
+        byte[] data = new byte[(int) mLen];
+        resetPos();
+        read(data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * get the whole png stream as buffers without copy the data chunks:
+     * head data, slices of mapped data chunks (with small headers/CRCs for converted fdAT chunks), IEND
+     * <p>
+     * the buffers are independent from this stream's read position
+     */
+    public ByteBuffer[] toBuffers() {
+        ArrayList<ByteBuffer> buffers = new ArrayList<>(mDataChunks.size() + 2);
+        buffers.add(ByteBuffer.wrap(mHeadData, 0, mHeadDataLen).asReadOnlyBuffer());
+        for (ApngMmapParserChunk chunk : mDataChunks) chunk.collectBuffers(buffers);
+        buffers.add(ByteBuffer.wrap(PNG_IEND_DAT).asReadOnlyBuffer());
+        return buffers.toArray(new ByteBuffer[buffers.size()]);
+    }
+
+    /**
+     * write the whole png stream to the channel without copy data to heap,
+     * unchanged data chunks are forwarded by FileChannel.transferTo if the mapped file's channel is open,
+     * others are written by gather writes
+     * <p>
+     * this function is independent from this stream's read position, the target should be a blocking channel
+     *
+     * @param target channel to write to
+     * @return bytes written
+     * @throws IOException
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        ArrayList<ByteBuffer> pending = new ArrayList<>(mDataChunks.size() + 2);
+        pending.add(ByteBuffer.wrap(mHeadData, 0, mHeadDataLen).asReadOnlyBuffer());
+        long written = 0;
+        for (ApngMmapParserChunk chunk : mDataChunks) {
+            FileChannel source = chunk.getSource();
+            if (chunk.isStreamUnchanged() && source != null && source.isOpen()) {
+                written += writeFully(target, pending);
+                pending.clear();
+                long pos = chunk.getOffset();
+                long end = pos + chunk.getStreamLen();
+                while (pos < end) pos += source.transferTo(pos, end - pos, target);
+                written += chunk.getStreamLen();
+            } else {
+                chunk.collectBuffers(pending);
+            }
+        }
+        pending.add(ByteBuffer.wrap(PNG_IEND_DAT).asReadOnlyBuffer());
+        return written + writeFully(target, pending);
+    }
+
+    /**
+     * write all buffers to the channel, by gather writes if supported
+     */
+    private static long writeFully(WritableByteChannel target, List<ByteBuffer> buffers) throws IOException {
+        long written = 0;
+        if (target instanceof GatheringByteChannel) {
+            ByteBuffer[] srcs = buffers.toArray(new ByteBuffer[buffers.size()]);
+            int first = 0;
+            while (first < srcs.length) {
+                written += ((GatheringByteChannel) target).write(srcs, first, srcs.length - first);
+                while (first < srcs.length && !srcs[first].hasRemaining()) first++;
+            }
+        } else {
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) written += target.write(buffer);
+            }
+        }
+        return written;
+    }
+
     @Override
     public int read() throws IOException {
         throw new UnsupportedOperationException("not support read by byte because of low performance");
@@ -330,27 +544,26 @@ public class PngStream extends InputStream {
     // this function is optimized for performance, so it's maybe hard to read and control
     @Override
     public int read(byte[] buffer, final int byteOffset, final int byteCount) throws IOException {
-        int size = mLen - mPos;
-        if (size <= 0) return 0;
-        size = size > byteCount ? byteCount : size;
+        long remaining = mLen - mPos;
+        if (remaining <= 0) return 0;
+        int size = remaining > byteCount ? byteCount : (int) remaining;
         int dstEndOffset = byteOffset + size;
 
         for (int want = size; want > 0; ) {
             int count;
             if (mPos < mHeadDataLen) {
                 // read from head data section
-                count = mHeadDataLen - mPos;
+                count = mHeadDataLen - (int) mPos;
                 count = want < count ? want : count;
-                System.arraycopy(mHeadData, mPos, buffer, dstEndOffset - want, count);
+                System.arraycopy(mHeadData, (int) mPos, buffer, dstEndOffset - want, count);
             } else if (mPos >= mIENDOffset) {
                 // read from IEND data section
-                count = mLen - mPos;
+                count = (int) (mLen - mPos);
                 count = want < count ? want : count;
-                System.arraycopy(PNG_IEND_DAT, mPos - mIENDOffset, buffer, dstEndOffset - want, count);
+                System.arraycopy(PNG_IEND_DAT, (int) (mPos - mIENDOffset), buffer, dstEndOffset - want, count);
             } else {
                 // data trunk header( length + type_code)
-                count = mIENDOffset - mPos;
-                count = want < count ? want : count;
+                count = (int) Math.min(mIENDOffset - mPos, want);
                 int readed = mDataChunks.get(dataChunkIndex).readAsStream(buffer, dstEndOffset - want, count);
                 // switch read from next data chunk
                 if (readed < count) {
@@ -364,6 +577,27 @@ public class PngStream extends InputStream {
         return size;
     }
 
+    /**
+     * Immutable snapshot of the head data
+     */
+    static class HeadState {
+        final byte[] data;
+        final int[] typeCodes;
+        final int[] lens;
+        final int version;
+
+        HeadState(byte[] data, int[] typeCodes, int[] lens) {
+            this(data, typeCodes, lens, HEAD_VERSIONS.incrementAndGet());
+        }
+
+        HeadState(byte[] data, int[] typeCodes, int[] lens, int version) {
+            this.data = data;
+            this.typeCodes = typeCodes;
+            this.lens = lens;
+            this.version = version;
+        }
+    }
+
     /**
      * Head data block info
      */
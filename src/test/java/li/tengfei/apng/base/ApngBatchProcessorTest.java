@@ -0,0 +1,205 @@
+package li.tengfei.apng.base;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * budgets, failures, backpressure and close of the batch processor
+ *
+ * @author ltf
+ * @since 26/10/21, 下午7:00
+ */
+public class ApngBatchProcessorTest {
+    private static final int FRAMES = 4;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        byte[] data = TestApngs.encode(40, 30, TestApngs.COLOR_RGBA,
+                TestApngs.randomFrames(new Random(160), 40, 30, FRAMES, TestApngs.COLOR_RGBA), false, 0);
+        mFile = TestApngs.write(mTemp.getRoot(), "a.png", data);
+    }
+
+    /**
+     * counts the frames, and the most jobs seen running together
+     */
+    private static class CountTask implements ApngBatchTask<Integer> {
+        private final AtomicInteger mRunning = new AtomicInteger();
+        private final AtomicInteger mMaxRunning = new AtomicInteger();
+
+        @Override
+        public Integer process(String path, ApngReader reader) throws IOException {
+            int running = mRunning.incrementAndGet();
+            while (running > mMaxRunning.get()) mMaxRunning.compareAndSet(mMaxRunning.get(), running);
+            try {
+                Thread.sleep(20); // long enough to overlap with other jobs, if they were allowed to
+                return reader.getFrameIndex().getFrameCount();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            } finally {
+                mRunning.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * waits till opened, or interrupted
+     */
+    private static class BlockTask implements ApngBatchTask<Integer> {
+        private final CountDownLatch mOpen = new CountDownLatch(1);
+        private final AtomicInteger mStarted = new AtomicInteger();
+
+        @Override
+        public Integer process(String path, ApngReader reader) throws IOException {
+            mStarted.incrementAndGet();
+            try {
+                mOpen.await();
+                return 0;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private static ApngBatchProcessor.Result<Integer> take(ApngBatchProcessor<Integer> processor)
+            throws InterruptedException {
+        ApngBatchProcessor.Result<Integer> result = processor.poll(10, TimeUnit.SECONDS);
+        assertNotNull("no result in time", result);
+        return result;
+    }
+
+    /**
+     * files larger than both budgets take the whole budgets, and run one by one instead of waiting forever
+     */
+    @Test
+    public void oversizedFileRunsAlone() throws Exception {
+        assertTrue(mFile.length() > 1024);
+        CountTask task = new CountTask();
+        ApngBatchProcessor<Integer> processor = new ApngBatchProcessor<>(task, 1024, 100, 8);
+        try {
+            for (int i = 0; i < 4; i++) processor.submit(mFile.getPath());
+            for (int i = 0; i < 4; i++) {
+                ApngBatchProcessor.Result<Integer> result = take(processor);
+                assertTrue(result.isSucceeded());
+                assertEquals(FRAMES, (int) result.getValue());
+            }
+            assertEquals(1, task.mMaxRunning.get());
+        } finally {
+            processor.close();
+        }
+    }
+
+    @Test
+    public void brokenFileFails() throws Exception {
+        File text = TestApngs.write(mTemp.getRoot(), "text.png", "not a png file at all".getBytes("UTF-8"));
+        String missing = new File(mTemp.getRoot(), "missing.png").getPath();
+        ApngBatchProcessor<Integer> processor = new ApngBatchProcessor<>(new CountTask(), 1 << 20, 1 << 20, 8);
+        try {
+            processor.submit(text.getPath());
+            processor.submit(missing);
+            processor.submit(mFile.getPath());
+            Map<String, Throwable> errors = new HashMap<>();
+            for (int i = 0; i < 3; i++) {
+                ApngBatchProcessor.Result<Integer> result = take(processor);
+                if (result.getPath().equals(mFile.getPath())) {
+                    assertTrue(result.isSucceeded());
+                    continue;
+                }
+                assertFalse(result.getPath(), result.isSucceeded());
+                assertNull(result.getValue());
+                errors.put(result.getPath(), result.getError());
+            }
+            assertTrue(errors.get(text.getPath()) instanceof FormatNotSupportException);
+            assertTrue(errors.get(missing) instanceof IOException);
+        } finally {
+            processor.close();
+        }
+    }
+
+    @Test
+    public void submitBlocksAtMaxPending() throws Exception {
+        final ApngBatchProcessor<Integer> processor = new ApngBatchProcessor<>(new CountTask(), 1 << 20, 1 << 20, 2);
+        try {
+            processor.submit(mFile.getPath());
+            processor.submit(mFile.getPath());
+            final AtomicInteger submitted = new AtomicInteger();
+            Thread submitter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        processor.submit(mFile.getPath());
+                        submitted.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        // test ended
+                    }
+                }
+            });
+            submitter.start();
+
+            // both jobs complete, but their results are not taken
+            submitter.join(300);
+            assertTrue(submitter.isAlive());
+            assertEquals(0, submitted.get());
+
+            take(processor);
+            submitter.join(10000);
+            assertFalse(submitter.isAlive());
+            assertEquals(1, submitted.get());
+            take(processor);
+            take(processor);
+        } finally {
+            processor.close();
+        }
+    }
+
+    /**
+     * running jobs are interrupted and deliver their failures, queued jobs never run
+     */
+    @Test
+    public void queuedJobsDroppedAtClose() throws Exception {
+        BlockTask task = new BlockTask();
+        ApngBatchProcessor<Integer> processor = new ApngBatchProcessor<>(task, 1 << 30, 1 << 30, 1 << 10);
+        // every job has it's own virtual thread, none is queued
+        Assume.assumeFalse(processor.isVirtualThreads());
+        int threads = Runtime.getRuntime().availableProcessors() * 2;
+        try {
+            for (int i = 0; i < threads + 3; i++) processor.submit(mFile.getPath());
+            for (long end = System.currentTimeMillis() + 10000; task.mStarted.get() < threads; ) {
+                assertTrue("jobs not started in time", System.currentTimeMillis() < end);
+                Thread.sleep(5);
+            }
+        } finally {
+            processor.close();
+        }
+
+        for (int i = 0; i < threads; i++) {
+            ApngBatchProcessor.Result<Integer> result = take(processor);
+            assertTrue(result.getError() instanceof InterruptedIOException);
+        }
+        assertNull(processor.poll(300, TimeUnit.MILLISECONDS));
+        assertEquals(threads, task.mStarted.get());
+    }
+}
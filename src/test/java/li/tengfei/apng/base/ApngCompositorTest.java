@@ -0,0 +1,298 @@
+package li.tengfei.apng.base;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * composing frames in different canvas formats and geometries
+ *
+ * @author ltf
+ * @since 26/10/21, 下午1:00
+ */
+public class ApngCompositorTest {
+    private static final int WIDTH = 29;
+    private static final int HEIGHT = 23;
+    private static final int FRAMES = 14;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private ApngReader newReader(int seed, int[] palette, int firstBlend) throws Exception {
+        List<TestApngs.Frame> frames =
+                TestApngs.randomFrames(new Random(seed), WIDTH, HEIGHT, FRAMES, TestApngs.COLOR_PALETTE);
+        frames.get(0).blend = firstBlend;
+        byte[] data = TestApngs.encode(WIDTH, HEIGHT, TestApngs.COLOR_PALETTE, frames, false, 0, palette);
+        return new ApngReader(TestApngs.write(mTemp.getRoot(), "p" + seed + ".png", data).getPath());
+    }
+
+    /**
+     * the INDEXED_8 canvas shows the same colors as the ARGB_8888 canvas, with the transparent index at 0 or not,
+     * the first frame blended OVER the cleared canvas or not
+     */
+    @Test
+    public void indexedMatchesArgb() throws Exception {
+        int[] moved = TestApngs.palette();
+        moved[0] = 0xFF102030;
+        moved[5] = 0;
+        int[][] palettes = {TestApngs.palette(), moved};
+        for (int p = 0; p < palettes.length * 2; p++) {
+            ApngReader reader = newReader(16 + p, palettes[p >> 1], p & 1);
+            ApngCompositor argb = new ApngCompositor(WIDTH, HEIGHT);
+            ApngCompositor indexed = new ApngCompositor(WIDTH, HEIGHT, PixelFormat.INDEXED_8);
+            try {
+                for (int i = 0; i < FRAMES; i++) {
+                    int[] expected = argb.compose(reader.getFrame(i));
+                    indexed.compose(reader.getFrame(i));
+                    byte[] canvas = indexed.getByteCanvas();
+                    int[] palette = indexed.getPalette();
+                    for (int j = 0; j < expected.length; j++) {
+                        assertEquals("frame " + i + " pixel " + j, expected[j], palette[canvas[j] & 0xFF]);
+                    }
+                }
+            } finally {
+                argb.release();
+                indexed.release();
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * ARGB_8888 canvases are the reference canvases after every frame, with the first frame disposed by each op
+     */
+    @Test
+    public void argbMatchesReference() throws Exception {
+        for (int colorType : new int[]{TestApngs.COLOR_RGBA, TestApngs.COLOR_PALETTE}) {
+            for (int firstDispose = 0; firstDispose < 3; firstDispose++) {
+                List<TestApngs.Frame> frames = TestApngs.randomFrames(new Random(70 + firstDispose), WIDTH, HEIGHT,
+                        FRAMES * 3, colorType);
+                frames.get(0).dispose = firstDispose;
+                frames.get(0).blend = ApngFCTLChunk.APNG_BLEND_OP_OVER;
+                int[] palette = colorType == TestApngs.COLOR_PALETTE ? TestApngs.palette() : null;
+                int[][] expected = ReferenceCompositor.composeAll(WIDTH, HEIGHT, palette, frames);
+                byte[] data = TestApngs.encode(WIDTH, HEIGHT, colorType, frames, false, 0);
+                String name = colorType + "-" + firstDispose;
+                ApngReader reader = new ApngReader(TestApngs.write(mTemp.getRoot(), name + ".png", data).getPath());
+                ApngCompositor compositor = new ApngCompositor(WIDTH, HEIGHT);
+                try {
+                    for (int i = 0; i < frames.size(); i++) {
+                        assertArrayEquals(name + " frame " + i, expected[i], compositor.compose(reader.getFrame(i)));
+                    }
+                } finally {
+                    compositor.release();
+                    reader.close();
+                }
+            }
+        }
+    }
+
+    @Test(expected = FormatNotSupportException.class)
+    public void indexedWithoutTransparentColorRejected() throws Exception {
+        int[] opaque = TestApngs.palette();
+        opaque[0] = 0xFF000000;
+        ApngReader reader = newReader(20, opaque, 0);
+        ApngCompositor indexed = new ApngCompositor(WIDTH, HEIGHT, PixelFormat.INDEXED_8);
+        try {
+            indexed.compose(reader.getFrame(0));
+        } finally {
+            indexed.release();
+            reader.close();
+        }
+    }
+
+    /**
+     * RGB_565, ARGB_4444 and ARGB_PREMULTIPLIED canvases are the ARGB_8888 canvas packed to the format. exactly with
+     * binary alpha frames, where blending selects pixels. translucent pixels blended on the packed canvas are off
+     * by the lost precision, by one step of the packed channels at most
+     */
+    @Test
+    public void packedFormatsMatchArgb() throws Exception {
+        int[] formats = {PixelFormat.RGB_565, PixelFormat.ARGB_4444, PixelFormat.ARGB_PREMULTIPLIED};
+        for (int colorType : new int[]{TestApngs.COLOR_PALETTE, TestApngs.COLOR_RGBA, -1}) {
+            boolean translucent = colorType < 0;
+            int type = translucent ? TestApngs.COLOR_RGBA : colorType;
+            List<TestApngs.Frame> frames = TestApngs.randomFrames(new Random(90 + colorType), WIDTH, HEIGHT,
+                    FRAMES * 2, type);
+            if (type == TestApngs.COLOR_RGBA && !translucent) {
+                for (TestApngs.Frame f : frames) {
+                    for (int i = 3; i < f.samples.length; i += 4) f.samples[i] = (byte) (f.samples[i] < 0 ? 0xFF : 0);
+                }
+            }
+            byte[] data = TestApngs.encode(WIDTH, HEIGHT, type, frames, false, 0);
+            String name = "f" + colorType;
+            ApngReader reader = new ApngReader(TestApngs.write(mTemp.getRoot(), name + ".png", data).getPath());
+            ApngCompositor argb = new ApngCompositor(WIDTH, HEIGHT);
+            ApngCompositor[] packed = new ApngCompositor[formats.length];
+            for (int k = 0; k < formats.length; k++) packed[k] = new ApngCompositor(WIDTH, HEIGHT, formats[k]);
+            try {
+                for (int i = 0; i < frames.size(); i++) {
+                    int[] expected = argb.compose(reader.getFrame(i));
+                    for (ApngCompositor compositor : packed) {
+                        int format = compositor.getFormat();
+                        // without alpha, translucent pixels are blended on what RGB_565 shows: opaque colors
+                        if (translucent && format == PixelFormat.RGB_565) continue;
+                        compositor.compose(reader.getFrame(i));
+                        for (int j = 0; j < expected.length; j++) {
+                            String message = name + " format " + format + " frame " + i + " pixel " + j;
+                            if (format == PixelFormat.ARGB_PREMULTIPLIED) {
+                                assertPixel(message, PixelFormat.premultiply(expected[j]), compositor.getCanvas()[j],
+                                        new int[]{24, 16, 8, 0}, new int[]{8, 8, 8, 8}, translucent);
+                            } else if (format == PixelFormat.RGB_565) {
+                                assertPixel(message, PixelFormat.toRgb565(expected[j]) & 0xFFFF,
+                                        compositor.getShortCanvas()[j] & 0xFFFF, new int[]{11, 5, 0}, new int[]{5, 6, 5},
+                                        translucent);
+                            } else {
+                                assertPixel(message, PixelFormat.toArgb4444(expected[j]) & 0xFFFF,
+                                        compositor.getShortCanvas()[j] & 0xFFFF, new int[]{12, 8, 4, 0}, new int[]{4, 4, 4, 4},
+                                        translucent);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                argb.release();
+                for (ApngCompositor compositor : packed) compositor.release();
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * compare packed pixels channel by channel, exactly or by one step
+     */
+    private static void assertPixel(String message, int expected, int actual, int[] shifts, int[] bits,
+                                    boolean approximate) {
+        for (int c = 0; c < shifts.length; c++) {
+            int mask = (1 << bits[c]) - 1;
+            int diff = Math.abs((expected >>> shifts[c] & mask) - (actual >>> shifts[c] & mask));
+            if (diff > (approximate ? 1 : 0)) {
+                fail(message + ": expected " + Integer.toHexString(expected) + " but was " + Integer.toHexString(actual));
+            }
+        }
+    }
+
+    @Test
+    public void keyFramesFoundByFctl() throws Exception {
+        List<TestApngs.Frame> frames = TestApngs.randomFrames(new Random(120), WIDTH, HEIGHT, FRAMES * 4,
+                TestApngs.COLOR_RGBA);
+        byte[] data = TestApngs.encode(WIDTH, HEIGHT, TestApngs.COLOR_RGBA, frames, false, 0);
+        ApngReader reader = new ApngReader(TestApngs.write(mTemp.getRoot(), "k.png", data).getPath());
+        ApngCompositor compositor = new ApngCompositor(WIDTH, HEIGHT, PixelFormat.ARGB_8888, 2);
+        try {
+            BitSet keyFrames = compositor.findKeyFrames(reader);
+            for (int i = 0; i < frames.size(); i++) {
+                TestApngs.Frame f = frames.get(i);
+                boolean key = f.blend == ApngFCTLChunk.APNG_BLEND_OP_SOURCE
+                        && f.dispose != ApngFCTLChunk.APNG_DISPOSE_OP_PREVIOUS && f.w == WIDTH && f.h == HEIGHT;
+                assertEquals("frame " + i, key, keyFrames.get(i));
+            }
+            assertTrue(keyFrames.cardinality() > 1);
+        } finally {
+            compositor.release();
+            reader.close();
+        }
+    }
+
+    /**
+     * canvas pixel (x, y) of sample size N is the full size canvas pixel (x * N, y * N)
+     */
+    @Test
+    public void subsampledMatchesDownsampledFull() throws Exception {
+        byte[] data = TestApngs.encode(WIDTH, HEIGHT, TestApngs.COLOR_RGBA,
+                TestApngs.randomFrames(new Random(17), WIDTH, HEIGHT, FRAMES, TestApngs.COLOR_RGBA), false, 0);
+        ApngReader reader = new ApngReader(TestApngs.write(mTemp.getRoot(), "s.png", data).getPath());
+        ApngCompositor full = new ApngCompositor(WIDTH, HEIGHT);
+        ApngCompositor[] sampled = new ApngCompositor[4];
+        for (int k = 0; k < sampled.length; k++) {
+            sampled[k] = new ApngCompositor(WIDTH, HEIGHT, PixelFormat.ARGB_8888, 2 << k);
+        }
+        try {
+            for (int i = 0; i < FRAMES; i++) {
+                int[] expected = full.compose(reader.getFrame(i));
+                for (ApngCompositor compositor : sampled) {
+                    int n = compositor.getSampleSize();
+                    int[] canvas = compositor.compose(reader.getFrame(i));
+                    assertEquals((WIDTH + n - 1) / n, compositor.getWidth());
+                    assertEquals((HEIGHT + n - 1) / n, compositor.getHeight());
+                    for (int y = 0; y < compositor.getHeight(); y++) {
+                        for (int x = 0; x < compositor.getWidth(); x++) {
+                            assertEquals("frame " + i + " sample " + n + " at " + x + "," + y,
+                                    expected[y * n * WIDTH + x * n], canvas[y * compositor.getWidth() + x]);
+                        }
+                    }
+                }
+            }
+        } finally {
+            full.release();
+            for (ApngCompositor compositor : sampled) compositor.release();
+            reader.close();
+        }
+    }
+
+    /**
+     * a region canvas is the same crop of the full canvas after every frame, at full and half size,
+     * with frames missing the region, crossing its edges and covering it
+     */
+    @Test
+    public void regionMatchesCropOfFull() throws Exception {
+        List<TestApngs.Frame> frames = TestApngs.randomFrames(new Random(110), WIDTH, HEIGHT, FRAMES * 3,
+                TestApngs.COLOR_RGBA);
+        byte[] data = TestApngs.encode(WIDTH, HEIGHT, TestApngs.COLOR_RGBA, frames, false, 0);
+        ApngReader reader = new ApngReader(TestApngs.write(mTemp.getRoot(), "r.png", data).getPath());
+        try {
+            for (int n = 1; n <= 2; n++) {
+                int w = ApngFCTLChunk.sampled(WIDTH, n), h = ApngFCTLChunk.sampled(HEIGHT, n);
+                // {x, y, width, height}: small inner, corners, edge strips, single pixel and the whole canvas
+                int[][] regions = {{w / 3, h / 3, w / 4, h / 4}, {0, 0, 5, 4}, {w - 6, h - 3, 6, 3},
+                        {0, h / 2, w, 2}, {w / 2, 0, 1, h}, {w / 2, h / 2, 1, 1}, {0, 0, w, h}};
+                int missed = 0, crossed = 0;
+                for (int[] r : regions) {
+                    String name = "sample " + n + " region " + r[0] + "," + r[1] + " " + r[2] + "x" + r[3];
+                    ApngCompositor full = new ApngCompositor(WIDTH, HEIGHT, PixelFormat.ARGB_8888, n);
+                    ApngCompositor region = new ApngCompositor(WIDTH, HEIGHT, PixelFormat.ARGB_8888, n,
+                            r[0], r[1], r[2], r[3]);
+                    try {
+                        assertEquals(r[2], region.getWidth());
+                        assertEquals(r[3], region.getHeight());
+                        for (int i = 0; i < frames.size(); i++) {
+                            TestApngs.Frame f = frames.get(i);
+                            int left = ApngFCTLChunk.sampled(f.x, n), right = ApngFCTLChunk.sampled(f.x + f.w, n);
+                            int top = ApngFCTLChunk.sampled(f.y, n), bottom = ApngFCTLChunk.sampled(f.y + f.h, n);
+                            if (right <= r[0] || left >= r[0] + r[2] || bottom <= r[1] || top >= r[1] + r[3]) {
+                                missed++;
+                            } else if (left > r[0] || right < r[0] + r[2] || top > r[1] || bottom < r[1] + r[3]) {
+                                crossed++;
+                            }
+
+                            int[] expected = full.compose(reader.getFrame(i));
+                            int[] canvas = region.compose(reader.getFrame(i));
+                            for (int y = 0; y < r[3]; y++) {
+                                for (int x = 0; x < r[2]; x++) {
+                                    assertEquals(name + " frame " + i + " at " + x + "," + y,
+                                            expected[(r[1] + y) * w + r[0] + x], canvas[y * r[2] + x]);
+                                }
+                            }
+                        }
+                    } finally {
+                        full.release();
+                        region.release();
+                    }
+                }
+                assertTrue("sample " + n + " missed " + missed, missed > 10);
+                assertTrue("sample " + n + " crossed " + crossed, crossed > 10);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
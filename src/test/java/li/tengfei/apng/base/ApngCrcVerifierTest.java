@@ -0,0 +1,121 @@
+package li.tengfei.apng.base;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * chunk CRC verification of clean and damaged files
+ *
+ * @author ltf
+ * @since 26/10/21, 下午4:00
+ */
+public class ApngCrcVerifierTest {
+    // one byte segments, segments splitting chunks unevenly, and whole chunks grouped in one segment
+    private static final int[] SEGMENT_SIZES = {1, 7, 100, ApngCrcVerifier.DEFAULT_SEGMENT_SIZE};
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private byte[] mData;
+
+    @Before
+    public void setUp() throws Exception {
+        mData = TestApngs.encode(22, 14, TestApngs.COLOR_RGBA,
+                TestApngs.randomFrames(new Random(60), 22, 14, 6, TestApngs.COLOR_RGBA), false, 0);
+    }
+
+    /**
+     * offsets of the chunks of the type
+     */
+    private List<Integer> chunkOffsets(String type) {
+        List<Integer> offsets = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.wrap(mData);
+        for (int pos = 8; pos < mData.length; pos += 12 + buf.getInt(pos)) {
+            if (new String(mData, pos + 4, 4).equals(type)) offsets.add(pos);
+        }
+        return offsets;
+    }
+
+    private ApngReader newReader(String name, byte[] data) throws Exception {
+        return new ApngReader(TestApngs.write(mTemp.getRoot(), name, data).getPath());
+    }
+
+    @Test
+    public void cleanFileVerified() throws Exception {
+        ApngReader reader = newReader("clean.png", mData);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (int segmentSize : SEGMENT_SIZES) {
+                for (Executor exec : new Executor[]{DIRECT, executor}) {
+                    for (int policy : new int[]{ApngCrcVerifier.POLICY_STRICT, ApngCrcVerifier.POLICY_LENIENT}) {
+                        ApngCrcVerifier verifier = new ApngCrcVerifier(policy, 100, exec, segmentSize);
+                        assertTrue("segment size " + segmentSize, verifier.verify(reader).isEmpty());
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+            reader.close();
+        }
+    }
+
+    @Test
+    public void flippedBytesReported() throws Exception {
+        List<Integer> fdats = chunkOffsets("fdAT");
+        int first = fdats.get(0);
+        int last = fdats.get(fdats.size() - 1);
+        byte[] damaged = mData.clone();
+        damaged[first + 8 + 5] ^= 0x10; // after the sequence number
+        damaged[last + 8 + ByteBuffer.wrap(mData).getInt(last) - 1] ^= 0x01; // last data byte
+        ApngReader reader = newReader("damaged.png", damaged);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (int segmentSize : SEGMENT_SIZES) {
+                String message = "segment size " + segmentSize;
+                List<ApngCrcException> mismatches = new ApngCrcVerifier(ApngCrcVerifier.POLICY_LENIENT, 100,
+                        executor, segmentSize).verify(reader);
+                assertEquals(message, 2, mismatches.size());
+                int[] offsets = {first, last};
+                for (int i = 0; i < 2; i++) {
+                    ApngCrcException e = mismatches.get(i);
+                    assertEquals(message, offsets[i], e.getOffset());
+                    assertEquals(message, ApngConst.CODE_fdAT, e.getTypeCode());
+                    int length = ByteBuffer.wrap(mData).getInt(offsets[i]);
+                    assertEquals(message, ByteBuffer.wrap(mData).getInt(offsets[i] + 8 + length), e.getExpected());
+                    assertTrue(message, e.getExpected() != e.getActual());
+                }
+
+                try {
+                    new ApngCrcVerifier(ApngCrcVerifier.POLICY_STRICT, 100, executor, segmentSize).verify(reader);
+                    fail(message + ": damaged file verified");
+                } catch (ApngCrcException e) {
+                    assertEquals(message, first, e.getOffset());
+                }
+            }
+        } finally {
+            executor.shutdown();
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package li.tengfei.apng.base;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * LRU eviction by the byte budget, statistics, and canvas copies on and off heap
+ *
+ * @author ltf
+ * @since 26/10/21, 下午6:30
+ */
+public class ApngFrameCacheTest {
+    private static final int PIXELS = 100; // 400 bytes of an ARGB_8888 canvas
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private ApngFrameCache.FileId mFileId;
+
+    @Before
+    public void setUp() throws Exception {
+        mFileId = ApngFrameCache.identify(mTemp.newFile("a.png"));
+    }
+
+    private ApngFrameCache.Key key(int frameIndex) {
+        return new ApngFrameCache.Key(mFileId, frameIndex, PixelFormat.ARGB_8888, 1);
+    }
+
+    private static int[] canvas(int seed) {
+        int[] pixels = new int[PIXELS];
+        Random random = new Random(seed);
+        for (int i = 0; i < PIXELS; i++) pixels[i] = random.nextInt();
+        return pixels;
+    }
+
+    private static int[] cached(ApngFrameCache cache, ApngFrameCache.Key key) {
+        ApngFrameCache.CachedFrame frame = cache.get(key);
+        assertNotNull(frame);
+        int[] pixels = new int[PIXELS];
+        frame.copyTo(pixels);
+        return pixels;
+    }
+
+    @Test
+    public void evictsAtBudgetBoundary() {
+        // room for exactly 3 canvases
+        ApngFrameCache cache = new ApngFrameCache(3 * PIXELS * 4);
+        for (int i = 0; i < 3; i++) cache.put(key(i), canvas(i), PIXELS, null);
+        assertEquals(3, cache.getFrameCount());
+        assertEquals(cache.getMaxBytes(), cache.getBytes());
+        assertEquals(0, cache.getEvictionCount());
+
+        // replacing a canvas keeps the total
+        cache.put(key(2), canvas(20), PIXELS, null);
+        assertEquals(cache.getMaxBytes(), cache.getBytes());
+        assertEquals(0, cache.getEvictionCount());
+
+        // frame 0 used recently, frame 1 is the least recently used
+        cache.get(key(0));
+        cache.put(key(3), canvas(3), PIXELS, null);
+        assertEquals(3, cache.getFrameCount());
+        assertEquals(cache.getMaxBytes(), cache.getBytes());
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get(key(1)));
+        assertArrayEquals(canvas(0), cached(cache, key(0)));
+        assertArrayEquals(canvas(20), cached(cache, key(2)));
+        assertArrayEquals(canvas(3), cached(cache, key(3)));
+
+        // a canvas of the whole budget evicts all others
+        int[] large = new int[3 * PIXELS];
+        cache.put(key(4), large, large.length, null);
+        assertEquals(1, cache.getFrameCount());
+        assertEquals(cache.getMaxBytes(), cache.getBytes());
+        assertEquals(4, cache.getEvictionCount());
+    }
+
+    @Test
+    public void countersOfAccessPattern() {
+        ApngFrameCache cache = new ApngFrameCache(2 * PIXELS * 4);
+        cache.get(key(0));                          // miss
+        cache.put(key(0), canvas(0), PIXELS, null);
+        cache.get(key(0));                          // hit
+        cache.get(key(0));                          // hit
+        cache.get(key(1));                          // miss
+        cache.put(key(1), canvas(1), PIXELS, null);
+        cache.put(key(2), canvas(2), PIXELS, null); // evicts 0
+        cache.get(key(0));                          // miss
+        cache.get(key(1));                          // hit
+        cache.put(key(3), canvas(3), PIXELS, null); // evicts 2
+        cache.get(key(2));                          // miss
+        assertEquals(3, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+        assertEquals(2, cache.getEvictionCount());
+        assertEquals(2, cache.getFrameCount());
+
+        // statistics survive clear()
+        cache.clear();
+        assertEquals(0, cache.getFrameCount());
+        assertEquals(0, cache.getBytes());
+        cache.get(key(1));                          // miss
+        assertEquals(3, cache.getHitCount());
+        assertEquals(5, cache.getMissCount());
+        assertEquals(2, cache.getEvictionCount());
+    }
+
+    @Test
+    public void heapAndOffHeapCopiesEqual() {
+        Random random = new Random(150);
+        int length = 77; // shorter than the arrays, only the canvas pixels are cached
+        int[] ints = new int[PIXELS];
+        short[] shorts = new short[PIXELS];
+        byte[] bytes = new byte[PIXELS];
+        for (int i = 0; i < PIXELS; i++) {
+            ints[i] = random.nextInt();
+            shorts[i] = (short) random.nextInt();
+            bytes[i] = (byte) random.nextInt();
+        }
+        int[] palette = {0xFF000000, 0x80FF0000};
+        ApngFrameCache.Key intKey = new ApngFrameCache.Key(mFileId, 0, PixelFormat.ARGB_PREMULTIPLIED, 1);
+        ApngFrameCache.Key shortKey = new ApngFrameCache.Key(mFileId, 0, PixelFormat.RGB_565, 1);
+        ApngFrameCache.Key byteKey = new ApngFrameCache.Key(mFileId, 0, PixelFormat.INDEXED_8, 1);
+
+        for (boolean offHeap : new boolean[]{false, true}) {
+            String message = offHeap ? "off heap" : "heap";
+            ApngFrameCache cache = new ApngFrameCache(Long.MAX_VALUE, offHeap);
+            int[] intCopy = ints.clone();
+            short[] shortCopy = shorts.clone();
+            byte[] byteCopy = bytes.clone();
+            cache.put(intKey, intCopy, length, null);
+            cache.put(shortKey, shortCopy, length, null);
+            cache.put(byteKey, byteCopy, length, palette);
+            assertEquals(message, length * (4 + 2 + 1), cache.getBytes());
+
+            // later changes of the canvases are not cached
+            intCopy[0]++;
+            shortCopy[0]++;
+            byteCopy[0]++;
+
+            int[] intDst = new int[PIXELS];
+            short[] shortDst = new short[PIXELS];
+            byte[] byteDst = new byte[PIXELS];
+            cache.get(intKey).copyTo(intDst);
+            cache.get(shortKey).copyTo(shortDst);
+            cache.get(byteKey).copyTo(byteDst);
+            for (int i = 0; i < PIXELS; i++) {
+                assertEquals(message, i < length ? ints[i] : 0, intDst[i]);
+                assertEquals(message, i < length ? shorts[i] : 0, shortDst[i]);
+                assertEquals(message, i < length ? bytes[i] : 0, byteDst[i]);
+            }
+            assertNull(message, cache.get(intKey).getPalette());
+            assertSame(message, palette, cache.get(byteKey).getPalette());
+        }
+    }
+
+    @Test
+    public void oversizedRejected() {
+        ApngFrameCache cache = new ApngFrameCache(PIXELS * 4 - 1);
+        int[] small = new int[PIXELS / 2];
+        cache.put(key(0), small, small.length, null);
+        cache.put(key(1), canvas(1), PIXELS, null);
+        assertNull(cache.get(key(1)));
+        assertNotNull(cache.get(key(0)));
+        assertEquals(1, cache.getFrameCount());
+        assertEquals(small.length * 4, cache.getBytes());
+        assertEquals(0, cache.getEvictionCount());
+
+        // nothing fits a zero budget
+        ApngFrameCache none = new ApngFrameCache(0, true);
+        none.put(key(0), small, 1, null);
+        assertNull(none.get(key(0)));
+        assertEquals(0, none.getBytes());
+    }
+}
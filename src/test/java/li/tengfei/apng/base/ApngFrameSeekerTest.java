@@ -0,0 +1,120 @@
+package li.tengfei.apng.base;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * random access to composed frames must give the canvases of a linear replay
+ *
+ * @author ltf
+ * @since 26/10/21, 下午2:00
+ */
+public class ApngFrameSeekerTest {
+    private static final int WIDTH = 21;
+    private static final int HEIGHT = 17;
+    private static final int FRAMES = 40;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private ApngReader newReader(int colorType) throws Exception {
+        byte[] data = TestApngs.encode(WIDTH, HEIGHT, colorType,
+                TestApngs.randomFrames(new Random(25), WIDTH, HEIGHT, FRAMES, colorType), false, 0);
+        return new ApngReader(TestApngs.write(mTemp.getRoot(), colorType + ".png", data).getPath());
+    }
+
+    /**
+     * canvases of all frames composed one by one
+     */
+    private static List<Object> replay(ApngReader reader, int format) throws Exception {
+        List<Object> canvases = new ArrayList<>();
+        ApngCompositor compositor = new ApngCompositor(WIDTH, HEIGHT, format);
+        try {
+            for (int i = 0; i < FRAMES; i++) {
+                compositor.compose(reader.getFrame(i));
+                Object canvas = canvas(compositor);
+                canvases.add(canvas instanceof int[] ? ((int[]) canvas).clone() : ((byte[]) canvas).clone());
+            }
+        } finally {
+            compositor.release();
+        }
+        return canvases;
+    }
+
+    private static Object canvas(ApngCompositor compositor) {
+        return compositor.getFormat() == PixelFormat.INDEXED_8 ? compositor.getByteCanvas() : compositor.getCanvas();
+    }
+
+    private static void assertCanvas(String message, Object expected, ApngFrameSeeker seeker) {
+        Object canvas = canvas(seeker.getCompositor());
+        if (expected instanceof int[]) assertArrayEquals(message, (int[]) expected, (int[]) canvas);
+        else assertArrayEquals(message, (byte[]) expected, (byte[]) canvas);
+    }
+
+    @Test
+    public void seeksMatchLinearReplay() throws Exception {
+        int[][] formats = {{TestApngs.COLOR_RGBA, PixelFormat.ARGB_8888},
+                {TestApngs.COLOR_PALETTE, PixelFormat.INDEXED_8}};
+        for (int[] format : formats) {
+            ApngReader reader = newReader(format[0]);
+            try {
+                List<Object> expected = replay(reader, format[1]);
+                // default, short interval, compressed, and a budget of few checkpoints doubling the interval
+                long oneCanvas = (long) WIDTH * HEIGHT * PixelFormat.bytesPerPixel(format[1]);
+                Object[][] configs = {{16, Long.MAX_VALUE, false}, {3, Long.MAX_VALUE, false},
+                        {3, Long.MAX_VALUE, true}, {2, oneCanvas * 3, false}};
+                for (Object[] config : configs) {
+                    ApngFrameSeeker seeker = new ApngFrameSeeker(reader,
+                            new ApngCompositor(WIDTH, HEIGHT, format[1]),
+                            (Integer) config[0], (Long) config[1], (Boolean) config[2]);
+                    try {
+                        Random random = new Random(26);
+                        for (int round = 0; round < 200; round++) {
+                            int frame = round % 7 == 0 ? Math.min(FRAMES - 1, round % FRAMES + 1)
+                                    : random.nextInt(FRAMES);
+                            seeker.seekFrame(frame);
+                            assertCanvas("format " + format[1] + " interval " + config[0] + " frame " + frame,
+                                    expected.get(frame), seeker);
+                        }
+                        assertTrue(seeker.getCheckpointBytes() <= (Long) config[1]);
+                    } finally {
+                        seeker.release();
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    @Test
+    public void precomputeBoundsEverySeek() throws Exception {
+        ApngReader reader = newReader(TestApngs.COLOR_RGBA);
+        ApngFrameSeeker seeker = new ApngFrameSeeker(reader, new ApngCompositor(WIDTH, HEIGHT), 4,
+                Long.MAX_VALUE, false);
+        try {
+            List<Object> expected = replay(reader, PixelFormat.ARGB_8888);
+            seeker.precompute();
+            assertCanvas("last frame", expected.get(FRAMES - 1), seeker);
+            for (int frame = FRAMES - 1; frame >= 0; frame--) {
+                seeker.seekFrame(frame);
+                assertCanvas("frame " + frame, expected.get(frame), seeker);
+                assertTrue("frame " + frame + " replayed " + seeker.getReplayedFrames(),
+                        seeker.getReplayedFrames() <= seeker.getInterval());
+            }
+            assertEquals(4, seeker.getInterval());
+        } finally {
+            seeker.release();
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package li.tengfei.apng.base;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * frame index serialization and the sidecar index cache
+ *
+ * @author ltf
+ * @since 26/10/21, 上午10:30
+ */
+public class ApngIndexCacheTest {
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private File newApng() throws Exception {
+        Random random = new Random(2);
+        byte[] data = TestApngs.encode(40, 30, TestApngs.COLOR_RGBA,
+                TestApngs.randomFrames(random, 40, 30, 12, TestApngs.COLOR_RGBA), false, 0);
+        return TestApngs.write(mTemp.getRoot(), "a.png", data);
+    }
+
+    private static byte[] serialize(ApngFrameIndex index) {
+        ByteBuffer buf = ByteBuffer.allocate(index.getSerializedSize());
+        index.writeTo(buf);
+        assertEquals(0, buf.remaining());
+        return buf.array();
+    }
+
+    @Test
+    public void indexRoundTrip() throws Exception {
+        ApngReader reader = new ApngReader(newApng().getPath());
+        try {
+            ApngFrameIndex index = reader.getFrameIndex();
+            assertEquals(12, index.getFrameCount());
+            byte[] data = serialize(index);
+            ApngFrameIndex read = ApngFrameIndex.readFrom(ByteBuffer.wrap(data));
+            assertArrayEquals(data, serialize(read));
+            assertEquals(index.getActlOffset(), read.getActlOffset());
+            for (int i = 0; i < index.getFrameCount(); i++) {
+                assertEquals(index.getFctlOffset(i), read.getFctlOffset(i));
+                assertEquals(index.getDataOffset(i), read.getDataOffset(i));
+                assertEquals(index.getDataCount(i), read.getDataCount(i));
+                assertEquals(index.isUpdateIHDR(i), read.isUpdateIHDR(i));
+                assertEquals(index.getStartMicros(i), read.getStartMicros(i));
+            }
+            assertEquals(index.getDuration(), read.getDuration());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = FormatNotSupportException.class)
+    public void truncatedIndexRejected() throws Exception {
+        ApngReader reader = new ApngReader(newApng().getPath());
+        try {
+            byte[] data = serialize(reader.getFrameIndex());
+            ApngFrameIndex.readFrom(ByteBuffer.wrap(data, 0, data.length - 5));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void cacheRoundTrip() throws Exception {
+        File apng = newApng();
+        File dir = mTemp.newFolder("cache");
+        ApngIndexCache cache = new ApngIndexCache(dir);
+
+        ApngReader plain = new ApngReader(apng.getPath());
+        ApngReader stored = new ApngReader(apng.getPath(), cache);
+        ApngReader loaded = new ApngReader(apng.getPath(), cache);
+        try {
+            assertEquals(1, dir.listFiles().length);
+            byte[] expected = serialize(plain.getFrameIndex());
+            assertArrayEquals(expected, serialize(cache.load(apng, plain.getStorage())));
+            assertArrayEquals(expected, serialize(loaded.getFrameIndex()));
+
+            // frames read by the loaded index are the same frames
+            for (int i = 0; i < 12; i++) {
+                assertArrayEquals(((PngStream) plain.getFrame(i).imageStream).toByteArray(),
+                        ((PngStream) loaded.getFrame(i).imageStream).toByteArray());
+            }
+        } finally {
+            plain.close();
+            stored.close();
+            loaded.close();
+        }
+    }
+
+    @Test
+    public void corruptSidecarRejected() throws Exception {
+        File apng = newApng();
+        File dir = mTemp.newFolder("cache");
+        ApngIndexCache cache = new ApngIndexCache(dir);
+        new ApngReader(apng.getPath(), cache).close();
+        File sidecar = dir.listFiles()[0];
+        long length = sidecar.length();
+
+        ApngReader reader = new ApngReader(apng.getPath());
+        try {
+            assertNotNull(cache.load(apng, reader.getStorage()));
+
+            // flip a byte of the payload, the crc check fails
+            RandomAccessFile f = new RandomAccessFile(sidecar, "rw");
+            try {
+                f.seek(40);
+                int b = f.read();
+                f.seek(40);
+                f.write(b ^ 0x55);
+            } finally {
+                f.close();
+            }
+            assertNull(cache.load(apng, reader.getStorage()));
+
+            // truncated sidecar
+            f = new RandomAccessFile(sidecar, "rw");
+            try {
+                f.setLength(f.length() / 2);
+            } finally {
+                f.close();
+            }
+            assertNull(cache.load(apng, reader.getStorage()));
+        } finally {
+            reader.close();
+        }
+
+        // a reader still opens with the broken sidecar, and rebuilds it
+        ApngReader rebuilt = new ApngReader(apng.getPath(), cache);
+        try {
+            assertEquals(12, rebuilt.getFrameIndex().getFrameCount());
+            assertEquals(length, sidecar.length());
+        } finally {
+            rebuilt.close();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package li.tengfei.apng.base;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * pipelined frames equal a sequential replay, errors come in frame order, and close() never hangs
+ *
+ * @author ltf
+ * @since 26/10/21, 下午6:00
+ */
+public class ApngPipelineTest {
+    private static final int WIDTH = 26;
+    private static final int HEIGHT = 20;
+    private static final int FRAMES = 16;
+    private static final int BROKEN = 6;
+
+    private static byte[] encode(int seed) throws IOException {
+        List<TestApngs.Frame> frames = TestApngs.randomFrames(new Random(seed), WIDTH, HEIGHT, FRAMES,
+                TestApngs.COLOR_RGBA);
+        return TestApngs.encode(WIDTH, HEIGHT, TestApngs.COLOR_RGBA, frames, false, 0);
+    }
+
+    /**
+     * the reader over the data array, later changes of the array are seen by the reader
+     */
+    private static ApngReader newReader(byte[] data) throws Exception {
+        return new ApngReader(ApngStorage.wrap(ByteBuffer.wrap(data)), null, null);
+    }
+
+    /**
+     * canvases of a sequential compositor
+     */
+    private static int[][] replay(byte[] data, int format, int sampleSize) throws Exception {
+        ApngReader reader = newReader(data);
+        ApngCompositor compositor = new ApngCompositor(WIDTH, HEIGHT, format, sampleSize);
+        try {
+            int[][] canvases = new int[FRAMES][];
+            for (int i = 0; i < FRAMES; i++) canvases[i] = compositor.compose(reader.getFrame(i)).clone();
+            return canvases;
+        } finally {
+            compositor.release();
+            reader.close();
+        }
+    }
+
+    /**
+     * offsets of the chunks of the type
+     */
+    private static List<Integer> chunkOffsets(byte[] data, String type) {
+        List<Integer> offsets = new ArrayList<>();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        for (int pos = 8; pos < data.length; pos += 12 + buf.getInt(pos)) {
+            if (new String(data, pos + 4, 4).equals(type)) offsets.add(pos);
+        }
+        return offsets;
+    }
+
+    @Test
+    public void canvasesMatchReplay() throws Exception {
+        byte[] data = encode(140);
+        for (int format : new int[]{PixelFormat.ARGB_8888, PixelFormat.ARGB_PREMULTIPLIED}) {
+            for (int sampleSize : new int[]{1, 2}) {
+                int[][] expected = replay(data, format, sampleSize);
+                for (int ringSize : new int[]{2, 4}) {
+                    String message = "format " + format + " sample size " + sampleSize + " ring " + ringSize;
+                    ApngReader reader = newReader(data);
+                    ApngPipeline pipeline = new ApngPipeline(reader, format, sampleSize, ringSize);
+                    try {
+                        pipeline.start();
+                        for (int i = 0; i < FRAMES; i++) {
+                            assertArrayEquals(message + " frame " + i, expected[i], pipeline.nextFrame());
+                            assertEquals(message, i, pipeline.getFrameIndex());
+                        }
+                        assertNull(message, pipeline.nextFrame());
+                        assertNull(message, pipeline.nextFrame());
+                    } finally {
+                        pipeline.close();
+                        reader.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * frames before the broken one are delivered, then the error is thrown, then the pipeline ends
+     */
+    private static void assertFailsInOrder(byte[] data, byte[] broken, int ringSize) throws Exception {
+        int[][] expected = replay(data, PixelFormat.ARGB_8888, 1);
+        byte[] live = data.clone();
+        ApngReader reader = newReader(live);
+        ApngPipeline pipeline = new ApngPipeline(reader, PixelFormat.ARGB_8888, 1, ringSize);
+        try {
+            // the index is built by the pipeline's constructor, break the data only the stages read
+            System.arraycopy(broken, 0, live, 0, live.length);
+            pipeline.start();
+            for (int i = 0; i < BROKEN; i++) {
+                assertArrayEquals("ring " + ringSize + " frame " + i, expected[i], pipeline.nextFrame());
+            }
+            try {
+                pipeline.nextFrame();
+                fail("ring " + ringSize + ": broken frame composed");
+            } catch (IOException e) {
+                // the broken frame
+            }
+            assertNull(pipeline.nextFrame());
+        } finally {
+            pipeline.close();
+            reader.close();
+        }
+    }
+
+    /**
+     * the broken frame's fdAT claims a length past the end of file, the parse stage fails
+     */
+    @Test
+    public void parseErrorInFrameOrder() throws Exception {
+        byte[] data = encode(141);
+        byte[] broken = data.clone();
+        int fdat = chunkOffsets(data, "fdAT").get(BROKEN - 1); // frame 0 is IDAT
+        ByteBuffer.wrap(broken).putInt(fdat, Integer.MAX_VALUE - 64);
+        for (int ringSize : new int[]{2, 4}) assertFailsInOrder(data, broken, ringSize);
+    }
+
+    /**
+     * garbage zlib data of the broken frame, the decode stage fails
+     */
+    @Test
+    public void decodeErrorInFrameOrder() throws Exception {
+        byte[] data = encode(142);
+        byte[] broken = data.clone();
+        int fdat = chunkOffsets(data, "fdAT").get(BROKEN - 1); // frame 0 is IDAT
+        for (int i = fdat + 12; i < fdat + 8 + ByteBuffer.wrap(data).getInt(fdat); i++) broken[i] = (byte) 0xFF;
+        for (int ringSize : new int[]{2, 4}) assertFailsInOrder(data, broken, ringSize);
+    }
+
+    @Test(timeout = 10000)
+    public void closeBeforeStart() throws Exception {
+        ApngReader reader = newReader(encode(143));
+        try {
+            ApngPipeline pipeline = new ApngPipeline(reader, PixelFormat.ARGB_8888, 1, 2);
+            pipeline.close();
+            try {
+                pipeline.nextFrame();
+                fail("frame of a closed pipeline");
+            } catch (IOException e) {
+                // closed
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * with the ring full the parse and decode stages wait for the consumer, close() stops them
+     */
+    @Test(timeout = 10000)
+    public void closeMidStream() throws Exception {
+        byte[] data = encode(144);
+        for (int ringSize : new int[]{2, 4}) {
+            ApngReader reader = newReader(data);
+            ApngPipeline pipeline = new ApngPipeline(reader, PixelFormat.ARGB_8888, 1, ringSize);
+            try {
+                pipeline.start();
+                pipeline.nextFrame();
+                pipeline.nextFrame();
+                Thread.sleep(50);
+                Thread closer = new Thread(new Closer(pipeline));
+                closer.start();
+                closer.join(5000);
+                assertTrue("ring " + ringSize + ": close() blocked", !closer.isAlive());
+                try {
+                    pipeline.nextFrame();
+                    fail("ring " + ringSize + ": frame of a closed pipeline");
+                } catch (IOException e) {
+                    // closed
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private static class Closer implements Runnable {
+        private final ApngPipeline mPipeline;
+
+        Closer(ApngPipeline pipeline) {
+            mPipeline = pipeline;
+        }
+
+        @Override
+        public void run() {
+            mPipeline.close();
+        }
+    }
+}
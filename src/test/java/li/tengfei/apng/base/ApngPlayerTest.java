@@ -0,0 +1,149 @@
+package li.tengfei.apng.base;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * playing by the timeline delivers the canvases of a linear replay, and accounts every frame
+ *
+ * @author ltf
+ * @since 26/10/21, 下午5:30
+ */
+public class ApngPlayerTest {
+    private static final int WIDTH = 24;
+    private static final int HEIGHT = 18;
+    private static final int FRAMES = 20;
+    private static final int PLAYS = 3;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    /**
+     * frames of 1~5 milliseconds
+     */
+    private static List<TestApngs.Frame> shortFrames(int seed) {
+        List<TestApngs.Frame> frames = TestApngs.randomFrames(new Random(seed), WIDTH, HEIGHT, FRAMES,
+                TestApngs.COLOR_RGBA);
+        for (TestApngs.Frame f : frames) f.delayDen = 1000;
+        return frames;
+    }
+
+    private static int[][] replay(ApngReader reader) throws Exception {
+        int[][] canvases = new int[FRAMES][];
+        ApngCompositor compositor = new ApngCompositor(WIDTH, HEIGHT);
+        try {
+            for (int i = 0; i < FRAMES; i++) canvases[i] = compositor.compose(reader.getFrame(i)).clone();
+        } finally {
+            compositor.release();
+        }
+        return canvases;
+    }
+
+    @Test
+    public void deliveredFramesMatchReplay() throws Exception {
+        byte[] data = TestApngs.encode(WIDTH, HEIGHT, TestApngs.COLOR_RGBA, shortFrames(130), false, PLAYS);
+        ApngReader reader = new ApngReader(TestApngs.write(mTemp.getRoot(), "p.png", data).getPath());
+        try {
+            int[][] expected = replay(reader);
+            ApngFrameCache heap = new ApngFrameCache(Long.MAX_VALUE);
+            ApngFrameCache direct = new ApngFrameCache(Long.MAX_VALUE, true);
+            // no cache, and caches filled by the first run and hit by the second
+            ApngFrameCache[] caches = {null, heap, heap, direct, direct};
+            for (int run = 0; run < caches.length; run++) {
+                // a slow consumer makes frames dropped, a fast one makes frames waited
+                play(reader, expected, caches[run], run % 2 == 0 ? 12 : 0, "run " + run);
+            }
+            assertTrue(heap.getHitCount() > 0);
+            assertTrue(direct.getHitCount() > 0);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void play(ApngReader reader, int[][] expected, ApngFrameCache cache, int maxSleep,
+                             String message) throws Exception {
+        Random random = new Random(131);
+        ApngPlayer player = new ApngPlayer(reader, PixelFormat.ARGB_8888, 1, 3, cache);
+        try {
+            player.start();
+            ApngPlayer.Frame last = null;
+            long lastPlay = -1;
+            int lastIndex = -1;
+            for (ApngPlayer.Frame frame = player.awaitFrame(); frame != null; frame = player.awaitFrame()) {
+                int index = frame.getFrameIndex();
+                assertTrue(message, frame.getPlay() > lastPlay || frame.getPlay() == lastPlay && index > lastIndex);
+                assertArrayEquals(message + " play " + frame.getPlay() + " frame " + index,
+                        expected[index], frame.getCanvas());
+                lastPlay = frame.getPlay();
+                lastIndex = index;
+                last = frame;
+                if (maxSleep > 0) Thread.sleep(random.nextInt(maxSleep));
+                player.release(frame);
+            }
+            assertNotNull(message, last);
+            assertEquals(message, PLAYS - 1, lastPlay);
+            assertEquals(message, FRAMES - 1, lastIndex);
+            assertEquals(message, (long) PLAYS * FRAMES, player.getDeliveredFrames() + player.getDroppedFrames());
+            if (maxSleep > 0) assertTrue(message, player.getDroppedFrames() > 0);
+        } finally {
+            player.close();
+        }
+    }
+
+    /**
+     * a frame of broken image data ends the timeline with an IOException
+     */
+    @Test
+    public void brokenFrameThrows() throws Exception {
+        List<TestApngs.Frame> frames = shortFrames(132);
+        for (int i = 0; i < frames.size(); i++) {
+            TestApngs.Frame f = frames.get(i);
+            f.delayNum = 10;
+            // frames composed one by one, no key frame to jump over the broken frame
+            if (i > 0) f.blend = ApngFCTLChunk.APNG_BLEND_OP_OVER;
+        }
+        byte[] data = TestApngs.encode(WIDTH, HEIGHT, TestApngs.COLOR_RGBA, frames, false, 1);
+
+        // garbage zlib data of the 4th frame
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int fdats = 0;
+        for (int pos = 8; pos < data.length; pos += 12 + buf.getInt(pos)) {
+            if (new String(data, pos + 4, 4).equals("fdAT") && ++fdats == 3) {
+                for (int i = pos + 12; i < pos + 8 + buf.getInt(pos); i++) data[i] = (byte) 0xFF;
+            }
+        }
+
+        ApngReader reader = new ApngReader(TestApngs.write(mTemp.getRoot(), "broken.png", data).getPath());
+        ApngPlayer player = new ApngPlayer(reader, PixelFormat.ARGB_8888, 1, 3, null);
+        try {
+            player.start();
+            int delivered = 0;
+            try {
+                for (ApngPlayer.Frame frame = player.awaitFrame(); frame != null; frame = player.awaitFrame()) {
+                    assertTrue(frame.getFrameIndex() < 3);
+                    delivered++;
+                    player.release(frame);
+                }
+                fail("broken frame played");
+            } catch (IOException e) {
+                // the broken frame
+            }
+            assertTrue(delivered <= 3);
+        } finally {
+            player.close();
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package li.tengfei.apng.base;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * reading the default image without the animation
+ *
+ * @author ltf
+ * @since 26/10/21, 下午5:00
+ */
+public class ApngProbeTest {
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private static int[] decode(ApngFrame frame) throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        try {
+            int[] pixels = new int[frame.getWidth() * frame.getHeight()];
+            decoder.decode(frame, pixels, 0, frame.getWidth());
+            return pixels;
+        } finally {
+            decoder.release();
+        }
+    }
+
+    private static int[] probePixels(File file) throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        try {
+            return ApngProbe.firstFramePixels(file.getPath(), decoder);
+        } finally {
+            decoder.release();
+        }
+    }
+
+    /**
+     * the IDAT run ends after the initial prefix, the prefix is grown to it
+     */
+    @Test
+    public void largeFirstFrameMatchesReader() throws Exception {
+        int w = 320, h = 240;
+        List<TestApngs.Frame> frames = TestApngs.randomFrames(new Random(100), w, h, 3, TestApngs.COLOR_RGBA);
+        byte[] data = TestApngs.encode(w, h, TestApngs.COLOR_RGBA, frames, false, 0);
+        File file = TestApngs.write(mTemp.getRoot(), "large.png", data);
+        ApngReader reader = new ApngReader(file.getPath());
+        try {
+            ApngFrame expected = reader.getFrame(0);
+            byte[] png = ((PngStream) expected.imageStream).toByteArray();
+            assertTrue(png.length > ApngProbe.INITIAL_PREFIX);
+            assertArrayEquals(png, ApngProbe.firstFramePng(file.getPath()));
+
+            ApngFrame frame = ApngProbe.firstFrame(file.getPath());
+            assertEquals(expected.getWidth(), frame.getWidth());
+            assertEquals(expected.getDelayNum(), frame.getDelayNum());
+            assertEquals(expected.getDisposeOp(), frame.getDisposeOp());
+            assertArrayEquals(decode(expected), probePixels(file));
+        } finally {
+            reader.close();
+        }
+
+        // only the prefix till the IDAT run is mapped
+        ApngPrefixStorage storage = new ApngPrefixStorage(new RandomAccessFile(file, "r").getChannel(),
+                ApngProbe.INITIAL_PREFIX);
+        try {
+            ApngProbe.readDefaultImage(storage);
+            assertTrue(storage.getMappedLength() > ApngProbe.INITIAL_PREFIX);
+            assertTrue(storage.getMappedLength() < data.length);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void plainPng() throws Exception {
+        BufferedImage image = new BufferedImage(37, 21, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(101);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) image.setRGB(x, y, random.nextInt() | 0xFF000000);
+        }
+        File file = mTemp.newFile("plain.png");
+        ImageIO.write(image, "png", file);
+
+        ApngFrame frame = ApngProbe.firstFrame(file.getPath());
+        assertEquals(37, frame.getWidth());
+        assertEquals(21, frame.getHeight());
+        assertEquals(0, frame.getDelayNum());
+        int[] expected = image.getRGB(0, 0, 37, 21, null, 0, 37);
+        assertArrayEquals(expected, probePixels(file));
+    }
+
+    /**
+     * an IDAT before the first fcTL is a default image not in the animation, sized by IHDR
+     */
+    @Test
+    public void defaultImageNotInAnimation() throws Exception {
+        List<TestApngs.Frame> frames = TestApngs.randomFrames(new Random(102), 27, 19, 4, TestApngs.COLOR_PALETTE);
+        frames.get(0).delayNum = 7;
+        byte[] apng = TestApngs.encode(27, 19, TestApngs.COLOR_PALETTE, frames, false, 0);
+        File original = TestApngs.write(mTemp.getRoot(), "a.png", apng);
+        File file = TestApngs.write(mTemp.getRoot(), "b.png", removeFirstChunk(apng, "fcTL"));
+
+        ApngFrame frame = ApngProbe.firstFrame(file.getPath());
+        assertEquals(27, frame.getWidth());
+        assertEquals(19, frame.getHeight());
+        assertEquals(0, frame.getxOff());
+        assertEquals(0, frame.getyOff());
+        assertEquals(0, frame.getDelayNum());
+        assertEquals(7, ApngProbe.firstFrame(original.getPath()).getDelayNum());
+        assertArrayEquals(decode(ApngProbe.firstFrame(original.getPath())), decode(frame));
+    }
+
+    private static byte[] removeFirstChunk(byte[] data, String type) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        for (int pos = 8; pos < data.length; pos += 12 + buf.getInt(pos)) {
+            if (new String(data, pos + 4, 4).equals(type)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write(data, 0, pos);
+                int next = pos + 12 + buf.getInt(pos);
+                out.write(data, next, data.length - next);
+                return out.toByteArray();
+            }
+        }
+        throw new IllegalArgumentException("No " + type + " chunk");
+    }
+}
@@ -0,0 +1,96 @@
+package li.tengfei.apng.base;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * push parser fed in pieces reports the same frames as ApngReader
+ *
+ * @author ltf
+ * @since 26/10/21, 上午11:30
+ */
+public class ApngPushParserTest {
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private static class Collector implements ApngPushListener {
+        final List<ApngFrame> mFrames = new ArrayList<>();
+        ApngACTLChunk mActl;
+        boolean mEnded;
+
+        @Override
+        public void onACTL(ApngACTLChunk actl) throws IOException {
+            mActl = actl;
+        }
+
+        @Override
+        public void onFrameReady(ApngFrame frame) throws IOException {
+            mFrames.add(frame);
+        }
+
+        @Override
+        public void onEnd() throws IOException {
+            mEnded = true;
+        }
+    }
+
+    @Test
+    public void oneByteFeedsMatchReader() throws Exception {
+        assertFeedsMatchReader(TestApngs.COLOR_RGBA, 1);
+        assertFeedsMatchReader(TestApngs.COLOR_PALETTE, 1);
+    }
+
+    @Test
+    public void oddPiecesMatchReader() throws Exception {
+        assertFeedsMatchReader(TestApngs.COLOR_RGBA, 7);
+        assertFeedsMatchReader(TestApngs.COLOR_RGBA, 4093);
+    }
+
+    private void assertFeedsMatchReader(int colorType, int piece) throws Exception {
+        byte[] data = TestApngs.encode(30, 20, colorType,
+                TestApngs.randomFrames(new Random(8), 30, 20, 9, colorType), false, 2);
+        Collector collector = new Collector();
+        ApngPushParser parser = new ApngPushParser(collector);
+        for (int off = 0; off < data.length; off += piece) {
+            ByteBuffer buf = ByteBuffer.wrap(data, off, Math.min(piece, data.length - off));
+            parser.feed(buf);
+            assertEquals(0, buf.remaining());
+        }
+        assertTrue(parser.isEnded());
+        assertTrue(collector.mEnded);
+        assertNotNull(collector.mActl);
+        assertEquals(9, collector.mActl.getNumFrames());
+        assertEquals(2, collector.mActl.getNumPlays());
+
+        ApngReader reader = new ApngReader(TestApngs.write(mTemp.getRoot(), "a" + piece + ".png", data).getPath());
+        try {
+            assertEquals(9, collector.mFrames.size());
+            for (int i = 0; i < collector.mFrames.size(); i++) {
+                ApngFrame expected = reader.getFrame(i);
+                ApngFrame frame = collector.mFrames.get(i);
+                assertEquals(expected.getWidth(), frame.getWidth());
+                assertEquals(expected.getHeight(), frame.getHeight());
+                assertEquals(expected.getxOff(), frame.getxOff());
+                assertEquals(expected.getyOff(), frame.getyOff());
+                assertEquals(expected.getDisposeOp(), frame.getDisposeOp());
+                assertEquals(expected.getBlendOp(), frame.getBlendOp());
+                assertArrayEquals("frame " + i, ((PngStream) expected.imageStream).toByteArray(),
+                        ((PngStream) frame.imageStream).toByteArray());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package li.tengfei.apng.base;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * shared readers of ApngReaderPool
+ *
+ * @author ltf
+ * @since 26/10/21, 下午12:00
+ */
+public class ApngReaderPoolTest {
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private File newApng(String name, int seed) throws Exception {
+        byte[] data = TestApngs.encode(16, 12, TestApngs.COLOR_RGBA,
+                TestApngs.randomFrames(new Random(seed), 16, 12, 4, TestApngs.COLOR_RGBA), false, 0);
+        return TestApngs.write(mTemp.getRoot(), name, data);
+    }
+
+    /**
+     * identity of the shared reader of a lease, the frame index is built once per reader
+     */
+    private static Object readerOf(ApngReaderLease lease) throws Exception {
+        return lease.getFrameIndex();
+    }
+
+    @Test
+    public void concurrentAcquiresShareOneReader() throws Exception {
+        final String path = newApng("a.png", 1).getPath();
+        final ApngReaderPool pool = new ApngReaderPool(Long.MAX_VALUE, 16);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<ApngReaderLease>> futures = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                futures.add(executor.submit(new Callable<ApngReaderLease>() {
+                    @Override
+                    public ApngReaderLease call() throws Exception {
+                        start.await();
+                        return pool.acquire(path);
+                    }
+                }));
+            }
+            start.countDown();
+            List<ApngReaderLease> leases = new ArrayList<>();
+            for (Future<ApngReaderLease> future : futures) leases.add(future.get());
+            assertEquals(1, pool.getOpenFiles());
+            Object reader = readerOf(leases.get(0));
+            for (ApngReaderLease lease : leases) {
+                assertSame(reader, readerOf(lease));
+                assertEquals(4, lease.getFrameIndex().getFrameCount());
+                lease.close();
+            }
+        } finally {
+            executor.shutdown();
+            pool.close();
+        }
+        assertEquals(0, pool.getOpenFiles());
+        assertEquals(0, pool.getMappedBytes());
+    }
+
+    @Test
+    public void idleReadersTrimmedToBudget() throws Exception {
+        ApngReaderPool pool = new ApngReaderPool(Long.MAX_VALUE, 2);
+        try {
+            String a = newApng("a.png", 1).getPath();
+            ApngReaderLease first = pool.acquire(a);
+            Object reader = readerOf(first);
+            first.close();
+            pool.acquire(newApng("b.png", 2).getPath()).close();
+            assertEquals(2, pool.getOpenFiles());
+
+            // still pooled
+            ApngReaderLease again = pool.acquire(a);
+            assertSame(reader, readerOf(again));
+            again.close();
+
+            // b is the least recently used, and closed
+            pool.acquire(newApng("c.png", 3).getPath()).close();
+            assertEquals(2, pool.getOpenFiles());
+            again = pool.acquire(a);
+            assertSame(reader, readerOf(again));
+            again.close();
+
+            // in use readers are kept over the budget
+            ApngReaderLease[] leases = new ApngReaderLease[3];
+            for (int i = 0; i < 3; i++) leases[i] = pool.acquire(newApng("d" + i + ".png", 4 + i).getPath());
+            assertEquals(3, pool.getOpenFiles());
+            for (ApngReaderLease lease : leases) lease.close();
+            assertEquals(2, pool.getOpenFiles());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void failedOpenNotPooled() throws Exception {
+        File broken = TestApngs.write(mTemp.getRoot(), "broken.png", new byte[64]);
+        ApngReaderPool pool = new ApngReaderPool(Long.MAX_VALUE, 16);
+        try {
+            for (int i = 0; i < 2; i++) {
+                try {
+                    pool.acquire(broken.getPath());
+                    fail("broken file opened");
+                } catch (FormatNotSupportException e) {
+                    // not a png file
+                }
+                assertEquals(0, pool.getOpenFiles());
+                assertEquals(0, pool.getMappedBytes());
+            }
+
+            // the file is fixed, it's opened again
+            File fixed = newApng("fixed.png", 1);
+            assertTrue(fixed.renameTo(broken));
+            ApngReaderLease lease = pool.acquire(broken.getPath());
+            assertEquals(4, lease.getFrameIndex().getFrameCount());
+            lease.close();
+            assertEquals(1, pool.getOpenFiles());
+        } finally {
+            pool.close();
+        }
+    }
+}
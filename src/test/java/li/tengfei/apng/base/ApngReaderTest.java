@@ -0,0 +1,142 @@
+package li.tengfei.apng.base;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * reading frames by ApngReader
+ *
+ * @author ltf
+ * @since 26/10/21, 上午11:00
+ */
+public class ApngReaderTest {
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Test
+    public void extractAllDeliversFramesInOrder() throws Exception {
+        byte[] data = TestApngs.encode(24, 16, TestApngs.COLOR_RGBA,
+                TestApngs.randomFrames(new Random(4), 24, 16, 17, TestApngs.COLOR_RGBA), false, 0);
+        ApngReader reader = new ApngReader(TestApngs.write(mTemp.getRoot(), "a.png", data).getPath());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int inFlight : new int[]{1, 3, 64}) {
+                final List<byte[]> pngs = new ArrayList<>();
+                reader.extractAll(executor, inFlight, new ApngFrameCallback() {
+                    @Override
+                    public void onFrame(int frameIndex, ApngFrame frame, byte[] png) throws IOException {
+                        assertEquals(pngs.size(), frameIndex);
+                        pngs.add(png);
+                    }
+                });
+                assertEquals(17, pngs.size());
+                for (int i = 0; i < pngs.size(); i++) {
+                    assertArrayEquals(((PngStream) reader.getFrame(i).imageStream).toByteArray(), pngs.get(i));
+                }
+            }
+        } finally {
+            executor.shutdown();
+            reader.close();
+        }
+    }
+
+    @Test
+    public void brokenFileClosesStorage() throws Exception {
+        byte[] data = TestApngs.encode(24, 16, TestApngs.COLOR_RGBA,
+                TestApngs.randomFrames(new Random(7), 24, 16, 5, TestApngs.COLOR_RGBA), false, 0);
+        File file = TestApngs.write(mTemp.getRoot(), "a.png",
+                Arrays.copyOf(data, data.length * 2 / 3));
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            new ApngReader(ApngStorage.map(channel), file, new ApngIndexCache(mTemp.newFolder("cache")));
+            fail("truncated file opened");
+        } catch (IOException | RuntimeException e) {
+            // the index build failed, the reader closed the storage before throwing
+        }
+        assertFalse(channel.isOpen());
+    }
+
+    private static byte[] png(ApngFrame frame) throws IOException {
+        return ((PngStream) frame.imageStream).toByteArray();
+    }
+
+    @Test
+    public void seekFrameInRandomOrder() throws Exception {
+        byte[] data = TestApngs.encode(20, 14, TestApngs.COLOR_RGBA,
+                TestApngs.randomFrames(new Random(1), 20, 14, 15, TestApngs.COLOR_RGBA), false, 0);
+        ApngReader reader = new ApngReader(TestApngs.write(mTemp.getRoot(), "a.png", data).getPath());
+        try {
+            List<byte[]> pngs = new ArrayList<>();
+            for (ApngFrame frame = reader.nextFrame(); frame != null; frame = reader.nextFrame()) pngs.add(png(frame));
+            assertEquals(15, pngs.size());
+
+            Random random = new Random(2);
+            for (int round = 0; round < 60; round++) {
+                int i = random.nextInt(pngs.size());
+                assertArrayEquals("frame " + i, pngs.get(i), png(reader.seekFrame(i)));
+                // nextFrame() continues after the sought frame
+                ApngFrame next = reader.nextFrame();
+                if (i + 1 < pngs.size()) assertArrayEquals("after " + i, pngs.get(i + 1), png(next));
+                else assertNull(next);
+            }
+            assertNull(reader.seekFrame(-1));
+            assertNull(reader.seekFrame(pngs.size()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void frameAtTimeByStartTimes() throws Exception {
+        List<TestApngs.Frame> frames = TestApngs.randomFrames(new Random(3), 12, 10, 9, TestApngs.COLOR_RGBA);
+        frames.get(3).delayNum = 0; // a frame of no display time
+        frames.get(5).delayDen = 0; // denominator 0 means 100
+        long[] starts = new long[frames.size() + 1];
+        for (int i = 0; i < frames.size(); i++) {
+            TestApngs.Frame f = frames.get(i);
+            starts[i + 1] = starts[i] + f.delayNum * 1000L / (f.delayDen == 0 ? 100 : f.delayDen);
+        }
+        long duration = starts[frames.size()];
+        byte[] data = TestApngs.encode(12, 10, TestApngs.COLOR_RGBA, frames, false, 0);
+        ApngReader reader = new ApngReader(TestApngs.write(mTemp.getRoot(), "t.png", data).getPath());
+        try {
+            ApngFrameIndex index = reader.getFrameIndex();
+            assertEquals(duration, index.getDuration());
+            for (int i = 0; i < frames.size(); i++) assertEquals(starts[i], index.getFrameStartTime(i));
+
+            for (int i = 0; i < frames.size(); i++) {
+                if (starts[i + 1] == starts[i]) continue; // never displayed, the next frame starts at the same time
+                for (long t : new long[]{starts[i], starts[i + 1] - 1}) {
+                    // wrapped past the duration, and negative times counted back from the end
+                    for (long play = -2; play <= 2; play++) {
+                        assertEquals("time " + t + " play " + play, i, index.frameAtTime(t + play * duration));
+                    }
+                    assertArrayEquals(png(reader.seekFrame(i)), png(reader.seekTime(t)));
+                }
+            }
+            assertEquals(4, index.frameAtTime(starts[3]));
+            assertEquals(0, index.frameAtTime(duration));
+            assertEquals(frames.size() - 1, index.frameAtTime(-1));
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package li.tengfei.apng.base;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * forward only reading from input streams gives the frames of ApngReader
+ *
+ * @author ltf
+ * @since 26/10/21, 下午3:00
+ */
+public class ApngStreamReaderTest {
+    private static final int FRAMES = 11;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    /**
+     * input stream returning at most a few bytes per read
+     */
+    private static InputStream trickle(byte[] data, final int piece) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, piece));
+            }
+        };
+    }
+
+    @Test
+    public void framesMatchReader() throws Exception {
+        for (int colorType : new int[]{TestApngs.COLOR_RGBA, TestApngs.COLOR_PALETTE}) {
+            byte[] data = TestApngs.encode(26, 18, colorType,
+                    TestApngs.randomFrames(new Random(40 + colorType), 26, 18, FRAMES, colorType), false, 3);
+            ApngReader reader = new ApngReader(TestApngs.write(mTemp.getRoot(), colorType + ".png", data).getPath());
+            try {
+                InputStream[] inputs = {new ByteArrayInputStream(data), trickle(data, 5)};
+                for (InputStream in : inputs) {
+                    ApngStreamReader stream = new ApngStreamReader(in);
+                    try {
+                        assertEquals(FRAMES, stream.getACTL().getNumFrames());
+                        assertEquals(3, stream.getACTL().getNumPlays());
+                        for (int i = 0; i < FRAMES; i++) {
+                            ApngFrame expected = reader.getFrame(i);
+                            ApngFrame frame = stream.nextFrame();
+                            assertEquals(expected.getxOff(), frame.getxOff());
+                            assertEquals(expected.getyOff(), frame.getyOff());
+                            assertEquals(expected.getDelayNum(), frame.getDelayNum());
+                            assertEquals(expected.getDisposeOp(), frame.getDisposeOp());
+                            assertEquals(expected.getBlendOp(), frame.getBlendOp());
+                            assertArrayEquals("color " + colorType + " frame " + i,
+                                    ((PngStream) expected.imageStream).toByteArray(),
+                                    ((PngStream) frame.imageStream).toByteArray());
+                        }
+                        assertNull(stream.nextFrame());
+                    } finally {
+                        stream.close();
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    @Test
+    public void truncatedStreamThrows() throws Exception {
+        byte[] data = TestApngs.encode(26, 18, TestApngs.COLOR_RGBA,
+                TestApngs.randomFrames(new Random(42), 26, 18, FRAMES, TestApngs.COLOR_RGBA), false, 0);
+        ApngStreamReader stream = new ApngStreamReader(trickle(Arrays.copyOf(data, data.length - 100), 64));
+        try {
+            while (stream.nextFrame() != null) ;
+            fail("truncated stream ended normally");
+        } catch (EOFException e) {
+            // the last frame is not complete
+        } finally {
+            stream.close();
+        }
+    }
+}
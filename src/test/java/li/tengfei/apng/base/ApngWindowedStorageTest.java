@@ -0,0 +1,91 @@
+package li.tengfei.apng.base;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * tiny windows put chunks and integers across window boundaries
+ *
+ * @author ltf
+ * @since 26/10/21, 下午3:30
+ */
+public class ApngWindowedStorageTest {
+    private static final int WINDOW_SHIFT = 6; // 64 bytes windows
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private static ApngStorage openWindowed(File file) throws Exception {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        return new ApngWindowedStorage(channel, channel.size(), WINDOW_SHIFT);
+    }
+
+    @Test
+    public void readsMatchData() throws Exception {
+        byte[] data = new byte[64 * 5 + 13];
+        new Random(50).nextBytes(data);
+        File file = TestApngs.write(mTemp.getRoot(), "r.bin", data);
+        ApngStorage storage = openWindowed(file);
+        ByteBuffer expected = ByteBuffer.wrap(data);
+        try {
+            assertEquals(data.length, storage.size());
+            for (int pos = 0; pos < data.length; pos++) {
+                assertEquals("byte " + pos, data[pos], storage.get(pos));
+                if (pos + 2 <= data.length) assertEquals("short " + pos, expected.getShort(pos), storage.getShort(pos));
+                if (pos + 4 <= data.length) assertEquals("int " + pos, expected.getInt(pos), storage.getInt(pos));
+                for (int len : new int[]{0, 1, 7, 64, 150}) {
+                    if (pos + len > data.length) continue;
+                    byte[] bytes = new byte[len];
+                    System.arraycopy(data, pos, bytes, 0, len);
+                    byte[] got = new byte[len];
+                    storage.get(pos, got, 0, len);
+                    assertArrayEquals("get " + pos + "+" + len, bytes, got);
+                    ByteBuffer slice = storage.slice(pos, len);
+                    got = new byte[slice.remaining()];
+                    slice.get(got);
+                    assertArrayEquals("slice " + pos + "+" + len, bytes, got);
+                }
+            }
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void framesMatchSingleMapping() throws Exception {
+        for (int colorType : new int[]{TestApngs.COLOR_RGBA, TestApngs.COLOR_PALETTE}) {
+            byte[] data = TestApngs.encode(23, 15, colorType,
+                    TestApngs.randomFrames(new Random(51 + colorType), 23, 15, 12, colorType), false, 0);
+            File file = TestApngs.write(mTemp.getRoot(), colorType + ".png", data);
+            ApngReader mapped = new ApngReader(file.getPath());
+            ApngReader windowed = new ApngReader(openWindowed(file), file, null);
+            ApngCompositor compositor = new ApngCompositor(23, 15);
+            ApngCompositor expected = new ApngCompositor(23, 15);
+            try {
+                assertEquals(12, windowed.getFrameIndex().getFrameCount());
+                for (int i = 0; i < 12; i++) {
+                    String message = "color " + colorType + " frame " + i;
+                    assertArrayEquals(message, ((PngStream) mapped.getFrame(i).imageStream).toByteArray(),
+                            ((PngStream) windowed.getFrame(i).imageStream).toByteArray());
+                    assertArrayEquals(message, expected.compose(mapped.getFrame(i)),
+                            compositor.compose(windowed.getFrame(i)));
+                }
+            } finally {
+                compositor.release();
+                expected.release();
+                mapped.close();
+                windowed.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package li.tengfei.apng.base;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * CRC arithmetic must agree with java.util.zip.CRC32 over the data
+ *
+ * @author ltf
+ * @since 26/10/21, 下午12:30
+ */
+public class Crc32AlgebraTest {
+    private static final int[] LENGTHS = {0, 1, 2, 3, 4, 7, 8, 15, 16, 100, 1000, 65537};
+
+    private static int crc(byte[] data, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        return (int) crc.getValue();
+    }
+
+    @Test
+    public void combineMatchesCrc32() {
+        Random random = new Random(10);
+        for (int len1 : LENGTHS) {
+            for (int len2 : LENGTHS) {
+                byte[] data = new byte[len1 + len2];
+                random.nextBytes(data);
+                int combined = Crc32Algebra.combine(crc(data, 0, len1), crc(data, len1, len2), len2);
+                assertEquals(len1 + " + " + len2, crc(data, 0, data.length), combined);
+            }
+        }
+    }
+
+    @Test
+    public void replaceHeadMatchesCrc32() {
+        Random random = new Random(11);
+        for (int headLen : new int[]{1, 4, 8}) {
+            for (int len : LENGTHS) {
+                byte[] data = new byte[headLen + len];
+                random.nextBytes(data);
+                byte[] head = new byte[headLen];
+                random.nextBytes(head);
+                byte[] replaced = data.clone();
+                System.arraycopy(head, 0, replaced, 0, headLen);
+
+                int crc = Crc32Algebra.replaceHead(crc(data, 0, data.length), crc(data, 0, headLen),
+                        crc(head, 0, headLen), len);
+                assertEquals(crc(replaced, 0, replaced.length), crc);
+            }
+        }
+    }
+
+    @Test
+    public void multiplyByOneIsIdentity() {
+        Random random = new Random(12);
+        for (int i = 0; i < 1000; i++) {
+            int p = random.nextInt();
+            assertEquals(p, Crc32Algebra.multiply(0x80000000, p));
+            assertEquals(p, Crc32Algebra.shift(p, 0));
+        }
+    }
+
+    @Test
+    public void fdatConvertedToIdatWithValidCrc() throws Exception {
+        Random random = new Random(13);
+        for (int len : LENGTHS) {
+            // fdAT chunk: length, "fdAT", sequence_number, data, crc
+            byte[] data = new byte[len];
+            random.nextBytes(data);
+            byte[] fdat = new byte[len + 16];
+            TestApngs.putInt(fdat, 0, len + 4);
+            fdat[4] = 'f';
+            fdat[5] = 'd';
+            fdat[6] = 'A';
+            fdat[7] = 'T';
+            TestApngs.putInt(fdat, 8, random.nextInt());
+            System.arraycopy(data, 0, fdat, 12, len);
+            TestApngs.putInt(fdat, len + 12, crc(fdat, 4, len + 8));
+
+            ApngMmapParserChunk chunk = new ApngMmapParserChunk(ByteBuffer.wrap(fdat));
+            chunk.parsePrepare(0);
+            chunk.parseNext();
+            ApngMmapParserChunk converted = ApngCursor.newDataChunk(chunk);
+            assertTrue(converted instanceof Fdat2IdatChunk);
+
+            List<ByteBuffer> buffers = new ArrayList<>();
+            converted.collectBuffers(buffers);
+            ByteBuffer idat = ByteBuffer.allocate(converted.getStreamLen());
+            for (ByteBuffer buf : buffers) idat.put(buf);
+            assertEquals(0, idat.remaining());
+
+            // IDAT chunk: length, "IDAT", data, crc of "IDAT" + data
+            byte[] expected = new byte[len + 12];
+            TestApngs.putInt(expected, 0, len);
+            expected[4] = 'I';
+            expected[5] = 'D';
+            expected[6] = 'A';
+            expected[7] = 'T';
+            System.arraycopy(data, 0, expected, 8, len);
+            TestApngs.putInt(expected, len + 8, crc(expected, 4, len + 4));
+            assertArrayEquals("data length " + len, expected, idat.array());
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package li.tengfei.apng.base;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * decoding frames of interlaced and non-interlaced images
+ *
+ * @author ltf
+ * @since 26/10/21, 下午1:30
+ */
+public class FrameDecoderTest {
+    // small and odd sizes leave some Adam7 passes empty
+    private static final int[][] SIZES = {{1, 1}, {2, 3}, {5, 1}, {7, 9}, {8, 8}, {13, 6}, {33, 17}};
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private ApngReader newReader(String name, int width, int height, int colorType, List<TestApngs.Frame> frames,
+                                 boolean interlaced) throws Exception {
+        byte[] data = TestApngs.encode(width, height, colorType, frames, interlaced, 0);
+        return new ApngReader(TestApngs.write(mTemp.getRoot(), name, data).getPath());
+    }
+
+    /**
+     * Adam7 interlaced frames decode to the same pixels as the non-interlaced encoding, at full and sampled sizes
+     */
+    @Test
+    public void interlacedMatchesNonInterlaced() throws Exception {
+        int seed = 20;
+        for (int colorType : new int[]{TestApngs.COLOR_RGBA, TestApngs.COLOR_PALETTE}) {
+            for (int[] size : SIZES) {
+                int w = size[0], h = size[1];
+                List<TestApngs.Frame> frames = TestApngs.randomFrames(new Random(seed++), w, h, 6, colorType);
+                String name = colorType + "-" + w + "x" + h;
+                ApngReader plain = newReader(name + ".png", w, h, colorType, frames, false);
+                ApngReader interlaced = newReader(name + "-i.png", w, h, colorType, frames, true);
+                try {
+                    for (int n = 1; n <= 4; n <<= 1) {
+                        for (int i = 0; i < frames.size(); i++) {
+                            assertArrayEquals(name + " frame " + i + " sample " + n,
+                                    decode(plain.getFrame(i), n), decode(interlaced.getFrame(i), n));
+                        }
+                    }
+                } finally {
+                    plain.close();
+                    interlaced.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * decoded pixels are the samples of the frame, rows of frames over 5 pixels high use all filter types
+     */
+    @Test
+    public void decodedMatchesSamples() throws Exception {
+        int[] palette = TestApngs.palette();
+        for (int colorType : new int[]{TestApngs.COLOR_RGBA, TestApngs.COLOR_PALETTE}) {
+            for (int[] size : SIZES) {
+                int w = size[0], h = size[1];
+                List<TestApngs.Frame> frames = TestApngs.randomFrames(new Random(w * 100 + h), w, h, 8, colorType);
+                String name = colorType + "-" + w + "x" + h;
+                ApngReader reader = newReader(name + ".png", w, h, colorType, frames, false);
+                try {
+                    for (int i = 0; i < frames.size(); i++) {
+                        TestApngs.Frame f = frames.get(i);
+                        int[] expected = new int[f.w * f.h];
+                        for (int p = 0; p < expected.length; p++) {
+                            if (colorType == TestApngs.COLOR_PALETTE) {
+                                expected[p] = palette[f.samples[p] & 0xFF];
+                            } else {
+                                // RGBA samples to ARGB
+                                expected[p] = (f.samples[p * 4 + 3] & 0xFF) << 24 | (f.samples[p * 4] & 0xFF) << 16
+                                        | (f.samples[p * 4 + 1] & 0xFF) << 8 | f.samples[p * 4 + 2] & 0xFF;
+                            }
+                        }
+                        assertArrayEquals(name + " frame " + i, expected, decode(reader.getFrame(i), 1));
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * images of all color types and bit depths decode to their samples, with tRNS color keys, and palettes
+     * patched by paCH chunks, decoded by one decoder in and out of order, so the pixel tables are rebuilt
+     * whenever the head data changes
+     */
+    @Test
+    public void allFormatsMatchSamples() throws Exception {
+        int[][] formats = {
+                {TestApngs.COLOR_GRAY, 1}, {TestApngs.COLOR_GRAY, 2}, {TestApngs.COLOR_GRAY, 4},
+                {TestApngs.COLOR_GRAY, 8}, {TestApngs.COLOR_GRAY, 16},
+                {TestApngs.COLOR_RGB, 8}, {TestApngs.COLOR_RGB, 16},
+                {TestApngs.COLOR_GRAY_ALPHA, 8}, {TestApngs.COLOR_GRAY_ALPHA, 16}, {TestApngs.COLOR_RGBA, 16},
+                {TestApngs.COLOR_PALETTE, 1}, {TestApngs.COLOR_PALETTE, 2}, {TestApngs.COLOR_PALETTE, 4},
+                {TestApngs.COLOR_PALETTE, 8}};
+        int w = 13, h = 11;
+        int seed = 80;
+        for (int[] format : formats) {
+            int colorType = format[0], bitDepth = format[1];
+            Random random = new Random(seed++);
+            List<TestApngs.Frame> frames = TestApngs.randomFrames(random, w, h, 9, colorType, bitDepth);
+            int[] palette = null;
+            int[][] palettes = new int[frames.size()][]; // palette of each frame
+            if (colorType == TestApngs.COLOR_PALETTE) {
+                palette = Arrays.copyOf(TestApngs.palette(), Math.min(16, 1 << bitDepth));
+                int[] current = palette;
+                for (int i = 0; i < frames.size(); i++) {
+                    if (i % 3 == 2) {
+                        int[] colors = new int[palette.length];
+                        for (int c = 0; c < colors.length; c++) colors[c] = random.nextInt() & 0xFFFFFF;
+                        frames.get(i).patch = colors;
+                        current = new int[palette.length];
+                        for (int c = 0; c < colors.length; c++) current[c] = palette[c] & 0xFF000000 | colors[c];
+                    }
+                    palettes[i] = current;
+                }
+            }
+            // color key of the first pixel, gray and RGB images
+            int[] transKey = null;
+            if (colorType == TestApngs.COLOR_GRAY || colorType == TestApngs.COLOR_RGB) {
+                transKey = new int[TestApngs.channels(colorType)];
+                for (int c = 0; c < transKey.length; c++) transKey[c] = sample(frames.get(0).samples, c, bitDepth);
+            }
+
+            for (boolean interlaced : new boolean[]{false, true}) {
+                String name = colorType + "-" + bitDepth + (interlaced ? "-i" : "");
+                byte[] data = TestApngs.encode(w, h, colorType, bitDepth, frames, interlaced, 0, palette, transKey);
+                ApngReader reader = new ApngReader(TestApngs.write(mTemp.getRoot(), name + ".png", data).getPath());
+                FrameDecoder decoder = new FrameDecoder();
+                try {
+                    int transparent = 0;
+                    for (int k = 0; k < frames.size() * 2; k++) {
+                        int i = k < frames.size() ? k : frames.size() * 2 - 1 - k; // in order, then backwards
+                        TestApngs.Frame f = frames.get(i);
+                        int[] expected = argb(f, colorType, bitDepth, palettes[i], transKey);
+                        int[] pixels = new int[f.w * f.h];
+                        decoder.decode(reader.getFrame(i), pixels, 0, f.w);
+                        assertArrayEquals(name + " frame " + i, expected, pixels);
+                        for (int argb : expected) if (argb >>> 24 == 0) transparent++;
+                    }
+                    if (transKey != null) assertTrue(name + " color key not used", transparent > 0);
+                } finally {
+                    decoder.release();
+                    reader.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * sample of the channel of the first pixel
+     */
+    private static int sample(byte[] samples, int channel, int bitDepth) {
+        if (bitDepth == 16) return (samples[channel * 2] & 0xFF) << 8 | samples[channel * 2 + 1] & 0xFF;
+        return samples[channel] & 0xFF;
+    }
+
+    /**
+     * ARGB of the frame's samples: 16-bit samples reduced to their high byte, 1/2/4-bit gray scaled to 0~255,
+     * pixels of the color key (compared in full precision) transparent
+     */
+    private static int[] argb(TestApngs.Frame f, int colorType, int bitDepth, int[] palette, int[] transKey) {
+        int channels = TestApngs.channels(colorType);
+        int bytes = bitDepth == 16 ? 2 : 1;
+        int max = (1 << Math.min(bitDepth, 8)) - 1;
+        int[] pixels = new int[f.w * f.h];
+        int[] full = new int[channels];
+        int[] v = new int[channels];
+        for (int p = 0; p < pixels.length; p++) {
+            boolean keyed = transKey != null;
+            for (int c = 0; c < channels; c++) {
+                int s = (p * channels + c) * bytes;
+                full[c] = bytes == 2 ? (f.samples[s] & 0xFF) << 8 | f.samples[s + 1] & 0xFF : f.samples[s] & 0xFF;
+                v[c] = bytes == 2 ? full[c] >> 8 : full[c] * 255 / max;
+                keyed &= transKey != null && transKey[c] == full[c];
+            }
+            int a = keyed ? 0 : 0xFF;
+            switch (colorType) {
+                case TestApngs.COLOR_PALETTE:
+                    pixels[p] = palette[full[0]];
+                    break;
+                case TestApngs.COLOR_GRAY:
+                    pixels[p] = a << 24 | v[0] << 16 | v[0] << 8 | v[0];
+                    break;
+                case TestApngs.COLOR_GRAY_ALPHA:
+                    pixels[p] = v[1] << 24 | v[0] << 16 | v[0] << 8 | v[0];
+                    break;
+                case TestApngs.COLOR_RGB:
+                    pixels[p] = a << 24 | v[0] << 16 | v[1] << 8 | v[2];
+                    break;
+                default:
+                    pixels[p] = v[3] << 24 | v[0] << 16 | v[1] << 8 | v[2];
+            }
+        }
+        return pixels;
+    }
+
+    private static int[] decode(ApngFrame frame, int sampleSize) throws Exception {
+        FrameDecoder decoder = new FrameDecoder();
+        try {
+            decoder.setSampleSize(sampleSize);
+            int w = frame.getSampledWidth(sampleSize);
+            int[] pixels = new int[Math.max(w * frame.getSampledHeight(sampleSize), 1)];
+            decoder.decode(frame, pixels, 0, Math.max(w, 1));
+            return pixels;
+        } finally {
+            decoder.release();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package li.tengfei.apng.base;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static li.tengfei.apng.base.FrameDecoder.FILTER_AVERAGE;
+import static li.tengfei.apng.base.FrameDecoder.FILTER_NONE;
+import static li.tengfei.apng.base.FrameDecoder.FILTER_PAETH;
+import static li.tengfei.apng.base.FrameDecoder.FILTER_SUB;
+import static li.tengfei.apng.base.FrameDecoder.FILTER_UP;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * fast kernels must produce exactly the same bytes / pixels as the scalar references
+ *
+ * @author ltf
+ * @since 26/10/21, 上午9:10
+ */
+public class PixelKernelsTest {
+    private static final int[] FILTERS = {FILTER_NONE, FILTER_SUB, FILTER_UP, FILTER_AVERAGE, FILTER_PAETH};
+    private static final int[] BPPS = {1, 2, 3, 4, 6, 8};
+
+    @Test
+    public void unfilterMatchesScalar() throws Exception {
+        Random random = new Random(14);
+        for (int filter : FILTERS) {
+            for (int bpp : BPPS) {
+                // all row lengths around the 4 and 8 byte strides, to cover the tails
+                for (int rowBytes = 1; rowBytes <= 40; rowBytes++) {
+                    for (int round = 0; round < 20; round++) {
+                        byte[] cur = new byte[rowBytes + 1];
+                        byte[] prev = new byte[rowBytes + 1];
+                        random.nextBytes(cur);
+                        random.nextBytes(prev);
+                        cur[0] = (byte) filter;
+                        byte[] expected = cur.clone();
+                        PixelKernels.unfilterScalar(expected, prev, rowBytes, bpp);
+                        PixelKernels.unfilter(cur, prev, rowBytes, bpp);
+                        assertArrayEquals("filter " + filter + " bpp " + bpp + " rowBytes " + rowBytes, expected, cur);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void unfilterFirstRowWithZeroPrevious() throws Exception {
+        Random random = new Random(1);
+        for (int filter : FILTERS) {
+            for (int bpp : BPPS) {
+                byte[] cur = new byte[33];
+                random.nextBytes(cur);
+                cur[0] = (byte) filter;
+                byte[] expected = cur.clone();
+                byte[] prev = new byte[33];
+                PixelKernels.unfilterScalar(expected, prev, 32, bpp);
+                PixelKernels.unfilter(cur, prev, 32, bpp);
+                assertArrayEquals(expected, cur);
+            }
+        }
+    }
+
+    @Test
+    public void blendOverMatchesScalar() {
+        Random random = new Random(16);
+        for (int w = 1; w <= 19; w++) {
+            int h = 3, stride = w + 5;
+            int[] src = randomPixels(random, w * h);
+            int[] dst = randomPixels(random, stride * h + 2);
+            int[] expected = dst.clone();
+            PixelKernels.blendOverScalar(src, 0, w, expected, 2, stride, w, h);
+            PixelKernels.blendOver(src, 0, w, dst, 2, stride, w, h);
+            assertArrayEquals("width " + w, expected, dst);
+        }
+    }
+
+    @Test
+    public void blendOverPremultipliedMatchesReference() {
+        Random random = new Random(17);
+        int[] src = randomPixels(random, 4096);
+        int[] dst = randomPixels(random, 4096);
+        for (int i = 0; i < src.length; i++) {
+            src[i] = PixelFormat.premultiply(src[i]);
+            dst[i] = PixelFormat.premultiply(dst[i]);
+        }
+        int[] expected = dst.clone();
+        for (int i = 0; i < src.length; i++) {
+            int s = src[i];
+            int ia = 255 - (s >>> 24);
+            int out = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                out |= ((s >>> shift & 0xFF) + PixelKernels.div255((expected[i] >>> shift & 0xFF) * ia)) << shift;
+            }
+            expected[i] = out;
+        }
+        PixelKernels.blendOverPremultiplied(src, 0, 64, dst, 0, 64, 64, 64);
+        assertArrayEquals(expected, dst);
+    }
+
+    @Test
+    public void sourceCopyKeepsOutsideOfRect() {
+        Random random = new Random(18);
+        for (int w = 1; w <= 11; w++) {
+            int stride = 13;
+            int[] src = randomPixels(random, w * 4);
+            int[] dst = randomPixels(random, stride * 5);
+            int[] expected = dst.clone();
+            for (int y = 0; y < 4; y++) {
+                System.arraycopy(src, y * w, expected, (y + 1) * stride + 1, w);
+            }
+            ApngCompositor.copyRect(src, 0, w, dst, stride + 1, stride, w, 4);
+            assertArrayEquals(expected, dst);
+        }
+    }
+
+    @Test
+    public void div255IsRounded() {
+        for (int x = 0; x <= 255 * 255; x++) {
+            assertEquals(Math.round(x / 255.0), PixelKernels.div255(x));
+        }
+    }
+
+    /**
+     * random pixels with many fully transparent / opaque alphas, the special cases of the kernels
+     */
+    private static int[] randomPixels(Random random, int count) {
+        int[] pixels = new int[count];
+        for (int i = 0; i < count; i++) {
+            int rgb = random.nextInt() & 0xFFFFFF;
+            int a;
+            switch (random.nextInt(4)) {
+                case 0:
+                    a = 0;
+                    break;
+                case 1:
+                    a = 0xFF;
+                    break;
+                default:
+                    a = random.nextInt(256);
+            }
+            pixels[i] = a << 24 | rgb;
+        }
+        return pixels;
+    }
+}
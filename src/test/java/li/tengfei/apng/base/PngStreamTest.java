@@ -0,0 +1,96 @@
+package li.tengfei.apng.base;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * writing png streams of frames by transferTo and toBuffers
+ *
+ * @author ltf
+ * @since 26/10/21, 下午2:30
+ */
+public class PngStreamTest {
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    /**
+     * the IDAT chunks of the first frame are forwarded from the file, the fdAT chunks of the others are converted,
+     * the bytes written to a file and to a stream are the read bytes
+     */
+    @Test
+    public void transferToMatchesRead() throws Exception {
+        for (int colorType : new int[]{TestApngs.COLOR_RGBA, TestApngs.COLOR_PALETTE}) {
+            byte[] data = TestApngs.encode(19, 13, colorType,
+                    TestApngs.randomFrames(new Random(30 + colorType), 19, 13, 8, colorType), false, 0);
+            ApngReader reader = new ApngReader(TestApngs.write(mTemp.getRoot(), colorType + ".png", data).getPath());
+            try {
+                for (int i = 0; i < 8; i++) {
+                    String message = "color " + colorType + " frame " + i;
+                    PngStream stream = (PngStream) reader.getFrame(i).imageStream;
+                    byte[] expected = stream.toByteArray();
+                    assertEquals(expected.length, stream.length());
+                    assertChunks(message, expected);
+
+                    File file = mTemp.newFile();
+                    FileOutputStream out = new FileOutputStream(file);
+                    try {
+                        FileChannel channel = out.getChannel();
+                        assertEquals(expected.length, stream.transferTo(channel));
+                    } finally {
+                        out.close();
+                    }
+                    assertArrayEquals(message, expected, Files.readAllBytes(file.toPath()));
+
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    assertEquals(expected.length, stream.transferTo(Channels.newChannel(bytes)));
+                    assertArrayEquals(message, expected, bytes.toByteArray());
+
+                    ByteBuffer joined = ByteBuffer.allocate(expected.length);
+                    for (ByteBuffer buffer : stream.toBuffers()) joined.put(buffer);
+                    assertEquals(0, joined.remaining());
+                    assertArrayEquals(message, expected, joined.array());
+
+                    // the stream is still readable from the head
+                    assertArrayEquals(message, expected, stream.toByteArray());
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * png signature, then chunks of valid CRCs ending with IEND
+     */
+    private static void assertChunks(String message, byte[] png) {
+        byte[] sig = new byte[PngStream.PNG_SIG_LEN];
+        System.arraycopy(png, 0, sig, 0, sig.length);
+        assertArrayEquals(message, PngStream.PNG_SIG_DAT, sig);
+        ByteBuffer buf = ByteBuffer.wrap(png);
+        buf.position(PngStream.PNG_SIG_LEN);
+        String type = null;
+        while (buf.hasRemaining()) {
+            int len = buf.getInt();
+            CRC32 crc = new CRC32();
+            crc.update(png, buf.position(), len + 4);
+            type = new String(png, buf.position(), 4);
+            buf.position(buf.position() + len + 4);
+            assertEquals(message + " " + type + " crc", (int) crc.getValue(), buf.getInt());
+        }
+        assertEquals(message, "IEND", type);
+    }
+}
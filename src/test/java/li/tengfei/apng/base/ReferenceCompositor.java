@@ -0,0 +1,100 @@
+package li.tengfei.apng.base;
+
+import java.util.List;
+
+/**
+ * Straight alpha compositor over the samples of TestApngs frames, written from the APNG spec
+ * with exact math rounded to nearest, the expected canvases of ApngCompositor
+ *
+ * @author ltf
+ * @since 26/10/21, 下午4:30
+ */
+final class ReferenceCompositor {
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mPalette; // null for RGBA samples
+    private final int[] mCanvas;
+    private int[] mRestore; // canvas to restore after the last frame
+    private TestApngs.Frame mLast;
+    private int mLastDispose;
+
+    /**
+     * @param palette palette of index samples, null for RGBA samples
+     */
+    ReferenceCompositor(int width, int height, int[] palette) {
+        mWidth = width;
+        mHeight = height;
+        mPalette = palette;
+        mCanvas = new int[width * height];
+    }
+
+    /**
+     * canvases after each frame
+     */
+    static int[][] composeAll(int width, int height, int[] palette, List<TestApngs.Frame> frames) {
+        ReferenceCompositor compositor = new ReferenceCompositor(width, height, palette);
+        int[][] canvases = new int[frames.size()][];
+        for (int i = 0; i < canvases.length; i++) canvases[i] = compositor.compose(frames.get(i)).clone();
+        return canvases;
+    }
+
+    /**
+     * dispose the last frame, and render the frame
+     *
+     * @return the canvas, ARGB_8888
+     */
+    int[] compose(TestApngs.Frame frame) {
+        if (mLast != null) {
+            if (mLastDispose == ApngFCTLChunk.APNG_DISPOSE_OP_BACKGROUND) {
+                for (int y = mLast.y; y < mLast.y + mLast.h; y++) {
+                    for (int x = mLast.x; x < mLast.x + mLast.w; x++) mCanvas[y * mWidth + x] = 0;
+                }
+            } else if (mLastDispose == ApngFCTLChunk.APNG_DISPOSE_OP_PREVIOUS) {
+                System.arraycopy(mRestore, 0, mCanvas, 0, mCanvas.length);
+            }
+        }
+
+        // PREVIOUS disposal of the first frame is BACKGROUND
+        mLastDispose = frame.dispose == ApngFCTLChunk.APNG_DISPOSE_OP_PREVIOUS && mLast == null
+                ? ApngFCTLChunk.APNG_DISPOSE_OP_BACKGROUND : frame.dispose;
+        if (mLastDispose == ApngFCTLChunk.APNG_DISPOSE_OP_PREVIOUS) mRestore = mCanvas.clone();
+        mLast = frame;
+
+        for (int y = 0; y < frame.h; y++) {
+            for (int x = 0; x < frame.w; x++) {
+                int s = sample(frame, y * frame.w + x);
+                int p = (frame.y + y) * mWidth + frame.x + x;
+                mCanvas[p] = frame.blend == ApngFCTLChunk.APNG_BLEND_OP_SOURCE ? s : over(s, mCanvas[p]);
+            }
+        }
+        return mCanvas;
+    }
+
+    private int sample(TestApngs.Frame frame, int pixel) {
+        byte[] samples = frame.samples;
+        if (mPalette != null) return mPalette[samples[pixel] & 0xFF];
+        int i = pixel * 4;
+        return (samples[i + 3] & 0xFF) << 24 | (samples[i] & 0xFF) << 16 | (samples[i + 1] & 0xFF) << 8
+                | samples[i + 2] & 0xFF;
+    }
+
+    /**
+     * a = sa + da * (1 - sa), c = (sc * sa + dc * da * (1 - sa)) / a, a transparent source leaves the destination,
+     * with alphas scaled to 0~255 the fractions are exact, rounded half up
+     */
+    private static int over(int s, int d) {
+        int sa = s >>> 24;
+        int da = d >>> 24;
+        if (sa == 0) return d;
+        int a = sa * 255 + da * (255 - sa); // alpha * 255 * 255
+        int result = round(a, 255) << 24;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            result |= round((s >> shift & 0xFF) * sa * 255 + (d >> shift & 0xFF) * da * (255 - sa), a) << shift;
+        }
+        return result;
+    }
+
+    private static int round(long num, long den) {
+        return (int) ((num * 2 + den) / (den * 2));
+    }
+}
@@ -0,0 +1,425 @@
+package li.tengfei.apng.base;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Generates apng files for tests: images of all color types and bit depths, frames with random regions,
+ * dispose and blend ops, scanlines encoded with all filter types, optionally Adam7 interlaced,
+ * tRNS color keys and paCH patches of the palette
+ *
+ * @author ltf
+ * @since 26/10/21, 上午10:00
+ */
+final class TestApngs {
+    static final int COLOR_GRAY = 0;
+    static final int COLOR_RGB = 2;
+    static final int COLOR_PALETTE = 3;
+    static final int COLOR_GRAY_ALPHA = 4;
+    static final int COLOR_RGBA = 6;
+
+    private static final int[] ADAM7_X = {0, 4, 0, 2, 0, 1, 0};
+    private static final int[] ADAM7_Y = {0, 0, 4, 0, 2, 0, 1};
+    private static final int[] ADAM7_DX = {8, 8, 4, 4, 2, 2, 1};
+    private static final int[] ADAM7_DY = {8, 8, 8, 4, 4, 2, 2};
+
+    private TestApngs() {
+    }
+
+    /**
+     * frame control info and samples of a frame, the channels of each pixel in order, one byte per sample
+     * (values below 2^bitDepth for 1/2/4-bit images), two bytes big endian per sample for 16-bit images
+     */
+    static final class Frame {
+        int x, y, w, h;
+        int delayNum = 1, delayDen = 25;
+        int dispose, blend;
+        byte[] samples;
+        int[] patch; // new RGB of the PLTE colors, patched by a paCH chunk before the frame, or null
+    }
+
+    /**
+     * random 8-bit frames, frame 0 covers the canvas, some later frames are key frames
+     */
+    static List<Frame> randomFrames(Random random, int width, int height, int count, int colorType) {
+        return randomFrames(random, width, height, count, colorType, 8);
+    }
+
+    /**
+     * random frames, 8-bit RGBA frames have random pixels, other frames pixels of a few colors shared by all
+     * frames, palette indices are below 16, so color keys picked from a frame's samples are in the other frames
+     */
+    static List<Frame> randomFrames(Random random, int width, int height, int count, int colorType, int bitDepth) {
+        byte[][] pool = null;
+        if (colorType != COLOR_PALETTE && (colorType != COLOR_RGBA || bitDepth != 8)) {
+            pool = new byte[12][channels(colorType) * (bitDepth == 16 ? 2 : 1)];
+            for (byte[] pixel : pool) {
+                random.nextBytes(pixel);
+                if (bitDepth < 8) for (int i = 0; i < pixel.length; i++) pixel[i] &= (1 << bitDepth) - 1;
+            }
+        }
+        List<Frame> frames = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Frame f = new Frame();
+            boolean full = i == 0 || random.nextInt(6) == 0;
+            f.w = full ? width : 1 + random.nextInt(width);
+            f.h = full ? height : 1 + random.nextInt(height);
+            f.x = full ? 0 : random.nextInt(width - f.w + 1);
+            f.y = full ? 0 : random.nextInt(height - f.h + 1);
+            f.dispose = random.nextInt(3);
+            f.blend = full && random.nextBoolean() ? 0 : random.nextInt(2);
+            f.delayNum = 1 + random.nextInt(5);
+            if (pool != null) f.samples = randomPooled(random, f.w * f.h, pool);
+            else if (colorType == COLOR_PALETTE) f.samples = randomIndices(random, f.w * f.h, Math.min(bitDepth, 4));
+            else f.samples = randomRgba(random, f.w * f.h);
+            frames.add(f);
+        }
+        return frames;
+    }
+
+    private static byte[] randomRgba(Random random, int pixels) {
+        byte[] samples = new byte[pixels * 4];
+        int base = random.nextInt();
+        for (int i = 0; i < pixels; i++) {
+            // runs of similar pixels, with transparent, opaque and translucent alphas
+            if (random.nextInt(8) == 0) base = random.nextInt();
+            int alpha;
+            switch (random.nextInt(4)) {
+                case 0:
+                    alpha = 0;
+                    break;
+                case 1:
+                case 2:
+                    alpha = 0xFF;
+                    break;
+                default:
+                    alpha = random.nextInt(256);
+            }
+            samples[i * 4] = (byte) (base >> 16);
+            samples[i * 4 + 1] = (byte) (base >> 8 + i % 3);
+            samples[i * 4 + 2] = (byte) (base + i);
+            samples[i * 4 + 3] = (byte) alpha;
+        }
+        return samples;
+    }
+
+    private static byte[] randomIndices(Random random, int pixels, int bits) {
+        byte[] samples = new byte[pixels];
+        for (int i = 0; i < pixels; i++) samples[i] = (byte) random.nextInt(1 << bits);
+        return samples;
+    }
+
+    /**
+     * runs of the pool's pixels
+     */
+    private static byte[] randomPooled(Random random, int pixels, byte[][] pool) {
+        int size = pool[0].length;
+        byte[] samples = new byte[pixels * size];
+        byte[] pixel = pool[0];
+        for (int i = 0; i < pixels; i++) {
+            if (random.nextInt(3) == 0) pixel = pool[random.nextInt(pool.length)];
+            System.arraycopy(pixel, 0, samples, i * size, size);
+        }
+        return samples;
+    }
+
+    static int channels(int colorType) {
+        switch (colorType) {
+            case COLOR_RGB:
+                return 3;
+            case COLOR_GRAY_ALPHA:
+                return 2;
+            case COLOR_RGBA:
+                return 4;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * palette of 16 colors used with COLOR_PALETTE, index 0 is fully transparent, others opaque
+     */
+    static int[] palette() {
+        int[] palette = new int[16];
+        for (int i = 1; i < 16; i++) palette[i] = 0xFF000000 | i * 0x0F0B07;
+        return palette;
+    }
+
+    static byte[] encode(int width, int height, int colorType, List<Frame> frames, boolean interlaced, int numPlays)
+            throws IOException {
+        return encode(width, height, colorType, frames, interlaced, numPlays, palette());
+    }
+
+    /**
+     * encode with the palette of COLOR_PALETTE images, the tRNS chunk is omitted if all colors are opaque
+     */
+    static byte[] encode(int width, int height, int colorType, List<Frame> frames, boolean interlaced, int numPlays,
+                         int[] palette) throws IOException {
+        return encode(width, height, colorType, 8, frames, interlaced, numPlays, palette, null);
+    }
+
+    /**
+     * encode an image of any color type and bit depth
+     *
+     * @param palette  palette of COLOR_PALETTE images, the tRNS chunk is omitted if all colors are opaque
+     * @param transKey samples of the transparent color of COLOR_GRAY (1 sample) or COLOR_RGB (3 samples) images,
+     *                 written to the tRNS chunk, null for none
+     */
+    static byte[] encode(int width, int height, int colorType, int bitDepth, List<Frame> frames, boolean interlaced,
+                         int numPlays, int[] palette, int[] transKey) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = (byte) bitDepth;
+        ihdr[9] = (byte) colorType;
+        ihdr[12] = (byte) (interlaced ? 1 : 0);
+        chunk(out, "IHDR", ihdr);
+        if (colorType == COLOR_PALETTE) {
+            boolean opaque = true;
+            byte[] plte = new byte[palette.length * 3];
+            byte[] trns = new byte[palette.length];
+            for (int i = 0; i < palette.length; i++) {
+                plte[i * 3] = (byte) (palette[i] >> 16);
+                plte[i * 3 + 1] = (byte) (palette[i] >> 8);
+                plte[i * 3 + 2] = (byte) palette[i];
+                trns[i] = (byte) (palette[i] >>> 24);
+                opaque &= palette[i] >>> 24 == 0xFF;
+            }
+            chunk(out, "PLTE", plte);
+            if (!opaque) chunk(out, "tRNS", trns);
+        }
+        if (transKey != null) {
+            byte[] trns = new byte[transKey.length * 2];
+            for (int i = 0; i < transKey.length; i++) {
+                trns[i * 2] = (byte) (transKey[i] >> 8);
+                trns[i * 2 + 1] = (byte) transKey[i];
+            }
+            chunk(out, "tRNS", trns);
+        }
+        byte[] actl = new byte[8];
+        putInt(actl, 0, frames.size());
+        putInt(actl, 4, numPlays);
+        chunk(out, "acTL", actl);
+
+        int pixelBytes = channels(colorType) * (bitDepth == 16 ? 2 : 1);
+        int seq = 0;
+        for (int i = 0; i < frames.size(); i++) {
+            Frame f = frames.get(i);
+            if (f.patch != null) chunk(out, "paCH", palettePatch(f.patch));
+            byte[] fctl = new byte[26];
+            putInt(fctl, 0, seq++);
+            putInt(fctl, 4, f.w);
+            putInt(fctl, 8, f.h);
+            putInt(fctl, 12, f.x);
+            putInt(fctl, 16, f.y);
+            fctl[20] = (byte) (f.delayNum >> 8);
+            fctl[21] = (byte) f.delayNum;
+            fctl[22] = (byte) (f.delayDen >> 8);
+            fctl[23] = (byte) f.delayDen;
+            fctl[24] = (byte) f.dispose;
+            fctl[25] = (byte) f.blend;
+            chunk(out, "fcTL", fctl);
+
+            byte[] data = deflate(scanlines(f.samples, f.w, f.h, pixelBytes, bitDepth, interlaced));
+            if (i == 0) {
+                // split the default image in two IDAT chunks
+                int half = data.length / 2;
+                chunk(out, "IDAT", copy(data, 0, half));
+                chunk(out, "IDAT", copy(data, half, data.length - half));
+            } else {
+                byte[] fdat = new byte[data.length + 4];
+                putInt(fdat, 0, seq++);
+                System.arraycopy(data, 0, fdat, 4, data.length);
+                chunk(out, "fdAT", fdat);
+            }
+        }
+        chunk(out, "IEND", new byte[0]);
+        return out.toByteArray();
+    }
+
+    static File write(File dir, String name, byte[] data) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * patch data replacing the PLTE colors and the PLTE chunk's CRC, the PLTE chunk is at the head data,
+     * with its length and type code, the patch items' destination offsets are relative to the chunk
+     */
+    private static byte[] palettePatch(int[] colors) throws IOException {
+        byte[] plte = new byte[colors.length * 3];
+        for (int i = 0; i < colors.length; i++) {
+            plte[i * 3] = (byte) (colors[i] >> 16);
+            plte[i * 3 + 1] = (byte) (colors[i] >> 8);
+            plte[i * 3 + 2] = (byte) colors[i];
+        }
+        CRC32 crc = new CRC32();
+        crc.update(new byte[]{'P', 'L', 'T', 'E'});
+        crc.update(plte);
+
+        // patch header: type code hash, items count, items of destination offset and size
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        dint(headers, AngPatch.typeCodeHashes(ApngConst.CODE_PLTE)[3], 4);
+        dint(headers, 2);
+        dint(headers, 8);
+        dint(headers, plte.length);
+        dint(headers, 8 + plte.length);
+        dint(headers, 4);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        dint(out, headers.size());
+        headers.writeTo(out);
+        out.write(plte);
+        byte[] tail = new byte[4];
+        putInt(tail, 0, (int) crc.getValue());
+        out.write(tail);
+        return out.toByteArray();
+    }
+
+    private static void dint(ByteArrayOutputStream out, int value) {
+        int size = 1;
+        while (size < 4 && value >>> 7 * size != 0) size++;
+        dint(out, value, size);
+    }
+
+    /**
+     * write a DInt of the size, 7 bits per byte from the lowest, and all 8 bits of the 4th byte
+     */
+    private static void dint(ByteArrayOutputStream out, int value, int size) {
+        for (int i = 0; i < size; i++) {
+            if (i == 3) out.write(value >>> 21);
+            else out.write(value >>> 7 * i & 0x7F | (i < size - 1 ? 0x80 : 0));
+        }
+    }
+
+    /**
+     * filtered scanlines of the image, filter type cycles through all types by row
+     *
+     * @param pixelBytes bytes of a pixel's samples
+     */
+    private static byte[] scanlines(byte[] samples, int w, int h, int pixelBytes, int bitDepth, boolean interlaced) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int bpp = bitDepth < 8 ? 1 : pixelBytes;
+        if (!interlaced) {
+            filterRows(pack(samples, w, h, bitDepth), h, bpp, out);
+            return out.toByteArray();
+        }
+        for (int pass = 0; pass < 7; pass++) {
+            int pw = (w - ADAM7_X[pass] + ADAM7_DX[pass] - 1) / ADAM7_DX[pass];
+            int ph = (h - ADAM7_Y[pass] + ADAM7_DY[pass] - 1) / ADAM7_DY[pass];
+            if (pw <= 0 || ph <= 0) continue;
+            byte[] sub = new byte[pw * ph * pixelBytes];
+            for (int y = 0; y < ph; y++) {
+                for (int x = 0; x < pw; x++) {
+                    int src = ((ADAM7_Y[pass] + y * ADAM7_DY[pass]) * w + ADAM7_X[pass] + x * ADAM7_DX[pass])
+                            * pixelBytes;
+                    System.arraycopy(samples, src, sub, (y * pw + x) * pixelBytes, pixelBytes);
+                }
+            }
+            filterRows(pack(sub, pw, ph, bitDepth), ph, bpp, out);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * pack the samples of 1/2/4-bit images to rows of bytes, the first pixel in the highest bits
+     */
+    private static byte[] pack(byte[] samples, int w, int h, int bitDepth) {
+        if (bitDepth >= 8) return samples;
+        int rowBytes = (w * bitDepth + 7) / 8;
+        byte[] rows = new byte[rowBytes * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int bit = x * bitDepth;
+                rows[y * rowBytes + bit / 8] |= samples[y * w + x] << 8 - bitDepth - bit % 8;
+            }
+        }
+        return rows;
+    }
+
+    private static void filterRows(byte[] samples, int h, int bpp, ByteArrayOutputStream out) {
+        int rowBytes = samples.length / h;
+        for (int y = 0; y < h; y++) {
+            int filter = y % 5;
+            out.write(filter);
+            for (int i = 0; i < rowBytes; i++) {
+                int cur = samples[y * rowBytes + i] & 0xFF;
+                int a = i >= bpp ? samples[y * rowBytes + i - bpp] & 0xFF : 0;
+                int b = y > 0 ? samples[(y - 1) * rowBytes + i] & 0xFF : 0;
+                int c = y > 0 && i >= bpp ? samples[(y - 1) * rowBytes + i - bpp] & 0xFF : 0;
+                int predictor;
+                switch (filter) {
+                    case 1:
+                        predictor = a;
+                        break;
+                    case 2:
+                        predictor = b;
+                        break;
+                    case 3:
+                        predictor = (a + b) >> 1;
+                        break;
+                    case 4:
+                        int pa = Math.abs(b - c), pb = Math.abs(a - c), pc = Math.abs(a + b - 2 * c);
+                        predictor = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                        break;
+                    default:
+                        predictor = 0;
+                }
+                out.write(cur - predictor);
+            }
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        while (!deflater.finished()) out.write(buf, 0, deflater.deflate(buf));
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static void chunk(ByteArrayOutputStream out, String type, byte[] data) throws IOException {
+        byte[] head = new byte[8];
+        putInt(head, 0, data.length);
+        for (int i = 0; i < 4; i++) head[4 + i] = (byte) type.charAt(i);
+        out.write(head);
+        out.write(data);
+        CRC32 crc = new CRC32();
+        crc.update(head, 4, 4);
+        crc.update(data);
+        byte[] tail = new byte[4];
+        putInt(tail, 0, (int) crc.getValue());
+        out.write(tail);
+    }
+
+    private static byte[] copy(byte[] data, int off, int len) {
+        byte[] out = new byte[len];
+        System.arraycopy(data, off, out, 0, len);
+        return out;
+    }
+
+    static void putInt(byte[] arr, int off, int val) {
+        arr[off] = (byte) (val >> 24);
+        arr[off + 1] = (byte) (val >> 16);
+        arr[off + 2] = (byte) (val >> 8);
+        arr[off + 3] = (byte) val;
+    }
+}